@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.block.BoxFill;
+import org.terasology.math.Region3i;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times merging block collections: one of single blocks (the hull of a cube), and one of a box fill (a solid cube).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockCollectionBenchmark {
+
+    @Param({"8", "32", "128"})
+    private int size;
+
+    private BlockCollection hull;
+    private BlockCollection solid;
+
+    @Setup
+    public void setUp() {
+        Block stone = HeadlessBlocks.get("engine:stone");
+        Block plank = HeadlessBlocks.get("engine:plank");
+
+        hull = new BlockCollection();
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                for (int z = 0; z < size; z++) {
+                    if (x == 0 || y == 0 || z == 0 || x == size - 1 || y == size - 1 || z == size - 1) {
+                        hull.setBlock(x, y, -z, stone);
+                    }
+                }
+            }
+        }
+
+        solid = new BlockCollection();
+        solid.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(0, 0, -(size - 1)), new Vector3i(size - 1, size - 1, 0)), plank));
+    }
+
+    @Benchmark
+    public BlockCollection mergeBlocks() {
+        BlockCollection building = new BlockCollection();
+        building.merge(hull);
+        return building;
+    }
+
+    @Benchmark
+    public BlockCollection mergeBoxes() {
+        BlockCollection building = new BlockCollection();
+        building.merge(solid, hull);
+        return building;
+    }
+
+    /**
+     * Merges the box fill and rasterizes it, as every query of the merged collection does.
+     */
+    @Benchmark
+    public int mergeAndRasterize() {
+        BlockCollection building = new BlockCollection();
+        building.merge(solid, hull);
+        return building.size();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.terasology.grammar.logic.grammar.ProductionSystem;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.building.BuildingCommands;
+import org.terasology.grammar.world.building.BuildingGenerator;
+import org.terasology.math.geom.Matrix4i;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the complete derivation of a building with the grammars of {@link BuildingCommands}.
+ * <p/>
+ * The buildings are cubes of the given size. The seed is fixed, so every invocation derives the same building.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GenerationBenchmark {
+
+    @Param({"default", "complex", "test"})
+    private String grammar;
+
+    @Param({"8", "32", "128"})
+    private int size;
+
+    private BuildingGenerator generator;
+    private Matrix4i matrix;
+
+    @Setup
+    public void setUp() {
+        ProductionSystem system;
+        switch (grammar) {
+            case "default":
+                system = BuildingCommands.defaultSystem();
+                break;
+            case "complex":
+                system = BuildingCommands.complexSystem();
+                break;
+            case "test":
+                system = BuildingCommands.testSystem();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown grammar: " + grammar);
+        }
+        generator = new BuildingGenerator(HeadlessBlocks.compile(system));
+        matrix = Matrix4i.id();
+    }
+
+    @Benchmark
+    public BlockCollection generate() {
+        return generator.generate(size, size, size, matrix, 42L);
+    }
+
+    /**
+     * Includes rasterizing the box fills, as every consumer of a building does.
+     */
+    @Benchmark
+    public int generateAndRasterize() {
+        return generator.generate(size, size, size, matrix, 42L).size();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.benchmarks;
+
+import org.terasology.grammar.logic.grammar.CompiledGrammar;
+import org.terasology.grammar.logic.grammar.ProductionSystem;
+import org.terasology.world.block.Block;
+import org.terasology.world.block.BlockUri;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stands in for the {@link org.terasology.world.block.BlockManager}, so the benchmarks run without an engine. Every URI resolves to a
+ * plain block, created once.
+ */
+final class HeadlessBlocks {
+
+    private static final Map<BlockUri, Block> BLOCKS = new ConcurrentHashMap<BlockUri, Block>();
+
+    private HeadlessBlocks() {
+    }
+
+    static Block get(BlockUri uri) {
+        return BLOCKS.computeIfAbsent(uri, key -> {
+            Block block = new Block();
+            block.setUri(key);
+            return block;
+        });
+    }
+
+    static Block get(String uri) {
+        return get(new BlockUri(uri));
+    }
+
+    /**
+     * Compiles a production system, resolving its blocks without a block manager.
+     */
+    static CompiledGrammar compile(ProductionSystem system) {
+        return CompiledGrammar.compile(system, HeadlessBlocks::get);
+    }
+}
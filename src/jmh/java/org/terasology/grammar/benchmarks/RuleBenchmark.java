@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.terasology.grammar.logic.grammar.shapes.Shape;
+import org.terasology.grammar.logic.grammar.shapes.ShapeSymbol;
+import org.terasology.grammar.logic.grammar.shapes.complex.DivideArg;
+import org.terasology.grammar.logic.grammar.shapes.complex.DivideRule;
+import org.terasology.grammar.logic.grammar.shapes.complex.SetRule;
+import org.terasology.grammar.logic.grammar.shapes.complex.Size;
+import org.terasology.grammar.logic.grammar.shapes.complex.SplitArg;
+import org.terasology.grammar.logic.grammar.shapes.complex.SplitRule;
+import org.terasology.grammar.world.block.BlockPalette;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.BlockUri;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times single derivation steps: the successors of a divide, split and set rule.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleBenchmark {
+
+    @Param({"8", "32", "128"})
+    private int size;
+
+    private DivideRule divideRule;
+    private SplitRule splitRule;
+    private SetRule setRule;
+
+    @Setup
+    public void setUp() {
+        ShapeSymbol part = new ShapeSymbol("part");
+        divideRule = new DivideRule(Arrays.asList(
+                new DivideArg(new Size(1f, true), part),
+                new DivideArg(new Size(.3f, false), part),
+                new DivideArg(new Size(2f, true), part),
+                new DivideArg(new Size(.7f, false), part)), DivideRule.Direction.X);
+        divideRule.setDimension(new Vector3i(size, size, size));
+
+        splitRule = new SplitRule(Arrays.asList(
+                new SplitArg(SplitArg.SplitType.WALLS, part),
+                new SplitArg(SplitArg.SplitType.INNER, part)));
+        splitRule.setDimension(new Vector3i(size, size, size));
+
+        BlockUri stone = new BlockUri("engine:stone");
+        setRule = new SetRule(stone).bind(BlockPalette.resolve(Collections.singleton(stone), HeadlessBlocks::get));
+        setRule.setDimension(new Vector3i(size, size, size));
+    }
+
+    @Benchmark
+    public List<Shape> divide() {
+        return divideRule.getElements();
+    }
+
+    @Benchmark
+    public List<Shape> split() {
+        return splitRule.getElements();
+    }
+
+    @Benchmark
+    public List<Shape> set() {
+        return setRule.getElements();
+    }
+}
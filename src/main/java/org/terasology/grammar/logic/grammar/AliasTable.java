@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic.grammar;
+
+import java.util.Random;
+
+/**
+ * A lookup table for drawing an index from a discrete, weighted distribution in constant time (Walker's alias method, using Vose's
+ * construction).
+ * <p/>
+ * Each of the n columns holds a threshold and an alias. A draw picks a column uniformly and returns either the column itself or its
+ * alias, depending on a second uniform value. Building the table takes O(n).
+ */
+public final class AliasTable {
+
+    /** The probability to keep the column index instead of its alias, per column. */
+    private final float[] threshold;
+    /** The alias index of every column. */
+    private final int[] alias;
+
+    /**
+     * Builds an alias table for the given weights. The weights do not need to sum up to one. If all weights are zero, every index is
+     * equally likely.
+     *
+     * @param weights the (relative) weights of the indices - not empty, no negative values
+     */
+    public AliasTable(float[] weights) {
+        int n = weights.length;
+        if (n == 0) {
+            throw new IllegalArgumentException("At least one weight is required.");
+        }
+        double sum = 0;
+        for (float weight : weights) {
+            if (!(weight >= 0) || Float.isInfinite(weight)) {
+                throw new IllegalArgumentException("Weights must be finite and not negative, but got " + weight);
+            }
+            sum += weight;
+        }
+
+        threshold = new float[n];
+        alias = new int[n];
+
+        // scale the weights so that the average column is exactly full (1)
+        double[] scaled = new double[n];
+        for (int i = 0; i < n; i++) {
+            scaled[i] = (sum > 0) ? weights[i] * n / sum : 1;
+        }
+
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < n; i++) {
+            if (scaled[i] < 1) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+
+        // fill up every underfull column with the excess of an overfull one
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            threshold[less] = (float) scaled[less];
+            alias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1;
+            if (scaled[more] < 1) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+        // the remaining columns are full, apart from rounding errors
+        while (largeCount > 0) {
+            int i = large[--largeCount];
+            threshold[i] = 1f;
+            alias[i] = i;
+        }
+        while (smallCount > 0) {
+            int i = small[--smallCount];
+            threshold[i] = 1f;
+            alias[i] = i;
+        }
+    }
+
+    /**
+     * The number of indices this table draws from.
+     *
+     * @return the number of weights the table was built with
+     */
+    public int size() {
+        return alias.length;
+    }
+
+    /**
+     * Draws an index according to the table's weights.
+     *
+     * @param random the source of randomness
+     *
+     * @return an index in {@code [0, size())}
+     */
+    public int sample(Random random) {
+        int column = random.nextInt(alias.length);
+        return (random.nextFloat() < threshold[column]) ? column : alias[column];
+    }
+
+    /**
+     * Draws an index according to the table's weights, using 64 random bits instead of a random number generator.
+     * <p/>
+     * The upper 32 bits select the column, the lower 24 bits decide between the column and its alias.
+     *
+     * @param bits uniformly distributed random bits, e.g. from {@link SplittableSeed#mix(long)}
+     *
+     * @return an index in {@code [0, size())}
+     */
+    public int sample(long bits) {
+        int column = (int) (((bits >>> 32) * alias.length) >>> 32);
+        float coin = (bits & 0xFFFFFF) * 0x1.0p-24f;
+        return (coin < threshold[column]) ? column : alias[column];
+    }
+}
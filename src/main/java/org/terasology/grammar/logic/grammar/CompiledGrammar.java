@@ -0,0 +1,374 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic.grammar;
+
+import org.terasology.grammar.logic.grammar.shapes.Shape;
+import org.terasology.grammar.logic.grammar.shapes.ShapeSymbol;
+import org.terasology.grammar.logic.grammar.shapes.TerminalShape;
+import org.terasology.grammar.logic.grammar.shapes.complex.DivideArg;
+import org.terasology.grammar.logic.grammar.shapes.complex.DivideRule;
+import org.terasology.grammar.logic.grammar.shapes.complex.SetRule;
+import org.terasology.grammar.logic.grammar.shapes.complex.SplitArg;
+import org.terasology.grammar.logic.grammar.shapes.complex.SplitRule;
+import org.terasology.grammar.world.block.BlockPalette;
+import org.terasology.world.block.Block;
+import org.terasology.world.block.BlockUri;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * An immutable, int-indexed form of a {@link ProductionSystem}.
+ * <p/>
+ * Compiling a production system interns every symbol label to an id and stores the alternatives of each symbol in an array. All
+ * {@link ShapeSymbol}s on the right hand side of the rules are bound to their id, so a derivation step can look up its successors
+ * without hashing the label. Symbols without a production are reported when compiling instead of in the middle of a derivation.
+ * <p/>
+ * All block types used by {@link SetRule}s are resolved once when compiling, into the grammar's {@link BlockPalette}. The compiled set
+ * rules only look up their block by palette index.
+ * <p/>
+ * The alternatives of a symbol are selected according to their {@link Shape#getProbability() probabilities}. For every symbol with
+ * more than one alternative an {@link AliasTable} is precomputed, so a selection takes constant time.
+ * <p/>
+ * Shapes nested in complex rules other than {@link DivideRule} and {@link SplitRule} cannot be bound. Those symbols are still resolved
+ * via {@link #getSymbolId(String)} at derivation time.
+ * <p/>
+ * Compiling also analyzes the subtree reachable from each symbol: a symbol is <i>relocatable</i> if its derivation only consists of
+ * symbols, divide, split and set rules and terminal shapes, which place their blocks relative to the scope's transform. It is
+ * <i>deterministic</i> if, in addition, no symbol in its subtree has more than one alternative, so the seed does not influence the
+ * result.
+ */
+public final class CompiledGrammar {
+
+    /** The labels of all symbols, indexed by symbol id. */
+    private final String[] labels;
+    /** The symbol ids by label - only needed for symbols that could not be bound while compiling. */
+    private final Map<String, Integer> ids;
+    /** The alternatives (right hand sides) of every symbol, indexed by symbol id. */
+    private final Shape[][] alternatives;
+    /** The alias tables for weighted selection, indexed by symbol id - null for symbols with a single alternative. */
+    private final AliasTable[] selectors;
+    /** Whether the subtree of a symbol can be derived at one transform and moved to another, indexed by symbol id. */
+    private final boolean[] relocatable;
+    /** Whether the subtree of a symbol is relocatable and independent of the seed, indexed by symbol id. */
+    private final boolean[] deterministic;
+    /** The bound initial axiom. */
+    private final ShapeSymbol initialAxiom;
+    /** The blocks of all set rules. */
+    private final BlockPalette palette;
+
+    private CompiledGrammar(String[] labels, Map<String, Integer> ids, Shape[][] alternatives, AliasTable[] selectors,
+                            ShapeSymbol initialAxiom, BlockPalette palette) {
+        this.palette = palette;
+        this.labels = labels;
+        this.ids = ids;
+        this.alternatives = alternatives;
+        this.selectors = selectors;
+        this.initialAxiom = initialAxiom;
+
+        // start optimistic and propagate the symbols that are not relocatable (deterministic) until nothing changes anymore
+        int[][] references = new int[labels.length][];
+        relocatable = new boolean[labels.length];
+        deterministic = new boolean[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            List<Integer> symbols = new ArrayList<Integer>();
+            boolean local = true;
+            for (Shape alternative : alternatives[i]) {
+                local &= collectReferences(alternative, symbols);
+            }
+            references[i] = new int[symbols.size()];
+            for (int j = 0; j < references[i].length; j++) {
+                references[i][j] = symbols.get(j);
+            }
+            relocatable[i] = local;
+            deterministic[i] = local && alternatives[i].length == 1;
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < labels.length; i++) {
+                for (int reference : references[i]) {
+                    if (relocatable[i] && !relocatable[reference]) {
+                        relocatable[i] = false;
+                        changed = true;
+                    }
+                    if (deterministic[i] && !deterministic[reference]) {
+                        deterministic[i] = false;
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the ids of all symbols a shape refers to.
+     *
+     * @param shape   the (bound) shape
+     * @param symbols the list to add the symbol ids to
+     *
+     * @return false if the shape contains anything that is not known to be relocatable
+     */
+    private static boolean collectReferences(Shape shape, List<Integer> symbols) {
+        if (shape instanceof ShapeSymbol) {
+            symbols.add(((ShapeSymbol) shape).getId());
+            return true;
+        } else if (shape instanceof DivideRule) {
+            boolean local = true;
+            for (DivideArg arg : ((DivideRule) shape).getArgs()) {
+                local &= collectReferences(arg.getShape(), symbols);
+            }
+            return local;
+        } else if (shape instanceof SplitRule) {
+            boolean local = true;
+            for (SplitArg arg : ((SplitRule) shape).getArgs()) {
+                local &= collectReferences(arg.getShape(), symbols);
+            }
+            return local;
+        }
+        return shape instanceof SetRule || shape instanceof TerminalShape;
+    }
+
+    /**
+     * Compiles the given production system. Block types are resolved with the {@link org.terasology.world.block.BlockManager} of the
+     * {@link org.terasology.registry.CoreRegistry}.
+     *
+     * @param system the production system to compile - not null
+     *
+     * @return the compiled grammar
+     *
+     * @throws IllegalArgumentException if a symbol has no alternatives, an alternative has a negative probability, or a symbol
+     *                                  without production is used in a rule
+     */
+    public static CompiledGrammar compile(ProductionSystem system) {
+        return compile(system, null);
+    }
+
+    /**
+     * Compiles the given production system, resolving the block types with the given function.
+     *
+     * @param system   the production system to compile - not null
+     * @param resolver the function looking up the block for a URI, or null to use the block manager
+     *
+     * @return the compiled grammar
+     *
+     * @throws IllegalArgumentException if a symbol has no alternatives, an alternative has a negative probability, a symbol without
+     *                                  production is used in a rule, or a block type cannot be resolved
+     */
+    public static CompiledGrammar compile(ProductionSystem system, Function<BlockUri, Block> resolver) {
+        if (system == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        Map<String, List<Shape>> rules = system.getRules();
+
+        List<BlockUri> blockUris = new ArrayList<BlockUri>();
+        for (List<Shape> successors : rules.values()) {
+            if (successors != null) {
+                for (Shape successor : successors) {
+                    collectBlocks(successor, blockUris);
+                }
+            }
+        }
+        BlockPalette palette = (resolver != null) ? BlockPalette.resolve(blockUris, resolver) : BlockPalette.resolve(blockUris);
+
+        // intern the labels in a stable (sorted) order
+        String[] labels = new TreeSet<String>(rules.keySet()).toArray(new String[rules.size()]);
+        Map<String, Integer> ids = new HashMap<String, Integer>(labels.length * 2);
+        for (int i = 0; i < labels.length; i++) {
+            ids.put(labels[i], i);
+        }
+
+        Shape[][] alternatives = new Shape[labels.length][];
+        AliasTable[] selectors = new AliasTable[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            List<Shape> successors = rules.get(labels[i]);
+            if (successors == null || successors.isEmpty()) {
+                throw new IllegalArgumentException("Symbol '" + labels[i] + "' has no alternatives.");
+            }
+            alternatives[i] = new Shape[successors.size()];
+            for (int j = 0; j < successors.size(); j++) {
+                alternatives[i][j] = bind(successors.get(j), ids, palette, labels[i]);
+            }
+            if (successors.size() > 1) {
+                float[] weights = new float[successors.size()];
+                for (int j = 0; j < weights.length; j++) {
+                    weights[j] = successors.get(j).getProbability();
+                }
+                try {
+                    selectors[i] = new AliasTable(weights);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid probabilities for symbol '" + labels[i] + "': " + e.getMessage(), e);
+                }
+            }
+        }
+
+        ShapeSymbol axiom = (ShapeSymbol) bind(system.getInitialAxiom(), ids, palette, "<initial axiom>");
+        return new CompiledGrammar(labels, ids, alternatives, selectors, axiom, palette);
+    }
+
+    /**
+     * Adds the block types of all set rules in the given shape.
+     */
+    private static void collectBlocks(Shape shape, List<BlockUri> blockUris) {
+        if (shape instanceof SetRule) {
+            blockUris.add(((SetRule) shape).getUri());
+        } else if (shape instanceof DivideRule) {
+            for (DivideArg arg : ((DivideRule) shape).getArgs()) {
+                collectBlocks(arg.getShape(), blockUris);
+            }
+        } else if (shape instanceof SplitRule) {
+            for (SplitArg arg : ((SplitRule) shape).getArgs()) {
+                collectBlocks(arg.getShape(), blockUris);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the given shape in which all shape symbols are bound to their ids, and all set rules to the palette.
+     *
+     * @param shape   the shape to bind
+     * @param ids     the interned symbol ids
+     * @param palette the resolved blocks
+     * @param rule    the label of the rule the shape belongs to, used for error reporting
+     *
+     * @return the bound copy of the shape
+     */
+    private static Shape bind(Shape shape, Map<String, Integer> ids, BlockPalette palette, String rule) {
+        if (shape instanceof ShapeSymbol) {
+            ShapeSymbol symbol = (ShapeSymbol) shape;
+            Integer id = ids.get(symbol.getLabel());
+            if (id == null) {
+                throw new IllegalArgumentException("Symbol '" + symbol.getLabel() + "' used in rule '" + rule + "' has no production.");
+            }
+            ShapeSymbol bound = new ShapeSymbol(symbol.getLabel(), symbol.getProbability(), id);
+            bound.setActive(symbol.isActive());
+            return bound;
+        } else if (shape instanceof DivideRule) {
+            DivideRule divide = (DivideRule) shape;
+            List<DivideArg> args = new ArrayList<DivideArg>(divide.getArgs().size());
+            for (DivideArg arg : divide.getArgs()) {
+                args.add(new DivideArg(arg.getSize(), bind(arg.getShape(), ids, palette, rule)));
+            }
+            return new DivideRule(args, divide.getDirection(), divide.getProbability());
+        } else if (shape instanceof SplitRule) {
+            SplitRule split = (SplitRule) shape;
+            List<SplitArg> args = new ArrayList<SplitArg>(split.getArgs().size());
+            for (SplitArg arg : split.getArgs()) {
+                args.add(new SplitArg(arg.getType(), bind(arg.getShape(), ids, palette, rule)));
+            }
+            return new SplitRule(args, split.getProbability());
+        } else if (shape instanceof SetRule) {
+            return ((SetRule) shape).bind(palette);
+        }
+        return shape.clone();
+    }
+
+    /**
+     * Looks up the id of a symbol by its label.
+     *
+     * @param label the symbol's label
+     *
+     * @return the symbol id, or -1 if the grammar has no production for the label
+     */
+    public int getSymbolId(String label) {
+        Integer id = ids.get(label);
+        return id != null ? id : -1;
+    }
+
+    public int getSymbolCount() {
+        return labels.length;
+    }
+
+    public String getLabel(int symbolId) {
+        return labels[symbolId];
+    }
+
+    public int getAlternativeCount(int symbolId) {
+        return alternatives[symbolId].length;
+    }
+
+    /**
+     * Checks whether the derivation of a symbol only depends on its scope relative to the scope's transform. The blocks derived for
+     * such a symbol at one position can be moved to any other position with the same orientation and dimension.
+     *
+     * @param symbolId the id of the symbol
+     *
+     * @return true if the symbol's subtree is relocatable
+     */
+    public boolean isRelocatable(int symbolId) {
+        return relocatable[symbolId];
+    }
+
+    /**
+     * Checks whether the derivation of a symbol is relocatable and does not depend on the seed, because no symbol in its subtree has a
+     * choice of alternatives.
+     *
+     * @param symbolId the id of the symbol
+     *
+     * @return true if the symbol's subtree is deterministic
+     */
+    public boolean isDeterministic(int symbolId) {
+        return deterministic[symbolId];
+    }
+
+    /**
+     * Selects one of the alternatives of a symbol, weighted by the alternatives' probabilities. The selection only depends on the
+     * given seed.
+     *
+     * @param symbolId the id of the symbol
+     * @param seed     the seed of the derivation node
+     *
+     * @return the index of the selected alternative
+     */
+    public int select(int symbolId, long seed) {
+        AliasTable selector = selectors[symbolId];
+        return (selector != null) ? selector.sample(SplittableSeed.mix(seed)) : 0;
+    }
+
+    /**
+     * Creates a new instance of one of the alternatives of a symbol. The instance can be modified freely (e.g. to set its scope).
+     *
+     * @param symbolId    the id of the symbol
+     * @param alternative the index of the alternative
+     *
+     * @return a fresh copy of the alternative's shape
+     */
+    public Shape instantiate(int symbolId, int alternative) {
+        return alternatives[symbolId][alternative].clone();
+    }
+
+    /**
+     * The blocks of all set rules of the grammar, resolved when the grammar was compiled.
+     *
+     * @return the grammar's block palette
+     */
+    public BlockPalette getPalette() {
+        return palette;
+    }
+
+    /**
+     * The initial axiom of the grammar, bound to its symbol id. The returned shape is owned by the compiled grammar.
+     *
+     * @return the initial axiom
+     */
+    public ShapeSymbol getInitialAxiom() {
+        return initialAxiom;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic.grammar;
+
+/**
+ * Helper functions for hierarchical, splittable seeds.
+ * <p/>
+ * Every node of a derivation tree owns a seed. The seed of a child is computed from the seed of its parent and the child's index only,
+ * so the random choices made in a subtree do not depend on the order (or the thread) in which the other subtrees are derived. The mixing
+ * function is the finalizer of the SplitMix64 generator.
+ */
+public final class SplittableSeed {
+
+    /** The odd constant used to space out sibling seeds (2^64 divided by the golden ratio). */
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private SplittableSeed() {
+    }
+
+    /**
+     * Scrambles a seed into 64 well-distributed random bits.
+     *
+     * @param seed the seed
+     *
+     * @return the random bits for the seed
+     */
+    public static long mix(long seed) {
+        long z = seed;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Computes the seed of a child node.
+     *
+     * @param seed  the seed of the parent node
+     * @param index the index of the child among its siblings
+     *
+     * @return the seed of the child
+     */
+    public static long child(long seed, int index) {
+        return mix(seed + (index + 1) * GOLDEN_GAMMA);
+    }
+}
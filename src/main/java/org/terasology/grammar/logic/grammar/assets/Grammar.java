@@ -18,6 +18,7 @@ package org.terasology.grammar.logic.grammar.assets;
 import com.google.common.base.Preconditions;
 import org.terasology.assets.AssetData;
 import org.terasology.assets.ResourceUrn;
+import org.terasology.grammar.logic.grammar.CompiledGrammar;
 import org.terasology.grammar.logic.grammar.ProductionSystem;
 
 public class Grammar implements AssetData {
@@ -26,6 +27,9 @@ public class Grammar implements AssetData {
 
     private ProductionSystem productionSystem;
 
+    /** The compiled form of the production system, created on first use. */
+    private volatile CompiledGrammar compiledGrammar;
+
     //TODO: store additional header information somehow
 
     /**
@@ -42,6 +46,28 @@ public class Grammar implements AssetData {
         return productionSystem;
     }
 
+    /**
+     * Returns the compiled form of this grammar's production system. The production system is compiled on the first call; all callers
+     * share the same (immutable) compiled grammar afterwards.
+     *
+     * @return the compiled grammar
+     *
+     * @throws IllegalArgumentException if the production system cannot be compiled
+     */
+    public CompiledGrammar getCompiledGrammar() {
+        CompiledGrammar result = compiledGrammar;
+        if (result == null) {
+            synchronized (this) {
+                result = compiledGrammar;
+                if (result == null) {
+                    result = CompiledGrammar.compile(productionSystem);
+                    compiledGrammar = result;
+                }
+            }
+        }
+        return result;
+    }
+
     public ResourceUrn getUrn() {
         return urn;
     }
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic.grammar.shapes;
+
+import org.terasology.math.geom.Matrix4i;
+import org.terasology.math.geom.Vector3i;
+
+/**
+ * One of the 24 axis aligned rotations of a block grid.
+ * <p/>
+ * An orientation maps every axis onto an axis, possibly flipping its direction, i.e., it is a 3x3 matrix with exactly one entry of 1
+ * or -1 per row and column and a determinant of 1. All orientations and their products are precomputed once, so composing two
+ * orientations is a table lookup and applying one to a position only swaps and negates coordinates.
+ */
+public final class Orientation {
+
+    /** The number of distinct orientations. */
+    public static final int COUNT = 24;
+
+    private static final Orientation[] ORIENTATIONS = createOrientations();
+    /** The index of the product of two orientations, indexed by the indices of the factors. */
+    private static final byte[][] PRODUCTS = createProducts();
+
+    public static final Orientation IDENTITY = ORIENTATIONS[0];
+
+    private final int index;
+    /** The source axis of each target axis: {@code out[i] = signs[i] * in[axes[i]]}. */
+    private final int[] axes;
+    private final int[] signs;
+
+    private Orientation(int index, int[] axes, int[] signs) {
+        this.index = index;
+        this.axes = axes;
+        this.signs = signs;
+    }
+
+    /**
+     * Enumerates all signed permutations with a positive determinant. The identity comes first.
+     */
+    private static Orientation[] createOrientations() {
+        int[][] permutations = {{0, 1, 2}, {0, 2, 1}, {1, 0, 2}, {1, 2, 0}, {2, 0, 1}, {2, 1, 0}};
+        int[] parities = {1, -1, -1, 1, 1, -1};
+        Orientation[] result = new Orientation[COUNT];
+        int count = 0;
+        for (int p = 0; p < permutations.length; p++) {
+            for (int flips = 0; flips < 8; flips++) {
+                int[] signs = {(flips & 1) == 0 ? 1 : -1, (flips & 2) == 0 ? 1 : -1, (flips & 4) == 0 ? 1 : -1};
+                if (parities[p] * signs[0] * signs[1] * signs[2] == 1) {
+                    result[count] = new Orientation(count, permutations[p], signs);
+                    count++;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static byte[][] createProducts() {
+        byte[][] products = new byte[COUNT][COUNT];
+        for (Orientation a : ORIENTATIONS) {
+            for (Orientation b : ORIENTATIONS) {
+                // (a * b) v = a (b v)
+                int[] axes = new int[3];
+                int[] signs = new int[3];
+                for (int i = 0; i < 3; i++) {
+                    axes[i] = b.axes[a.axes[i]];
+                    signs[i] = a.signs[i] * b.signs[a.axes[i]];
+                }
+                products[a.index][b.index] = (byte) find(axes, signs).index;
+            }
+        }
+        return products;
+    }
+
+    private static Orientation find(int[] axes, int[] signs) {
+        for (Orientation orientation : ORIENTATIONS) {
+            if (orientation.axes[0] == axes[0] && orientation.axes[1] == axes[1] && orientation.axes[2] == axes[2]
+                    && orientation.signs[0] == signs[0] && orientation.signs[1] == signs[1] && orientation.signs[2] == signs[2]) {
+                return orientation;
+            }
+        }
+        throw new IllegalArgumentException("Not an axis aligned rotation.");
+    }
+
+    /**
+     * @param index the index of the orientation, in {@code [0, COUNT)}
+     *
+     * @return the orientation with the given index
+     */
+    public static Orientation get(int index) {
+        return ORIENTATIONS[index];
+    }
+
+    /**
+     * The rotation by the given number of quarter turns around the y axis, in the same direction as {@link Matrix4i#rotY(float)}.
+     *
+     * @param quarterTurns the number of quarter turns - may be negative
+     *
+     * @return the orientation for the rotation
+     */
+    public static Orientation rotationY(int quarterTurns) {
+        switch (quarterTurns & 3) {
+            case 1:
+                return find(new int[]{2, 1, 0}, new int[]{1, 1, -1});
+            case 2:
+                return find(new int[]{0, 1, 2}, new int[]{-1, 1, -1});
+            case 3:
+                return find(new int[]{2, 1, 0}, new int[]{-1, 1, 1});
+            default:
+                return IDENTITY;
+        }
+    }
+
+    /**
+     * Extracts the orientation from the rotation part of a matrix.
+     *
+     * @param matrix the matrix - its rotation part must be axis aligned
+     *
+     * @return the orientation of the matrix
+     *
+     * @throws IllegalArgumentException if the matrix does not describe an axis aligned rotation
+     */
+    public static Orientation fromMatrix(Matrix4i matrix) {
+        int[] axes = new int[3];
+        int[] signs = new int[3];
+        boolean[] used = new boolean[3];
+        Vector3i axis = new Vector3i();
+        Vector3i image = new Vector3i();
+        for (int i = 0; i < 3; i++) {
+            axis.set(i == 0 ? 1 : 0, i == 1 ? 1 : 0, i == 2 ? 1 : 0);
+            matrix.transform(axis, image);
+            int[] components = {image.x, image.y, image.z};
+            int target = -1;
+            for (int j = 0; j < 3; j++) {
+                if (components[j] == 1 || components[j] == -1) {
+                    if (target >= 0) {
+                        throw new IllegalArgumentException("Not an axis aligned rotation: " + matrix);
+                    }
+                    target = j;
+                } else if (components[j] != 0) {
+                    throw new IllegalArgumentException("Not an axis aligned rotation: " + matrix);
+                }
+            }
+            if (target < 0 || used[target]) {
+                throw new IllegalArgumentException("Not an axis aligned rotation: " + matrix);
+            }
+            used[target] = true;
+            // the source axis i is mapped to the target axis
+            axes[target] = i;
+            signs[target] = components[target];
+        }
+        return find(axes, signs);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @param axis the target axis - 0 (x), 1 (y) or 2 (z)
+     *
+     * @return the axis that is mapped onto the target axis
+     */
+    public int getSourceAxis(int axis) {
+        return axes[axis];
+    }
+
+    /**
+     * @param axis the target axis - 0 (x), 1 (y) or 2 (z)
+     *
+     * @return -1 if the source axis is flipped when it is mapped onto the target axis, 1 otherwise
+     */
+    public int getSign(int axis) {
+        return signs[axis];
+    }
+
+    /**
+     * @param other the orientation to apply first
+     *
+     * @return the orientation that applies {@code other} first and this orientation afterwards
+     */
+    public Orientation compose(Orientation other) {
+        return ORIENTATIONS[PRODUCTS[index][other.index]];
+    }
+
+    /**
+     * @return the x coordinate of the rotated vector (x, y, z)
+     */
+    public int rotateX(int x, int y, int z) {
+        return signs[0] * select(axes[0], x, y, z);
+    }
+
+    /**
+     * @return the y coordinate of the rotated vector (x, y, z)
+     */
+    public int rotateY(int x, int y, int z) {
+        return signs[1] * select(axes[1], x, y, z);
+    }
+
+    /**
+     * @return the z coordinate of the rotated vector (x, y, z)
+     */
+    public int rotateZ(int x, int y, int z) {
+        return signs[2] * select(axes[2], x, y, z);
+    }
+
+    private static int select(int axis, int x, int y, int z) {
+        return (axis == 0) ? x : (axis == 1) ? y : z;
+    }
+
+    /**
+     * Writes the entries of the rotation matrix, row by row, into the upper left 3x3 part of a row-major 4x4 array.
+     */
+    void writeTo(int[] matrix) {
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                matrix[row * 4 + column] = (axes[row] == column) ? signs[row] : 0;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Orientation(");
+        for (int i = 0; i < 3; i++) {
+            builder.append(signs[i] < 0 ? '-' : '+').append((char) ('x' + axes[i]));
+        }
+        return builder.append(')').toString();
+    }
+}
@@ -15,6 +15,7 @@
  */
 package org.terasology.grammar.logic.grammar.shapes;
 
+import org.terasology.math.Region3i;
 import org.terasology.math.geom.Matrix4i;
 import org.terasology.math.geom.Vector3i;
 
@@ -36,9 +37,9 @@ public abstract class Shape {
     protected float probability = 1f;
     /** Indicates if the shape is active. */
     protected boolean active = true;
-    /** Transformation matrix - rotation & translation */
+    /** Transformation - rotation & translation */
     //protected Matrix4f matrix = new Matrix4f();
-    protected Matrix4i matrix = Matrix4i.id();
+    protected Transform transform = Transform.IDENTITY;
 
     /**
      * Returns the shape's relative position
@@ -47,7 +48,7 @@ public abstract class Shape {
      */
     public Vector3i getPosition() {
         //return position;
-        return matrix.getTranslation();
+        return transform.getTranslation();
     }
 
     /**
@@ -56,11 +57,11 @@ public abstract class Shape {
      * @param position the new position
      */
     public void setPosition(Vector3i position) {
-        matrix.setTranslation(position);
+        setPosition(position.x, position.y, position.z);
     }
 
     public void setPosition(int x, int y, int z) {
-        matrix.setTranslation(x, y, z);
+        transform = transform.withTranslation(x, y, z);
     }
 
     /**
@@ -148,16 +149,66 @@ public abstract class Shape {
         return probability;
     }
 
+    /**
+     * The shape's rotation and translation as a matrix. The matrix is a copy; changing it does not affect the shape.
+     *
+     * @return a new matrix describing the shape's transform
+     */
     public Matrix4i getMatrix() {
-        return matrix;
+        return transform.toMatrix();
     }
 
+    /**
+     * Sets the shape's rotation and translation from a matrix.
+     *
+     * @param matrix the new transformation - its rotation must be axis aligned
+     *
+     * @throws IllegalArgumentException if the matrix' rotation is not axis aligned
+     */
     public void setMatrix(Matrix4i matrix) {
-        this.matrix = matrix;
+        this.transform = Transform.fromMatrix(matrix);
+    }
+
+    public Transform getTransform() {
+        return transform;
+    }
+
+    public void setTransform(Transform transform) {
+        if (transform == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        this.transform = transform;
     }
 
     public void move(Vector3i translation) {
-        matrix = matrix.translate(translation);
+        transform = transform.translate(translation.x, translation.y, translation.z);
+    }
+
+    /**
+     * Computes the region of all blocks of this shape's scope, after applying the shape's transform. The scope is rasterized as in
+     * {@link org.terasology.grammar.logic.grammar.shapes.complex.SetRule}: a positive width or height extends along the positive x or
+     * y axis, a positive depth along the negative z axis.
+     *
+     * @return the region of the scope, or {@link Region3i#EMPTY} if the scope has no volume
+     */
+    public Region3i getScopeBounds() {
+        if (dimension.x == 0 || dimension.y == 0 || dimension.z == 0) {
+            return Region3i.EMPTY;
+        }
+        // the far corner of the scope, in local coordinates
+        int farX = (dimension.x > 0) ? dimension.x - 1 : dimension.x + 1;
+        int farY = (dimension.y > 0) ? dimension.y - 1 : dimension.y + 1;
+        int farZ = (dimension.z > 0) ? -(dimension.z - 1) : -(dimension.z + 1);
+
+        // axis aligned, so the two opposite corners span the region
+        int x0 = transform.transformX(0, 0, 0);
+        int y0 = transform.transformY(0, 0, 0);
+        int z0 = transform.transformZ(0, 0, 0);
+        int x1 = transform.transformX(farX, farY, farZ);
+        int y1 = transform.transformY(farX, farY, farZ);
+        int z1 = transform.transformZ(farX, farY, farZ);
+        return Region3i.createFromMinMax(new Vector3i(Math.min(x0, x1), Math.min(y0, y1), Math.min(z0, z1)),
+                new Vector3i(Math.max(x0, x1), Math.max(y0, y1), Math.max(z0, z1)));
     }
 
     public abstract Shape clone();
@@ -182,7 +233,7 @@ public abstract class Shape {
         if (dimension != null ? !dimension.equals(shape.dimension) : shape.dimension != null) {
             return false;
         }
-        return matrix != null ? matrix.equals(shape.matrix) : shape.matrix == null;
+        return transform.equals(shape.transform);
 
     }
 
@@ -191,7 +242,7 @@ public abstract class Shape {
         int result = dimension != null ? dimension.hashCode() : 0;
         result = 31 * result + (probability != +0.0f ? Float.floatToIntBits(probability) : 0);
         result = 31 * result + (active ? 1 : 0);
-        result = 31 * result + (matrix != null ? matrix.hashCode() : 0);
+        result = 31 * result + transform.hashCode();
         return result;
     }
 }
@@ -16,7 +16,6 @@
 package org.terasology.grammar.logic.grammar.shapes;
 
 import org.terasology.math.TeraMath;
-import org.terasology.math.geom.Matrix4i;
 import org.terasology.math.geom.Vector3i;
 
 /**
@@ -31,6 +30,8 @@ public class ShapeSymbol extends Shape {
 
     /** The string representation of the shape symbols label. */
     private String label = "";
+    /** The symbol's id in a compiled grammar, or -1 if the symbol is not bound to one. */
+    private int id = -1;
 
     /**
      * A new ShapeSymbol is created with the specified label. The default probability of 1.0 is used for this symbol.
@@ -57,6 +58,18 @@ public class ShapeSymbol extends Shape {
         this.probability = TeraMath.clamp(probability, 0f, 1f);
     }
 
+    /**
+     * A new ShapeSymbol is created with the specified label and probability, bound to the given symbol id of a compiled grammar.
+     *
+     * @param label       the label of the shape symbol
+     * @param probability the specific probability in the range from 0 to 1
+     * @param id          the interned id of the label
+     */
+    public ShapeSymbol(String label, float probability, int id) {
+        this(label, probability);
+        this.id = id;
+    }
+
     /**
      * The shape symbols string representation is equal to its label.
      *
@@ -64,15 +77,15 @@ public class ShapeSymbol extends Shape {
      */
     @Override
     public String toString() {
-        return label + "\n" + matrix + "\n" + dimension;
+        return label + "\n" + transform + "\n" + dimension;
     }
 
     @SuppressWarnings("CloneDoesntCallSuperClone")
     @Override
     public Shape clone() {
-        ShapeSymbol clone = new ShapeSymbol(label, probability);
+        ShapeSymbol clone = new ShapeSymbol(label, probability, id);
         clone.setActive(active);
-        clone.setMatrix(new Matrix4i(matrix));
+        clone.setTransform(transform);
         clone.setDimension(new Vector3i(dimension));
         return clone;
     }
@@ -81,6 +94,15 @@ public class ShapeSymbol extends Shape {
         return label;
     }
 
+    /**
+     * The id this symbol is bound to in a {@link org.terasology.grammar.logic.grammar.CompiledGrammar}.
+     *
+     * @return the symbol id, or -1 if the symbol is not bound
+     */
+    public int getId() {
+        return id;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -16,9 +16,8 @@
 package org.terasology.grammar.logic.grammar.shapes;
 
 import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.block.BlockSink;
 import org.terasology.math.geom.Vector3i;
-import org.terasology.registry.CoreRegistry;
-import org.terasology.world.block.BlockManager;
 import org.terasology.world.block.BlockUri;
 
 /**
@@ -26,37 +25,32 @@ import org.terasology.world.block.BlockUri;
  *         <p/>
  *         A TerminalShape is a shape that stands for a specifici block collection (maybe depending on its dimension). The TerminalShape's
  *         BlockCollection can be retrieved by calling the {@code getValue()} method.
+ *         <p/>
+ *         The collection is given in the terminal's local coordinates, and is stamped into the building at the terminal's transform. It
+ *         is never modified, so all clones of a terminal - e.g. all windows of a village - share a single collection. Like the blocks of
+ *         any other rule, the blocks of the collection should lie within the terminal's scope, otherwise a clipped generation may miss
+ *         them.
  */
 public class TerminalShape extends Shape {
     /** The block collection this TerminalShape represents. */
     private BlockCollection value;
 
-    private BlockManager blockManager = CoreRegistry.get(BlockManager.class);
-
     /**
-     * Instantiates a new TerminalShape with the given {@link org.terasology.world.block.Block}. This will generate the BlockCollection
-     * value by filling its dimension with the specific block type.
+     * Instantiates a new TerminalShape for the given {@link org.terasology.world.block.Block}. A new shape has no dimension yet, so the
+     * BlockCollection value is empty. Use a {@link org.terasology.grammar.logic.grammar.shapes.complex.SetRule} to fill a scope with a
+     * block type.
      *
      * @param blockType the block type for this terminal shape symbol
      */
     public TerminalShape(BlockUri blockType) {
         value = new BlockCollection();
-        for (int a = 0; a < dimension.x; a++) {
-            for (int b = 0; b < dimension.y; b++) {
-                for (int c = 0; c < dimension.z; c++) {
-                    Vector3i pos = new Vector3i(a, b, c);
-                    matrix.transformPoint(pos);
-                    value.setBlock(new Vector3i(pos.x, pos.y, pos.z), blockManager.getBlock(blockType));
-                }
-            }
-        }
     }
 
     /**
      * Instantiates a new TerminalShape with the specific BlockCollection. This can be used to define special BlockCollection for the
      * TerminalShape, such as pillars, doors, windows, ...
      *
-     * @param value the terminal shapes blocks
+     * @param value the terminal shapes blocks, in local coordinates - not modified afterwards
      */
     public TerminalShape(BlockCollection value) {
         this.value = value;
@@ -66,12 +60,38 @@ public class TerminalShape extends Shape {
      * By this method you can retrieve the TerminalShape's value as a BlockCollection. The BlockCollection can describe special
      * constructions (such as doors or pillars) or just a cuboid of the same block type.
      *
-     * @return the BlockCollection assigned to this shape
+     * @return the BlockCollection assigned to this shape, in local coordinates
      */
     public BlockCollection getValue() {
         return value;
     }
 
+    /**
+     * Writes the blocks of this terminal to the sink, transformed by the terminal's transform. The shared collection is not copied.
+     *
+     * @param sink the target for the blocks
+     */
+    public void writeTo(BlockSink sink) {
+        if (transform.equals(Transform.IDENTITY)) {
+            value.writeTo(sink);
+        } else {
+            value.writeTo(new TransformingBlockSink(sink, transform));
+        }
+    }
+
+    /**
+     * @return the blocks of this terminal in the parent's coordinates - the shared collection itself if the transform is the identity,
+     * a transformed copy otherwise
+     */
+    public BlockCollection derive() {
+        if (transform.equals(Transform.IDENTITY)) {
+            return value;
+        }
+        BlockCollection collection = new BlockCollection();
+        writeTo(collection);
+        return collection;
+    }
+
     /**
      * Checks if two TerminalShapes are equal. Two TerminalShapes are equal iff their values are the same.
      *
@@ -103,8 +123,8 @@ public class TerminalShape extends Shape {
     public Shape clone() {
         TerminalShape clone = new TerminalShape(value);
         clone.setActive(active);
-        clone.setMatrix(matrix);
-        clone.setDimension(dimension);
+        clone.setTransform(transform);
+        clone.setDimension(new Vector3i(dimension));
         return clone;
     }
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic.grammar.shapes;
+
+import org.terasology.math.geom.Matrix4i;
+import org.terasology.math.geom.Vector3i;
+
+/**
+ * The placement of a shape's scope: an axis aligned {@link Orientation} and an integer translation.
+ * <p/>
+ * A transform maps a position p of the shape's local coordinate system to {@code orientation * p + translation}. Transforms are
+ * immutable, so shapes can share them, and all operations only use table lookups and integer arithmetic.
+ */
+public final class Transform {
+
+    public static final Transform IDENTITY = new Transform(Orientation.IDENTITY, 0, 0, 0);
+
+    private final Orientation orientation;
+    private final int x;
+    private final int y;
+    private final int z;
+
+    public Transform(Orientation orientation, int x, int y, int z) {
+        if (orientation == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        this.orientation = orientation;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    /**
+     * Converts a matrix into a transform.
+     *
+     * @param matrix the matrix - its rotation part must be axis aligned
+     *
+     * @return the transform with the matrix' orientation and translation
+     *
+     * @throws IllegalArgumentException if the matrix does not describe an axis aligned rotation
+     */
+    public static Transform fromMatrix(Matrix4i matrix) {
+        Vector3i translation = matrix.getTranslation();
+        return new Transform(Orientation.fromMatrix(matrix), translation.x, translation.y, translation.z);
+    }
+
+    /**
+     * @return a new matrix describing the same transformation
+     */
+    public Matrix4i toMatrix() {
+        int[] values = new int[16];
+        orientation.writeTo(values);
+        values[3] = x;
+        values[7] = y;
+        values[11] = z;
+        values[15] = 1;
+        return new Matrix4i(values);
+    }
+
+    public Orientation getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return a new vector holding the translation
+     */
+    public Vector3i getTranslation() {
+        return new Vector3i(x, y, z);
+    }
+
+    public int getTranslationX() {
+        return x;
+    }
+
+    public int getTranslationY() {
+        return y;
+    }
+
+    public int getTranslationZ() {
+        return z;
+    }
+
+    /**
+     * @return a transform with the same orientation and the given translation
+     */
+    public Transform withTranslation(int tx, int ty, int tz) {
+        return new Transform(orientation, tx, ty, tz);
+    }
+
+    /**
+     * Adds an offset to the translation. Like {@link Matrix4i#translate(Vector3i)}, the offset is given in world coordinates, i.e., it is
+     * not rotated by the orientation.
+     *
+     * @return the moved transform
+     */
+    public Transform translate(int dx, int dy, int dz) {
+        if (dx == 0 && dy == 0 && dz == 0) {
+            return this;
+        }
+        return new Transform(orientation, x + dx, y + dy, z + dz);
+    }
+
+    /**
+     * Applies the given rotation in the local coordinate system, before this transform. The translation is not changed.
+     *
+     * @param rotation the rotation to apply first
+     *
+     * @return the rotated transform
+     */
+    public Transform rotate(Orientation rotation) {
+        return new Transform(orientation.compose(rotation), x, y, z);
+    }
+
+    /**
+     * Transforms a position of the local coordinate system into the parent's coordinate system.
+     *
+     * @param position the position to transform, in place
+     */
+    public void transformPoint(Vector3i position) {
+        position.set(transformX(position.x, position.y, position.z), transformY(position.x, position.y, position.z),
+                transformZ(position.x, position.y, position.z));
+    }
+
+    /**
+     * Rotates a direction of the local coordinate system into the parent's coordinate system, ignoring the translation.
+     *
+     * @param direction the direction to rotate
+     * @param result    the vector to store the result in - may be the same as {@code direction}
+     */
+    public void transformVector(Vector3i direction, Vector3i result) {
+        result.set(orientation.rotateX(direction.x, direction.y, direction.z), orientation.rotateY(direction.x, direction.y, direction.z),
+                orientation.rotateZ(direction.x, direction.y, direction.z));
+    }
+
+    public int transformX(int px, int py, int pz) {
+        return orientation.rotateX(px, py, pz) + x;
+    }
+
+    public int transformY(int px, int py, int pz) {
+        return orientation.rotateY(px, py, pz) + y;
+    }
+
+    public int transformZ(int px, int py, int pz) {
+        return orientation.rotateZ(px, py, pz) + z;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Transform)) {
+            return false;
+        }
+        Transform that = (Transform) o;
+        return orientation == that.orientation && x == that.x && y == that.y && z == that.z;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = orientation.getIndex();
+        result = 31 * result + x;
+        result = 31 * result + y;
+        result = 31 * result + z;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "Transform(" + orientation + ", " + x + ", " + y + ", " + z + ")";
+    }
+}
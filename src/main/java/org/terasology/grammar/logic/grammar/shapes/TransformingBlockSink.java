@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic.grammar.shapes;
+
+import org.terasology.grammar.world.block.BlockSink;
+import org.terasology.grammar.world.block.BoxFill;
+import org.terasology.math.Region3i;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+
+/**
+ * A sink that transforms the positions of the blocks written to it into the parent's coordinate system, and forwards them to another
+ * sink.
+ * <p/>
+ * The images of the local axes are computed once, so a single block costs a few integer operations and allocates nothing. As the
+ * rotation is axis aligned, box fills stay boxes.
+ */
+final class TransformingBlockSink implements BlockSink {
+
+    private final BlockSink target;
+
+    // the images of the local x, y and z axes, and the translation
+    private final int xx;
+    private final int xy;
+    private final int xz;
+    private final int yx;
+    private final int yy;
+    private final int yz;
+    private final int zx;
+    private final int zy;
+    private final int zz;
+    private final int tx;
+    private final int ty;
+    private final int tz;
+
+    /**
+     * @param target    the sink to forward the transformed blocks to
+     * @param transform the transform from local to parent coordinates
+     */
+    TransformingBlockSink(BlockSink target, Transform transform) {
+        this.target = target;
+        Orientation orientation = transform.getOrientation();
+        xx = orientation.rotateX(1, 0, 0);
+        xy = orientation.rotateY(1, 0, 0);
+        xz = orientation.rotateZ(1, 0, 0);
+        yx = orientation.rotateX(0, 1, 0);
+        yy = orientation.rotateY(0, 1, 0);
+        yz = orientation.rotateZ(0, 1, 0);
+        zx = orientation.rotateX(0, 0, 1);
+        zy = orientation.rotateY(0, 0, 1);
+        zz = orientation.rotateZ(0, 0, 1);
+        tx = transform.getTranslationX();
+        ty = transform.getTranslationY();
+        tz = transform.getTranslationZ();
+    }
+
+    @Override
+    public void setBlock(int x, int y, int z, Block block) {
+        target.setBlock(tx + x * xx + y * yx + z * zx,
+                ty + x * xy + y * yy + z * zy,
+                tz + x * xz + y * yz + z * zz, block);
+    }
+
+    @Override
+    public void fill(BoxFill box) {
+        Region3i region = box.getRegion();
+        int minX = region.minX();
+        int minY = region.minY();
+        int minZ = region.minZ();
+        int maxX = region.maxX();
+        int maxY = region.maxY();
+        int maxZ = region.maxZ();
+        // opposite corners stay opposite corners under an axis aligned rotation
+        int ax = tx + minX * xx + minY * yx + minZ * zx;
+        int ay = ty + minX * xy + minY * yy + minZ * zy;
+        int az = tz + minX * xz + minY * yz + minZ * zz;
+        int bx = tx + maxX * xx + maxY * yx + maxZ * zx;
+        int by = ty + maxX * xy + maxY * yy + maxZ * zy;
+        int bz = tz + maxX * xz + maxY * yz + maxZ * zz;
+        target.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(Math.min(ax, bx), Math.min(ay, by), Math.min(az, bz)),
+                new Vector3i(Math.max(ax, bx), Math.max(ay, by), Math.max(az, bz))), box.getBlock()));
+    }
+}
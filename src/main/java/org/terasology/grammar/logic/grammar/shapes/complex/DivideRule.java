@@ -16,7 +16,7 @@
 package org.terasology.grammar.logic.grammar.shapes.complex;
 
 import org.terasology.grammar.logic.grammar.shapes.Shape;
-import org.terasology.math.geom.Matrix4i;
+import org.terasology.grammar.logic.grammar.shapes.Transform;
 import org.terasology.math.geom.Vector3i;
 
 import java.util.ArrayList;
@@ -40,8 +40,8 @@ public class DivideRule extends ComplexRule {
     public Shape clone() {
         DivideRule clone = new DivideRule(args, direction, probability);
         clone.setActive(active);
-        clone.setMatrix(matrix);
-        clone.setDimension(dimension);
+        clone.setTransform(transform);
+        clone.setDimension(new Vector3i(dimension));
         return clone;
     }
 
@@ -96,7 +96,7 @@ public class DivideRule extends ComplexRule {
         //Vector3i newPos = position;
         int newSize;
         float divideFactor = 1;
-        Matrix4i m = new Matrix4i(matrix);
+        Transform t = transform;
 
         Vector3i translation = new Vector3i();
         for (DivideArg arg : args) {
@@ -117,34 +117,45 @@ public class DivideRule extends ComplexRule {
                 case X:
                     s.setDimension((dimension.x < 0) ? -newSize : newSize, dimension.y, dimension.z);
                     //m.translate(newSize, 0, 0);
-                    m.translate(translation);
-                    m.transform(new Vector3i((dimension.x < 0) ? -newSize : newSize, 0, 0), translation);
+                    t = t.translate(translation.x, translation.y, translation.z);
+                    translation.set((dimension.x < 0) ? -newSize : newSize, 0, 0);
+                    t.transformVector(translation, translation);
                     //m.setTranslation(translation);
                     //translation.add((dimension.x < 0) ? -newSize : newSize, 0, 0);
                     //translation.set((dimension.x < 0) ? -newSize : newSize, 0, 0);
                     break;
                 case Y:
                     s.setDimension(dimension.x, (dimension.y < 0) ? -newSize : newSize, dimension.z);
-                    m.translate(translation);
+                    t = t.translate(translation.x, translation.y, translation.z);
                     //translation.add(0, (dimension.y < 0) ? -newSize : newSize, 0);
-                    m.transform(new Vector3i(0, (dimension.y < 0) ? -newSize : newSize, 0), translation);
+                    translation.set(0, (dimension.y < 0) ? -newSize : newSize, 0);
+                    t.transformVector(translation, translation);
                     //m.translate(0, newSize, 0);
                     break;
                 case Z:
                     s.setDimension(dimension.x, dimension.y, (dimension.z < 0) ? -newSize : newSize);
-                    m.translate(translation);
+                    t = t.translate(translation.x, translation.y, translation.z);
                     //translation.add(0, 0, (dimension.z < 0) ? newSize : -newSize);
-                    m.transform(new Vector3i(0, 0, (dimension.z < 0) ? newSize : -newSize), translation);
+                    translation.set(0, 0, (dimension.z < 0) ? newSize : -newSize);
+                    t.transformVector(translation, translation);
                     //m.translate(0, 0, newSize);
                     break;
             }
-            s.setMatrix(new Matrix4i(m));
+            s.setTransform(t);
             // …and add the newly created shape symbol to the successor elements list.
             elements.add(s.clone());
         }
         return elements;
     }
 
+    public List<DivideArg> getArgs() {
+        return args;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
     public String toString() {
         StringBuilder builder = new StringBuilder();
         builder.append("divide ");
@@ -18,9 +18,11 @@ package org.terasology.grammar.logic.grammar.shapes.complex;
 import org.terasology.grammar.logic.grammar.shapes.Shape;
 import org.terasology.grammar.logic.grammar.shapes.TerminalShape;
 import org.terasology.grammar.world.block.BlockCollection;
-import org.terasology.math.geom.Matrix4i;
+import org.terasology.grammar.world.block.BlockPalette;
+import org.terasology.grammar.world.block.BoxFill;
 import org.terasology.math.geom.Vector3i;
 import org.terasology.registry.CoreRegistry;
+import org.terasology.world.block.Block;
 import org.terasology.world.block.BlockManager;
 import org.terasology.world.block.BlockUri;
 
@@ -37,7 +39,10 @@ public class SetRule extends ComplexRule {
     /** the AssetUri from the set command */
     private BlockUri uri;
 
-    private BlockManager blockManager = CoreRegistry.get(BlockManager.class);
+    /** The palette the block type is resolved in - null if the rule is not bound to a palette yet. */
+    private BlockPalette palette;
+    /** The index of the block type in the palette. */
+    private int paletteIndex = -1;
 
     /**
      * Init. a SetRule with the given block type and probability.
@@ -63,34 +68,58 @@ public class SetRule extends ComplexRule {
      */
     public SetRule(BlockUri uri) {
         this.uri = uri;
-        matrix.identity();
+    }
+
+    /**
+     * Returns a copy of this rule whose block type is looked up in the given palette.
+     *
+     * @param blockPalette the palette containing this rule's block type
+     *
+     * @return the bound copy of this rule
+     *
+     * @throws IllegalArgumentException if the palette does not contain the block type
+     */
+    public SetRule bind(BlockPalette blockPalette) {
+        int index = blockPalette.indexOf(uri);
+        if (index < 0) {
+            throw new IllegalArgumentException("Block '" + uri + "' is not part of the palette.");
+        }
+        SetRule bound = (SetRule) clone();
+        bound.palette = blockPalette;
+        bound.paletteIndex = index;
+        return bound;
+    }
+
+    public BlockUri getUri() {
+        return uri;
+    }
+
+    /**
+     * The block this rule sets. A bound rule looks the block up in its palette, an unbound rule asks the {@link BlockManager}.
+     *
+     * @return the block type of this rule
+     */
+    public Block getBlock() {
+        if (palette != null) {
+            return palette.get(paletteIndex);
+        }
+        return CoreRegistry.get(BlockManager.class).getBlock(uri);
     }
 
     /**
      * Constructs a new TerminalShape which is filled by blocks of the type specified by this SetRule. The resulting list contains exactly
      * one element.
+     * <p/>
+     * The terminal's collection holds a single {@link BoxFill} instead of single blocks.
      *
      * @return the resulting TerminalShape
      */
     public List<Shape> getElements() {
         BlockCollection collection = new BlockCollection();
-        for (int x = 0; x < Math.abs(dimension.x); x++) {
-            for (int y = 0; y < Math.abs(dimension.y); y++) {
-                for (int z = 0; z < Math.abs(dimension.z); z++) {
-                    // transforming the relative coordinate system back
-                    int newX = (dimension.x < 0) ? -x : x;
-                    int newY = (dimension.y < 0) ? -y : y;
-                    int newZ = (dimension.z < 0) ? z : -z;
-                    Vector3i pos = new Vector3i(newX, newY, newZ);
-                    matrix.transformPoint(pos);
-                    Vector3i blockPosition = new Vector3i(pos.x, pos.y, pos.z);
-                    collection.setBlock(blockPosition, blockManager.getBlock(uri));
-                }
-            }
-        }
+        collection.fill(new BoxFill(getScopeBounds(), getBlock()));
         //collection.setAttachPos(new BlockPosition(matrix.getTranslation().x, matrix.getTranslation().y, matrix.getTranslation().z));
         Shape retVal = new TerminalShape(collection);
-        retVal.setDimension(this.dimension);
+        retVal.setDimension(new Vector3i(dimension));
         return Arrays.asList(retVal);
     }
 
@@ -102,7 +131,9 @@ public class SetRule extends ComplexRule {
     public Shape clone() {
         SetRule clone = new SetRule(uri, probability);
         clone.setActive(active);
-        clone.setMatrix(new Matrix4i(matrix));
+        clone.palette = palette;
+        clone.paletteIndex = paletteIndex;
+        clone.setTransform(transform);
         clone.setDimension(new Vector3i(dimension));
         return clone;
     }
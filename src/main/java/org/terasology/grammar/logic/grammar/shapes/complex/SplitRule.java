@@ -15,8 +15,8 @@
  */
 package org.terasology.grammar.logic.grammar.shapes.complex;
 
+import org.terasology.grammar.logic.grammar.shapes.Orientation;
 import org.terasology.grammar.logic.grammar.shapes.Shape;
-import org.terasology.math.geom.Matrix4i;
 import org.terasology.math.geom.Vector3i;
 
 import java.util.ArrayList;
@@ -33,6 +33,11 @@ import java.util.List;
  */
 public class SplitRule extends ComplexRule {
 
+    /** The rotations of the walls around the y axis. */
+    private static final Orientation QUARTER_TURN = Orientation.rotationY(1);
+    private static final Orientation HALF_TURN = Orientation.rotationY(2);
+    private static final Orientation THREE_QUARTER_TURN = Orientation.rotationY(3);
+
     /** A list of the arguments of this SplitRule. Such an argument consists of a type and a shape. */
     List<SplitArg> args;
 
@@ -78,11 +83,13 @@ public class SplitRule extends ComplexRule {
     /**
      * Returns the inner part of a box (all walls, top and bottom are spared out).
      *
-     * @param shape the shape applied to the _split_ rule
+     * @param argShape the shape applied to the _split_ rule
      *
-     * @return the shape with proper position and dimension
+     * @return a copy of the shape with proper position and dimension
      */
-    private Shape getInnerElement(Shape shape) {
+    private Shape getInnerElement(Shape argShape) {
+        Shape shape = argShape.clone();
+        shape.setTransform(transform);
         // set sub-shape position according to the dimension
         shape.move(new Vector3i((dimension.x < 0) ? -1 : 1, (dimension.y < 0) ? -1 : 1, (dimension.z < 0) ? 1 : -1));
         // reduce sub-shape dimensions accordingly
@@ -110,11 +117,7 @@ public class SplitRule extends ComplexRule {
         int dz = dimension.z;
 
         // the list of shapes to return (the wall elements)
-        List<Shape> elements = new ArrayList<Shape>();
-
-        Matrix4i translation = Matrix4i.id();
-        Matrix4i m = new Matrix4i();
-        Vector3i d = new Vector3i();
+        List<Shape> elements = new ArrayList<Shape>(4);
         Shape s;
 
         // --------------------------------------------------------------
@@ -122,52 +125,40 @@ public class SplitRule extends ComplexRule {
         // --------------------------------------------------------------
         s = shape.clone();
         s.setDimension(dx, dy, 1);
-        s.setMatrix(new Matrix4i(matrix));
-        elements.add(s.clone());
+        s.setTransform(transform);
+        elements.add(s);
 
         // --------------------------------------------------------------
         // "right" wall
         // --------------------------------------------------------------
-        Shape r = shape.clone();
-        //s = shape.clone();
-        Matrix4i right = new Matrix4i(matrix);
-        right.translate((dx > 0) ? dx - 1 : -(dx - 1), 0, 0);      // Translation for new position
-        m.rotY((float) (Math.PI / 2f));       // apply rotation
-        right.mul(m);
-        //s.setMatrix(right);
-        r.setMatrix(right);
-        //s.setDimension(dz, dy, 1);
-        r.setDimension(dz, dy, 1);
-        //elements.add(s.clone());
-        elements.add(r);
+        s = shape.clone();
+        s.setTransform(transform.translate((dx > 0) ? dx - 1 : -(dx - 1), 0, 0).rotate(QUARTER_TURN));
+        s.setDimension(dz, dy, 1);
+        elements.add(s);
 
         // --------------------------------------------------------------
         // "back" wall
         // --------------------------------------------------------------
         s = shape.clone();
-        Matrix4i back = new Matrix4i(matrix);
-        back.translate((dx < 0) ? -(dx - 1) : dx - 1, 0, (dz > 0) ? -(dz - 1) : dz - 1);
-        m.rotY((float) (Math.PI));      // apply rotation
-        back.mul(m);
-        s.setMatrix(back);
+        s.setTransform(transform.translate((dx < 0) ? -(dx - 1) : dx - 1, 0, (dz > 0) ? -(dz - 1) : dz - 1).rotate(HALF_TURN));
         s.setDimension(dx, dy, 1);
-        elements.add(s.clone());
+        elements.add(s);
 
         // --------------------------------------------------------------
         // "left" wall
         // --------------------------------------------------------------
         s = shape.clone();
-        Matrix4i left = new Matrix4i(matrix);
-        left.translate(0, 0, (dz > 0) ? -(dz - 1) : dz - 1);
-        m.rotY((float) (3 * Math.PI) / 2);
-        left.mul(m);
-        s.setMatrix(left);
+        s.setTransform(transform.translate(0, 0, (dz > 0) ? -(dz - 1) : dz - 1).rotate(THREE_QUARTER_TURN));
         s.setDimension(dz, dy, 1);
-        elements.add(s.clone());
+        elements.add(s);
 
         return elements;
     }
 
+    public List<SplitArg> getArgs() {
+        return args;
+    }
+
     public String toString() {
         StringBuilder builder = new StringBuilder();
         builder.append("split ");
@@ -185,8 +176,8 @@ public class SplitRule extends ComplexRule {
     public Shape clone() {
         SplitRule clone = new SplitRule(args, probability);
         clone.setActive(active);
-        clone.setMatrix(matrix);
-        clone.setDimension(dimension);
+        clone.setTransform(transform);
+        clone.setDimension(new Vector3i(dimension));
         return clone;
     }
 }
@@ -15,53 +15,472 @@
  */
 package org.terasology.grammar.world.block;
 
-import com.google.common.collect.Maps;
+import org.terasology.math.Region3i;
 import org.terasology.math.geom.Vector3f;
 import org.terasology.math.geom.Vector3i;
 import org.terasology.world.block.Block;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Stream;
+import java.util.function.Predicate;
+
+/**
+ * A collection of blocks, e.g. a generated structure.
+ * <p/>
+ * Small and sparse collections store one map entry per block. Once a collection grows large and fills enough of its bounds, it
+ * switches to a {@link DenseBlockStorage dense storage} of palette indices, which takes about two bytes per position within the
+ * (section aligned) bounds. The switch happens automatically and is not visible to users of the collection.
+ * <p/>
+ * {@link BoxFill Box fills} are kept symbolically on top of the stored blocks, in the order they were added. They are written to other
+ * sinks as boxes, and only rasterized into the storage when the content of the collection is queried. Single blocks set while box fills
+ * are pending (e.g. the blocks of a prefab) are kept in order with them, so they do not rasterize the fills.
+ * <p/>
+ * Rasterizing modifies the collection, so a query on a collection with pending box fills is a write. Such a collection must not be
+ * read by several threads at once. Call {@link #rasterize()} before sharing a collection - afterwards, the queries only read it.
+ */
+public class BlockCollection implements BlockSink {
+
+    /** The number of blocks below which a collection always uses the sparse storage. */
+    static final int MIN_DENSE_SIZE = 4096;
+    /**
+     * The share of positions within the section aligned bounds that needs to be filled for the dense storage to pay off. A map entry
+     * costs about 80 bytes, a dense position two bytes.
+     */
+    static final double DENSE_FILL_RATIO = 1.0 / 32;
+
+    private BlockStorage storage = new SparseBlockStorage();
+    private boolean dense;
+    /** The size at which the fill ratio is checked next. */
+    private int nextDensityCheck = MIN_DENSE_SIZE;
+
+    private int minX = Integer.MAX_VALUE;
+    private int minY = Integer.MAX_VALUE;
+    private int minZ = Integer.MAX_VALUE;
+    private int maxX = Integer.MIN_VALUE;
+    private int maxY = Integer.MIN_VALUE;
+    private int maxZ = Integer.MIN_VALUE;
+
+    /** Box fills that are not rasterized yet. They are applied on top of the storage, in order. */
+    private final List<BoxFill> boxes = new ArrayList<BoxFill>();
+    /** The single blocks set after each pending box fill and before the next one, by box index - null if there are none. */
+    private final List<Map<Vector3i, Block>> blocksAfterBox = new ArrayList<Map<Vector3i, Block>>();
 
-public class BlockCollection {
-    private Map<Vector3i, Block> blocks;
     private Vector3i anchor = Vector3i.zero();
 
 
     public BlockCollection() {
-        this.blocks = Maps.newHashMap();
     }
 
+    /**
+     * @return a new, read-only map of all blocks of this collection
+     */
     public Map<Vector3i, Block> getBlocks() {
-        return Collections.unmodifiableMap(blocks);
+        rasterizeBoxes();
+        return storage.toMap();
     }
 
+    /**
+     * Returns a read-only view of this collection's blocks with all positions shifted by the given offset. The view does not copy the
+     * blocks, and reflects later changes to this collection.
+     *
+     * @param offset the offset to add to every position
+     *
+     * @return the translated view of the blocks
+     */
     public Map<Vector3i, Block> getBlocks(Vector3f offset) {
-        HashMap<Vector3i, Block> res = Maps.newHashMapWithExpectedSize(blocks.size());
-        blocks.entrySet().forEach(entry -> res.put(entry.getKey().add(new Vector3i(offset)), entry.getValue()));
-        return Collections.unmodifiableMap(res);
+        return new TranslatedBlockMap(this, new Vector3i(offset));
     }
 
+    /**
+     * @param position the block position within the collection
+     *
+     * @return the block at the given position, or null if the collection has no block there
+     */
+    public Block getBlock(Vector3i position) {
+        return getBlock(position.x, position.y, position.z);
+    }
+
+    /**
+     * @return the block at the given position, or null if the collection has no block there
+     */
+    public Block getBlock(int x, int y, int z) {
+        rasterizeBoxes();
+        return storage.get(x, y, z);
+    }
+
+    /**
+     * @return the number of blocks in this collection
+     */
+    public int size() {
+        rasterizeBoxes();
+        return storage.size();
+    }
+
+    /**
+     * @return whether this collection currently uses the dense storage
+     */
+    boolean isDense() {
+        rasterizeBoxes();
+        return dense;
+    }
 
     /**
      * Sets the block at the given position to the specfic block type.
-     * May override an existing entry without any further notice.
+     * May override an existing entry without any further notice. Pending box fills are not rasterized.
      *
-     * @param position the block position within the collection
-     * @param block    the block to set
+     * @param x     the x coordinate of the block within the collection
+     * @param y     the y coordinate of the block within the collection
+     * @param z     the z coordinate of the block within the collection
+     * @param block the block to set
+     */
+    @Override
+    public void setBlock(int x, int y, int z, Block block) {
+        if (block == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        if (boxes.isEmpty()) {
+            store(x, y, z, block);
+        } else {
+            pendingBlocks().put(new Vector3i(x, y, z), block);
+        }
+    }
+
+    /**
+     * Removes the block at the given position. The bounds of the collection are not shrunk.
+     * <p/>
+     * A removal cannot be passed on to other sinks, so pending box fills are rasterized if one of them contains the position.
+     *
+     * @return true if the collection had a block at the position
+     */
+    public boolean removeBlock(int x, int y, int z) {
+        for (BoxFill box : boxes) {
+            if (box.getRegion().encompasses(x, y, z)) {
+                rasterizeBoxes();
+                break;
+            }
+        }
+        boolean removed = storage.remove(x, y, z);
+        if (!boxes.isEmpty()) {
+            // no pending box contains the position, so the order of the writes does not matter
+            Vector3i position = new Vector3i(x, y, z);
+            for (Map<Vector3i, Block> blocks : blocksAfterBox) {
+                if (blocks != null && blocks.remove(position) != null) {
+                    removed = true;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the single blocks set after the last pending box fill
+     */
+    private Map<Vector3i, Block> pendingBlocks() {
+        int last = blocksAfterBox.size() - 1;
+        Map<Vector3i, Block> blocks = blocksAfterBox.get(last);
+        if (blocks == null) {
+            blocks = new HashMap<Vector3i, Block>();
+            blocksAfterBox.set(last, blocks);
+        }
+        return blocks;
+    }
+
+    /**
+     * Fills the given box with a single block type. The box is kept symbolically until the collection's content is queried.
+     *
+     * @param box the box to fill
      */
-    public void setBlock(Vector3i position, Block block) {
-        blocks.put(position, block);
+    @Override
+    public void fill(BoxFill box) {
+        if (!box.getRegion().isEmpty()) {
+            boxes.add(box);
+            blocksAfterBox.add(null);
+        }
+    }
+
+    /**
+     * Rasterizes all pending box fills into the storage. Until blocks are set or filled again, all queries then only read the
+     * collection, so it can be read by several threads at once.
+     */
+    public void rasterize() {
+        rasterizeBoxes();
+    }
+
+    /**
+     * Rasterizes all pending box fills, and the single blocks set in between, into the storage.
+     */
+    private void rasterizeBoxes() {
+        if (boxes.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < boxes.size(); i++) {
+            BoxFill box = boxes.get(i);
+            Region3i region = box.getRegion();
+            extendBounds(region.minX(), region.minY(), region.minZ());
+            extendBounds(region.maxX(), region.maxY(), region.maxZ());
+            // decide on the storage before filling, so large boxes never end up in the sparse storage
+            checkDensity(storage.size() + box.volume());
+            storage.fill(region, box.getBlock());
+            Map<Vector3i, Block> blocks = blocksAfterBox.get(i);
+            if (blocks != null) {
+                for (Map.Entry<Vector3i, Block> entry : blocks.entrySet()) {
+                    Vector3i position = entry.getKey();
+                    store(position.x, position.y, position.z, entry.getValue());
+                }
+            }
+        }
+        boxes.clear();
+        blocksAfterBox.clear();
+    }
+
+    private void store(int x, int y, int z, Block block) {
+        extendBounds(x, y, z);
+        storage.set(x, y, z, block);
+        checkDensity(storage.size());
+    }
+
+    private void extendBounds(int x, int y, int z) {
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        minZ = Math.min(minZ, z);
+        maxX = Math.max(maxX, x);
+        maxY = Math.max(maxY, y);
+        maxZ = Math.max(maxZ, z);
+    }
+
+    /**
+     * Switches to the dense storage if the given number of blocks fills enough of the current bounds.
+     *
+     * @param size the (expected) number of blocks
+     */
+    private void checkDensity(long size) {
+        if (!dense && size >= nextDensityCheck) {
+            nextDensityCheck = (int) Math.min(Integer.MAX_VALUE, size * 2);
+            if (size >= DENSE_FILL_RATIO * alignedVolume()) {
+                BlockStorage denseStorage = new DenseBlockStorage();
+                storage.forEach(denseStorage::set);
+                storage = denseStorage;
+                dense = true;
+            }
+        }
+    }
+
+    /**
+     * @return the volume of the bounds after aligning them to the sections of the dense storage
+     */
+    private double alignedVolume() {
+        return alignedLength(minX, maxX, DenseBlockStorage.SECTION_SIZE_X)
+                * alignedLength(minY, maxY, DenseBlockStorage.SECTION_SIZE_Y)
+                * alignedLength(minZ, maxZ, DenseBlockStorage.SECTION_SIZE_Z);
+    }
+
+    private static double alignedLength(int min, int max, int sectionSize) {
+        return (Math.floorDiv(max, sectionSize) - Math.floorDiv(min, sectionSize) + 1) * (double) sectionSize;
     }
 
     public void setAnchor(Vector3i anchor) {
         this.anchor = anchor;
     }
 
+    /**
+     * Copies all blocks of the given collections into this collection. Blocks of later collections override blocks of earlier ones
+     * (and of this collection) at the same position.
+     *
+     * @param other the collections to merge into this one
+     */
     public void merge(BlockCollection... other) {
-        Map<Vector3i, Block> m = Stream.of(other).map(BlockCollection::getBlocks).collect(HashMap::new, Map::putAll, Map::putAll);
-        this.blocks.putAll(m);
+        for (BlockCollection collection : other) {
+            collection.writeTo(this);
+        }
+    }
+
+    /**
+     * Writes all blocks of this collection to the given sink.
+     *
+     * @param sink the target for the blocks
+     */
+    public void writeTo(BlockSink sink) {
+        writeTo(sink, Vector3i.zero());
+    }
+
+    /**
+     * Writes all blocks of this collection to the given sink, moved by the given offset. Like {@link #writeTo(BlockSink)}, this does not
+     * modify the collection, so it may be called by several threads at once.
+     *
+     * @param sink   the target for the blocks
+     * @param offset the offset to add to every position
+     */
+    public void writeTo(BlockSink sink, Vector3i offset) {
+        int dx = offset.x;
+        int dy = offset.y;
+        int dz = offset.z;
+        storage.forEach((x, y, z, block) -> sink.setBlock(x + dx, y + dy, z + dz, block));
+        for (int i = 0; i < boxes.size(); i++) {
+            sink.fill(boxes.get(i).translate(dx, dy, dz));
+            Map<Vector3i, Block> blocks = blocksAfterBox.get(i);
+            if (blocks != null) {
+                for (Map.Entry<Vector3i, Block> entry : blocks.entrySet()) {
+                    Vector3i position = entry.getKey();
+                    sink.setBlock(position.x + dx, position.y + dy, position.z + dz, entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a copy of this collection with permuted and flipped axes, e.g. a rotated or mirrored building. The block at position
+     * {@code p} is moved to {@code (signs[0] * p[axes[0]], signs[1] * p[axes[1]], signs[2] * p[axes[2]])}.
+     * <p/>
+     * If the collection uses the dense storage and the permutation keeps the y axis (like all rotations about it do), the storage is
+     * copied section by section with a fixed index permutation. Otherwise, the blocks are copied one by one.
+     * Box fills stay symbolic. Like {@link #writeTo(BlockSink)}, this does not modify the collection.
+     *
+     * @param axes  the source axis of each target axis - a permutation of 0 (x), 1 (y) and 2 (z)
+     * @param signs 1 or -1 for each target axis
+     *
+     * @return the permuted copy
+     */
+    public BlockCollection permuted(int[] axes, int[] signs) {
+        if (axes == null || signs == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        if (axes.length != 3 || signs.length != 3 || axes[0] + axes[1] + axes[2] != 3
+                || axes[0] == axes[1] || axes[1] == axes[2] || axes[0] == axes[2]
+                || Math.abs(signs[0]) != 1 || Math.abs(signs[1]) != 1 || Math.abs(signs[2]) != 1) {
+            throw new IllegalArgumentException("Not a signed permutation of the axes.");
+        }
+        BlockCollection result = new BlockCollection();
+        BlockStorage permutedStorage = dense ? ((DenseBlockStorage) storage).permuted(axes, signs) : null;
+        if (permutedStorage != null) {
+            result.storage = permutedStorage;
+            result.dense = true;
+            if (storage.size() > 0) {
+                result.extendBounds(permute(axes[0], signs[0], minX, minY, minZ), permute(axes[1], signs[1], minX, minY, minZ),
+                        permute(axes[2], signs[2], minX, minY, minZ));
+                result.extendBounds(permute(axes[0], signs[0], maxX, maxY, maxZ), permute(axes[1], signs[1], maxX, maxY, maxZ),
+                        permute(axes[2], signs[2], maxX, maxY, maxZ));
+            }
+        } else {
+            storage.forEach((x, y, z, block) -> result.store(permute(axes[0], signs[0], x, y, z), permute(axes[1], signs[1], x, y, z),
+                    permute(axes[2], signs[2], x, y, z), block));
+        }
+        for (int i = 0; i < boxes.size(); i++) {
+            BoxFill box = boxes.get(i);
+            Region3i region = box.getRegion();
+            Vector3i min = new Vector3i(region.minX(), region.minY(), region.minZ());
+            Vector3i max = new Vector3i(region.maxX(), region.maxY(), region.maxZ());
+            Vector3i a = new Vector3i(permute(axes[0], signs[0], min.x, min.y, min.z), permute(axes[1], signs[1], min.x, min.y, min.z),
+                    permute(axes[2], signs[2], min.x, min.y, min.z));
+            Vector3i b = new Vector3i(permute(axes[0], signs[0], max.x, max.y, max.z), permute(axes[1], signs[1], max.x, max.y, max.z),
+                    permute(axes[2], signs[2], max.x, max.y, max.z));
+            result.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(Math.min(a.x, b.x), Math.min(a.y, b.y), Math.min(a.z, b.z)),
+                    new Vector3i(Math.max(a.x, b.x), Math.max(a.y, b.y), Math.max(a.z, b.z))), box.getBlock()));
+            Map<Vector3i, Block> blocks = blocksAfterBox.get(i);
+            if (blocks != null) {
+                for (Map.Entry<Vector3i, Block> entry : blocks.entrySet()) {
+                    Vector3i p = entry.getKey();
+                    Vector3i target = new Vector3i(permute(axes[0], signs[0], p.x, p.y, p.z), permute(axes[1], signs[1], p.x, p.y, p.z),
+                            permute(axes[2], signs[2], p.x, p.y, p.z));
+                    result.pendingBlocks().put(target, entry.getValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the coordinate of the target axis whose source axis and sign are given
+     */
+    private static int permute(int axis, int sign, int x, int y, int z) {
+        return sign * ((axis == 0) ? x : (axis == 1) ? y : z);
+    }
+
+    /**
+     * @return a cursor over all blocks of this collection
+     */
+    BlockCursor cursor() {
+        rasterizeBoxes();
+        return storage.cursor();
+    }
+
+    /**
+     * Calls the given consumer for every block of this collection, in no particular order.
+     *
+     * @param consumer the callback for the blocks
+     */
+    public void forEach(BlockConsumer consumer) {
+        rasterizeBoxes();
+        storage.forEach(consumer);
+    }
+
+    /**
+     * Calls the given consumer for every block of this collection within the region, in no particular order. Only the part of the
+     * storage that overlaps the region is visited.
+     *
+     * @param region   the region to visit - not null
+     * @param consumer the callback for the blocks
+     */
+    public void forEach(Region3i region, BlockConsumer consumer) {
+        if (region == null || consumer == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        rasterizeBoxes();
+        storage.forEach(region, consumer);
+    }
+
+    /**
+     * Calls one of two consumers for every block of this collection within the region, depending on whether all six neighbours of the
+     * block are opaque blocks of this collection.
+     *
+     * @see HiddenBlockCuller
+     */
+    void forEach(Region3i region, Predicate<Block> opaque, BlockConsumer exposed, BlockConsumer hidden) {
+        rasterizeBoxes();
+        storage.forEach(region, opaque, exposed, hidden);
+    }
+
+    /**
+     * @return a region containing all blocks of this collection - it is not shrunk when blocks are removed
+     */
+    Region3i getBounds() {
+        rasterizeBoxes();
+        if (minX > maxX) {
+            return Region3i.EMPTY;
+        }
+        return Region3i.createFromMinMax(new Vector3i(minX, minY, minZ), new Vector3i(maxX, maxY, maxZ));
+    }
+
+    /**
+     * Two block collections are equal if they contain the same blocks at the same positions, regardless of their storage.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof BlockCollection)) {
+            return false;
+        }
+        BlockCollection other = (BlockCollection) obj;
+        if (size() != other.size()) {
+            return false;
+        }
+        boolean[] equal = {true};
+        storage.forEach((x, y, z, block) -> {
+            if (equal[0] && !block.equals(other.getBlock(x, y, z))) {
+                equal[0] = false;
+            }
+        });
+        return equal[0];
+    }
+
+    @Override
+    public int hashCode() {
+        rasterizeBoxes();
+        int[] hash = {0};
+        storage.forEach((x, y, z, block) -> hash[0] += ((x * 31 + y) * 31 + z) ^ block.hashCode());
+        return hash[0];
     }
 }
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.block;
+
+import org.terasology.world.block.Block;
+
+/**
+ * A callback for iterating over the blocks of a {@link BlockCollection} without allocating a position object per block.
+ */
+@FunctionalInterface
+public interface BlockConsumer {
+
+    /**
+     * Called once for every block.
+     *
+     * @param x     the x coordinate of the block
+     * @param y     the y coordinate of the block
+     * @param z     the z coordinate of the block
+     * @param block the block at the position
+     */
+    void accept(int x, int y, int z, Block block);
+}
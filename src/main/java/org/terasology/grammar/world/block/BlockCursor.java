@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.block;
+
+import org.terasology.world.block.Block;
+
+/**
+ * An external iterator over the blocks of a {@link BlockStorage}. The cursor starts before the first block; the accessors are only
+ * valid after {@link #next()} returned true.
+ */
+interface BlockCursor {
+
+    /**
+     * Moves the cursor to the next block.
+     *
+     * @return false if there are no more blocks
+     */
+    boolean next();
+
+    int x();
+
+    int y();
+
+    int z();
+
+    Block block();
+}
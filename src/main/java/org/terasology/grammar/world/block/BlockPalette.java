@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.block;
+
+import org.terasology.registry.CoreRegistry;
+import org.terasology.world.block.Block;
+import org.terasology.world.block.BlockManager;
+import org.terasology.world.block.BlockUri;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * An immutable table of resolved blocks, indexed by small integers.
+ * <p/>
+ * A palette resolves every {@link BlockUri} once when it is created. Users of the palette (e.g. the rules of a compiled grammar) only
+ * keep the index of a block, and look the block up in constant time.
+ */
+public final class BlockPalette {
+
+    private final BlockUri[] uris;
+    private final Block[] blocks;
+    private final Map<BlockUri, Integer> indices;
+
+    private BlockPalette(BlockUri[] uris, Block[] blocks, Map<BlockUri, Integer> indices) {
+        this.uris = uris;
+        this.blocks = blocks;
+        this.indices = indices;
+    }
+
+    /**
+     * Resolves the given block URIs with the {@link BlockManager} of the {@link CoreRegistry}.
+     *
+     * @param uris the URIs to resolve - duplicates are removed, the order of the first occurrences is kept
+     *
+     * @return the resolved palette
+     */
+    public static BlockPalette resolve(Collection<BlockUri> uris) {
+        BlockManager blockManager = CoreRegistry.get(BlockManager.class);
+        if (blockManager == null) {
+            throw new IllegalStateException("No BlockManager available to resolve blocks.");
+        }
+        return resolve(uris, blockManager::getBlock);
+    }
+
+    /**
+     * Resolves the given block URIs.
+     *
+     * @param uris     the URIs to resolve - duplicates are removed, the order of the first occurrences is kept
+     * @param resolver the function looking up the block for a URI
+     *
+     * @return the resolved palette
+     *
+     * @throws IllegalArgumentException if a URI cannot be resolved
+     */
+    public static BlockPalette resolve(Collection<BlockUri> uris, Function<BlockUri, Block> resolver) {
+        BlockUri[] distinct = new LinkedHashSet<BlockUri>(uris).toArray(new BlockUri[0]);
+        Block[] blocks = new Block[distinct.length];
+        Map<BlockUri, Integer> indices = new HashMap<BlockUri, Integer>(distinct.length * 2);
+        for (int i = 0; i < distinct.length; i++) {
+            blocks[i] = resolver.apply(distinct[i]);
+            if (blocks[i] == null) {
+                throw new IllegalArgumentException("Unknown block '" + distinct[i] + "'.");
+            }
+            indices.put(distinct[i], i);
+        }
+        return new BlockPalette(distinct, blocks, indices);
+    }
+
+    /**
+     * @param uri the block URI
+     *
+     * @return the index of the URI in this palette, or -1 if it is not part of the palette
+     */
+    public int indexOf(BlockUri uri) {
+        Integer index = indices.get(uri);
+        return (index != null) ? index : -1;
+    }
+
+    public Block get(int index) {
+        return blocks[index];
+    }
+
+    public BlockUri getUri(int index) {
+        return uris[index];
+    }
+
+    public int size() {
+        return blocks.length;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.block;
+
+import org.terasology.math.Region3i;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+
+/**
+ * A target the blocks of a generated structure are written to.
+ * <p/>
+ * Blocks are written in derivation order. If a position is written more than once, the last write wins. This also holds for
+ * {@link #fill(BoxFill) box fills}.
+ */
+public interface BlockSink {
+
+    /**
+     * Sets the block at the given position. May override an earlier write to the same position.
+     *
+     * @param x     the x coordinate of the block
+     * @param y     the y coordinate of the block
+     * @param z     the z coordinate of the block
+     * @param block the block to set
+     */
+    void setBlock(int x, int y, int z, Block block);
+
+    /**
+     * Sets the block at the given position. May override an earlier write to the same position.
+     *
+     * @param position the block position - the sink must not keep a reference to it
+     * @param block    the block to set
+     */
+    default void setBlock(Vector3i position, Block block) {
+        setBlock(position.x, position.y, position.z, block);
+    }
+
+    /**
+     * Fills a box with a single block type. Sinks that can store boxes symbolically should override this; by default, the box is
+     * written block by block.
+     *
+     * @param box the box to fill
+     */
+    default void fill(BoxFill box) {
+        Region3i region = box.getRegion();
+        if (region.isEmpty()) {
+            return;
+        }
+        Block block = box.getBlock();
+        for (int y = region.minY(); y <= region.maxY(); y++) {
+            for (int z = region.minZ(); z <= region.maxZ(); z++) {
+                for (int x = region.minX(); x <= region.maxX(); x++) {
+                    setBlock(x, y, z, block);
+                }
+            }
+        }
+    }
+}
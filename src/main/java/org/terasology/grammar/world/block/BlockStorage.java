@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.block;
+
+import org.terasology.math.Region3i;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * The storage backend of a {@link BlockCollection}.
+ */
+interface BlockStorage {
+
+    /**
+     * @return the block at the given position, or null if no block is set there
+     */
+    Block get(int x, int y, int z);
+
+    /**
+     * Sets the block at the given position, overriding any existing entry.
+     *
+     * @param block the block to set - not null
+     */
+    void set(int x, int y, int z, Block block);
+
+    /**
+     * Sets all positions of the region to the given block, overriding any existing entries.
+     *
+     * @param region the region to fill - not empty
+     * @param block  the block to set - not null
+     */
+    void fill(Region3i region, Block block);
+
+    /**
+     * Removes the block at the given position, if any.
+     *
+     * @return true if a block was removed
+     */
+    boolean remove(int x, int y, int z);
+
+    /**
+     * @return the number of positions a block is set at
+     */
+    int size();
+
+    /**
+     * Calls the consumer for every block, in no particular order.
+     *
+     * @param consumer the callback for the blocks
+     */
+    void forEach(BlockConsumer consumer);
+
+    /**
+     * Calls the consumer for every block within the region, in no particular order.
+     *
+     * @param region   the region to visit
+     * @param consumer the callback for the blocks
+     */
+    void forEach(Region3i region, BlockConsumer consumer);
+
+    /**
+     * Calls one of two consumers for every block within the region, depending on whether the block is hidden: a block is hidden if
+     * all six neighbours are opaque blocks of this storage. The neighbours may lie outside of the region.
+     *
+     * @param region  the region to visit
+     * @param opaque  decides whether a block hides its neighbours
+     * @param exposed the callback for blocks that are not hidden
+     * @param hidden  the callback for hidden blocks
+     */
+    void forEach(Region3i region, Predicate<Block> opaque, BlockConsumer exposed, BlockConsumer hidden);
+
+    /**
+     * @return a cursor over all blocks, in the same order as {@link #forEach(BlockConsumer)}
+     */
+    BlockCursor cursor();
+
+    /**
+     * @return a new, read-only map of all blocks
+     */
+    Map<Vector3i, Block> toMap();
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.block;
+
+import org.terasology.math.Region3i;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+
+/**
+ * An axis aligned box of blocks of the same type - the symbolic form of a solid fill.
+ * <p/>
+ * A box fill is immutable. It is only rasterized to single blocks when a {@link BlockSink} needs them.
+ */
+public final class BoxFill {
+
+    private final Region3i region;
+    private final Block block;
+
+    /**
+     * @param region the region to fill - not null
+     * @param block  the block to fill the region with - not null
+     */
+    public BoxFill(Region3i region, Block block) {
+        if (region == null || block == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        this.region = region;
+        this.block = block;
+    }
+
+    public Region3i getRegion() {
+        return region;
+    }
+
+    public Block getBlock() {
+        return block;
+    }
+
+    /**
+     * @return the number of block positions covered by this box
+     */
+    public long volume() {
+        return region.isEmpty() ? 0 : (long) region.sizeX() * region.sizeY() * region.sizeZ();
+    }
+
+    /**
+     * @return a box fill with the same block, moved by the given offset
+     */
+    public BoxFill translate(int dx, int dy, int dz) {
+        if (region.isEmpty()) {
+            return this;
+        }
+        Vector3i min = new Vector3i(region.minX() + dx, region.minY() + dy, region.minZ() + dz);
+        Vector3i max = new Vector3i(region.maxX() + dx, region.maxY() + dy, region.maxZ() + dz);
+        return new BoxFill(Region3i.createFromMinMax(min, max), block);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BoxFill)) {
+            return false;
+        }
+        BoxFill that = (BoxFill) o;
+        return region.equals(that.region) && block.equals(that.block);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * region.hashCode() + block.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "Fill(" + region + ", " + block + ")";
+    }
+}
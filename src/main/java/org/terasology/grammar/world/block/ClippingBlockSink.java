@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.block;
+
+import org.terasology.math.Region3i;
+import org.terasology.world.block.Block;
+
+/**
+ * A sink that forwards only the blocks inside a region to another sink. Box fills are cut to the region, so they stay symbolic.
+ */
+public final class ClippingBlockSink implements BlockSink {
+
+    private final BlockSink target;
+    private final Region3i region;
+
+    /**
+     * @param target the sink to forward the blocks to - not null
+     * @param region the region to keep - not null
+     */
+    public ClippingBlockSink(BlockSink target, Region3i region) {
+        if (target == null || region == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        this.target = target;
+        this.region = region;
+    }
+
+    @Override
+    public void setBlock(int x, int y, int z, Block block) {
+        if (region.encompasses(x, y, z)) {
+            target.setBlock(x, y, z, block);
+        }
+    }
+
+    @Override
+    public void fill(BoxFill box) {
+        if (!intersects(box.getRegion(), region)) {
+            return;
+        }
+        Region3i clipped = box.getRegion().intersect(region);
+        if (!clipped.isEmpty()) {
+            target.fill(new BoxFill(clipped, box.getBlock()));
+        }
+    }
+
+    public Region3i getRegion() {
+        return region;
+    }
+
+    /**
+     * Tests whether two regions share at least one block, without creating their intersection.
+     *
+     * @return true if both regions are not empty and overlap
+     */
+    public static boolean intersects(Region3i a, Region3i b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return false;
+        }
+        return a.minX() <= b.maxX() && b.minX() <= a.maxX()
+                && a.minY() <= b.maxY() && b.minY() <= a.maxY()
+                && a.minZ() <= b.maxZ() && b.minZ() <= a.maxZ();
+    }
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.block;
+
+import com.google.common.collect.Maps;
+import org.terasology.math.Region3i;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+import org.terasology.world.chunks.ChunkConstants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * A block storage for densely filled structures.
+ * <p/>
+ * The blocks are stored as 16 bit indices into a palette of the distinct blocks, grouped into chunk-sized sections. Sections are only
+ * allocated once a block is set in them, and the grid of sections grows with the bounds of the structure. Index 0 marks a position
+ * without block.
+ */
+class DenseBlockStorage implements BlockStorage {
+
+    static final int SECTION_SIZE_X = ChunkConstants.SIZE_X;
+    static final int SECTION_SIZE_Y = ChunkConstants.SIZE_Y;
+    static final int SECTION_SIZE_Z = ChunkConstants.SIZE_Z;
+    static final int SECTION_VOLUME = SECTION_SIZE_X * SECTION_SIZE_Y * SECTION_SIZE_Z;
+
+    private static final int POWER_X = ChunkConstants.POWER_X;
+    private static final int POWER_Y = ChunkConstants.POWER_Y;
+    private static final int POWER_Z = ChunkConstants.POWER_Z;
+
+    /** The index distance of neighbouring voxels along z and y within a section. */
+    private static final int STRIDE_Z = SECTION_SIZE_X;
+    private static final int STRIDE_Y = SECTION_SIZE_X * SECTION_SIZE_Z;
+
+    /** The largest palette index a (unsigned) short can hold. */
+    private static final int MAX_PALETTE_SIZE = 0xFFFF;
+
+    /** The distinct blocks of the structure - index 0 is reserved for "no block". */
+    private final List<Block> palette = new ArrayList<Block>();
+    private final Map<Block, Integer> paletteIndices = Maps.newHashMap();
+
+    /** The sections, x-major within z within y, or null where no block was set yet. */
+    private short[][] sections = new short[0][];
+    /** The section coordinates of the first section in the grid. */
+    private int minSectionX;
+    private int minSectionY;
+    private int minSectionZ;
+    /** The grid size, in sections. */
+    private int sectionsX;
+    private int sectionsY;
+    private int sectionsZ;
+
+    private int size;
+
+    DenseBlockStorage() {
+        palette.add(null);
+    }
+
+    @Override
+    public Block get(int x, int y, int z) {
+        int index = sectionIndex(x >> POWER_X, y >> POWER_Y, z >> POWER_Z);
+        if (index < 0 || sections[index] == null) {
+            return null;
+        }
+        return palette.get(sections[index][voxelIndex(x, y, z)] & 0xFFFF);
+    }
+
+    @Override
+    public void set(int x, int y, int z, Block block) {
+        short[] section = getOrCreateSection(x >> POWER_X, y >> POWER_Y, z >> POWER_Z);
+        int voxel = voxelIndex(x, y, z);
+        if (section[voxel] == 0) {
+            size++;
+        }
+        section[voxel] = (short) paletteIndex(block);
+    }
+
+    /**
+     * Fills the region row by row. Each row is split at the section borders, and every part is filled with a single array operation.
+     */
+    @Override
+    public void fill(Region3i region, Block block) {
+        short value = (short) paletteIndex(block);
+        for (int y = region.minY(); y <= region.maxY(); y++) {
+            for (int z = region.minZ(); z <= region.maxZ(); z++) {
+                int x = region.minX();
+                while (x <= region.maxX()) {
+                    short[] section = getOrCreateSection(x >> POWER_X, y >> POWER_Y, z >> POWER_Z);
+                    int sectionEnd = ((x >> POWER_X) + 1) << POWER_X;
+                    int end = Math.min(region.maxX() + 1, sectionEnd);
+                    int from = voxelIndex(x, y, z);
+                    int to = from + (end - x);
+                    for (int i = from; i < to; i++) {
+                        if (section[i] == 0) {
+                            size++;
+                        }
+                    }
+                    Arrays.fill(section, from, to, value);
+                    x = end;
+                }
+            }
+        }
+    }
+
+    /**
+     * Clears the position. The section stays allocated, even if it is empty afterwards.
+     */
+    @Override
+    public boolean remove(int x, int y, int z) {
+        int index = sectionIndex(x >> POWER_X, y >> POWER_Y, z >> POWER_Z);
+        if (index < 0 || sections[index] == null) {
+            return false;
+        }
+        short[] section = sections[index];
+        int voxel = voxelIndex(x, y, z);
+        if (section[voxel] == 0) {
+            return false;
+        }
+        section[voxel] = 0;
+        size--;
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(BlockConsumer consumer) {
+        for (int sy = 0; sy < sectionsY; sy++) {
+            for (int sz = 0; sz < sectionsZ; sz++) {
+                for (int sx = 0; sx < sectionsX; sx++) {
+                    short[] section = sections[(sy * sectionsZ + sz) * sectionsX + sx];
+                    if (section == null) {
+                        continue;
+                    }
+                    int baseX = (minSectionX + sx) << POWER_X;
+                    int baseY = (minSectionY + sy) << POWER_Y;
+                    int baseZ = (minSectionZ + sz) << POWER_Z;
+                    for (int i = 0; i < SECTION_VOLUME; i++) {
+                        int value = section[i] & 0xFFFF;
+                        if (value != 0) {
+                            consumer.accept(baseX + (i & (SECTION_SIZE_X - 1)),
+                                    baseY + (i >> (POWER_X + POWER_Z)),
+                                    baseZ + ((i >> POWER_X) & (SECTION_SIZE_Z - 1)),
+                                    palette.get(value));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Visits only the allocated sections that intersect the region, and within a section only the rows inside the region.
+     */
+    @Override
+    public void forEach(Region3i region, BlockConsumer consumer) {
+        forEachSection(region, (section, fromX, toX, fromY, toY, fromZ, toZ) -> {
+            for (int y = fromY; y <= toY; y++) {
+                for (int z = fromZ; z <= toZ; z++) {
+                    int row = voxelIndex(fromX, y, z) - fromX;
+                    for (int x = fromX; x <= toX; x++) {
+                        int value = section[row + x] & 0xFFFF;
+                        if (value != 0) {
+                            consumer.accept(x, y, z, palette.get(value));
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Calls the visitor for every allocated section that intersects the region, with the part of the region inside the section.
+     */
+    private void forEachSection(Region3i region, SectionVisitor visitor) {
+        if (region.isEmpty()) {
+            return;
+        }
+        int fromSX = Math.max(region.minX() >> POWER_X, minSectionX);
+        int fromSY = Math.max(region.minY() >> POWER_Y, minSectionY);
+        int fromSZ = Math.max(region.minZ() >> POWER_Z, minSectionZ);
+        int toSX = Math.min(region.maxX() >> POWER_X, minSectionX + sectionsX - 1);
+        int toSY = Math.min(region.maxY() >> POWER_Y, minSectionY + sectionsY - 1);
+        int toSZ = Math.min(region.maxZ() >> POWER_Z, minSectionZ + sectionsZ - 1);
+        for (int sy = fromSY; sy <= toSY; sy++) {
+            for (int sz = fromSZ; sz <= toSZ; sz++) {
+                for (int sx = fromSX; sx <= toSX; sx++) {
+                    short[] section = sections[sectionIndex(sx, sy, sz)];
+                    if (section != null) {
+                        visitor.visit(section,
+                                Math.max(region.minX(), sx << POWER_X), Math.min(region.maxX(), ((sx + 1) << POWER_X) - 1),
+                                Math.max(region.minY(), sy << POWER_Y), Math.min(region.maxY(), ((sy + 1) << POWER_Y) - 1),
+                                Math.max(region.minZ(), sz << POWER_Z), Math.min(region.maxZ(), ((sz + 1) << POWER_Z) - 1));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decides opacity once per palette entry. Within a section, the neighbours of a voxel are found by index arithmetic - only the
+     * neighbours across a section border are looked up in the grid.
+     */
+    @Override
+    public void forEach(Region3i region, Predicate<Block> opaque, BlockConsumer exposed, BlockConsumer hidden) {
+        boolean[] opaqueIndices = new boolean[palette.size()];
+        for (int i = 1; i < opaqueIndices.length; i++) {
+            opaqueIndices[i] = opaque.test(palette.get(i));
+        }
+        forEachSection(region, (section, fromX, toX, fromY, toY, fromZ, toZ) -> {
+            for (int y = fromY; y <= toY; y++) {
+                boolean bottom = (y & (SECTION_SIZE_Y - 1)) == 0;
+                boolean top = (y & (SECTION_SIZE_Y - 1)) == SECTION_SIZE_Y - 1;
+                for (int z = fromZ; z <= toZ; z++) {
+                    boolean front = (z & (SECTION_SIZE_Z - 1)) == 0;
+                    boolean back = (z & (SECTION_SIZE_Z - 1)) == SECTION_SIZE_Z - 1;
+                    int row = voxelIndex(fromX, y, z) - fromX;
+                    for (int x = fromX; x <= toX; x++) {
+                        int i = row + x;
+                        int value = section[i] & 0xFFFF;
+                        if (value == 0) {
+                            continue;
+                        }
+                        boolean left = (x & (SECTION_SIZE_X - 1)) == 0;
+                        boolean right = (x & (SECTION_SIZE_X - 1)) == SECTION_SIZE_X - 1;
+                        boolean isHidden = (left ? isOpaque(opaqueIndices, x - 1, y, z) : opaqueIndices[section[i - 1] & 0xFFFF])
+                                && (right ? isOpaque(opaqueIndices, x + 1, y, z) : opaqueIndices[section[i + 1] & 0xFFFF])
+                                && (front ? isOpaque(opaqueIndices, x, y, z - 1) : opaqueIndices[section[i - STRIDE_Z] & 0xFFFF])
+                                && (back ? isOpaque(opaqueIndices, x, y, z + 1) : opaqueIndices[section[i + STRIDE_Z] & 0xFFFF])
+                                && (bottom ? isOpaque(opaqueIndices, x, y - 1, z) : opaqueIndices[section[i - STRIDE_Y] & 0xFFFF])
+                                && (top ? isOpaque(opaqueIndices, x, y + 1, z) : opaqueIndices[section[i + STRIDE_Y] & 0xFFFF]);
+                        (isHidden ? hidden : exposed).accept(x, y, z, palette.get(value));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if the block at the position is opaque - false if there is no block
+     */
+    private boolean isOpaque(boolean[] opaqueIndices, int x, int y, int z) {
+        int index = sectionIndex(x >> POWER_X, y >> POWER_Y, z >> POWER_Z);
+        return index >= 0 && sections[index] != null && opaqueIndices[sections[index][voxelIndex(x, y, z)] & 0xFFFF];
+    }
+
+    @Override
+    public BlockCursor cursor() {
+        return new BlockCursor() {
+            private int sectionIndex;
+            /** The index of the current voxel within the current section, -1 before the first voxel of a section. */
+            private int voxel = -1;
+            private short[] section = findSection();
+
+            private short[] findSection() {
+                while (sectionIndex < sections.length && sections[sectionIndex] == null) {
+                    sectionIndex++;
+                }
+                return (sectionIndex < sections.length) ? sections[sectionIndex] : null;
+            }
+
+            @Override
+            public boolean next() {
+                while (section != null) {
+                    while (++voxel < SECTION_VOLUME) {
+                        if (section[voxel] != 0) {
+                            return true;
+                        }
+                    }
+                    sectionIndex++;
+                    voxel = -1;
+                    section = findSection();
+                }
+                return false;
+            }
+
+            @Override
+            public int x() {
+                int sx = sectionIndex % sectionsX;
+                return ((minSectionX + sx) << POWER_X) + (voxel & (SECTION_SIZE_X - 1));
+            }
+
+            @Override
+            public int y() {
+                int sy = sectionIndex / (sectionsX * sectionsZ);
+                return ((minSectionY + sy) << POWER_Y) + (voxel >> (POWER_X + POWER_Z));
+            }
+
+            @Override
+            public int z() {
+                int sz = (sectionIndex / sectionsX) % sectionsZ;
+                return ((minSectionZ + sz) << POWER_Z) + ((voxel >> POWER_X) & (SECTION_SIZE_Z - 1));
+            }
+
+            @Override
+            public Block block() {
+                return palette.get(section[voxel] & 0xFFFF);
+            }
+        };
+    }
+
+    /**
+     * Creates a copy with permuted and flipped axes, see {@link BlockCollection#permuted(int[], int[])}. The voxels of a section are
+     * moved by an index permutation, so no block is looked up. Without flipped axes, a section is mapped onto a single section. A flipped
+     * axis maps position {@code s * size + o} to {@code -s * size - o}: the slice {@code o = 0} ends up in section {@code -s}, all other
+     * slices in section {@code -s - 1}.
+     *
+     * @return the permuted copy, or null if the permutation does not map sections onto sections - i.e., if it moves the y axis, or swaps
+     * x and z while the sections are not square
+     */
+    DenseBlockStorage permuted(int[] axes, int[] signs) {
+        if (axes[1] != 1 || (axes[0] != 0 && SECTION_SIZE_X != SECTION_SIZE_Z)) {
+            return null;
+        }
+        DenseBlockStorage result = new DenseBlockStorage();
+        // the palette indices stay the same
+        result.palette.clear();
+        result.palette.addAll(palette);
+        result.paletteIndices.putAll(paletteIndices);
+        result.size = size;
+
+        // the target index of every voxel within its target section, and which flipped target axes move it to the upper section
+        int[] permutation = new int[SECTION_VOLUME];
+        byte[] carries = new byte[SECTION_VOLUME];
+        for (int i = 0; i < SECTION_VOLUME; i++) {
+            int x = select(axes[0], i & (SECTION_SIZE_X - 1), 0, (i >> POWER_X) & (SECTION_SIZE_Z - 1));
+            int y = i >> (POWER_X + POWER_Z);
+            int z = select(axes[2], i & (SECTION_SIZE_X - 1), 0, (i >> POWER_X) & (SECTION_SIZE_Z - 1));
+            permutation[i] = voxelIndex(signs[0] * x, signs[1] * y, signs[2] * z);
+            carries[i] = (byte) ((signs[0] < 0 && x == 0 ? 1 : 0) | (signs[1] < 0 && y == 0 ? 2 : 0) | (signs[2] < 0 && z == 0 ? 4 : 0));
+        }
+
+        short[][] targets = new short[8][];
+        for (int gy = 0; gy < sectionsY; gy++) {
+            for (int gz = 0; gz < sectionsZ; gz++) {
+                for (int gx = 0; gx < sectionsX; gx++) {
+                    short[] section = sections[(gy * sectionsZ + gz) * sectionsX + gx];
+                    if (section == null) {
+                        continue;
+                    }
+                    int sx = select(axes[0], minSectionX + gx, 0, minSectionZ + gz);
+                    int sy = minSectionY + gy;
+                    int sz = select(axes[2], minSectionX + gx, 0, minSectionZ + gz);
+                    int targetX = (signs[0] < 0) ? -sx - 1 : sx;
+                    int targetY = (signs[1] < 0) ? -sy - 1 : sy;
+                    int targetZ = (signs[2] < 0) ? -sz - 1 : sz;
+                    Arrays.fill(targets, null);
+                    for (int i = 0; i < SECTION_VOLUME; i++) {
+                        short value = section[i];
+                        if (value == 0) {
+                            continue;
+                        }
+                        int carry = carries[i];
+                        short[] target = targets[carry];
+                        if (target == null) {
+                            target = result.getOrCreateSection(targetX + (carry & 1), targetY + ((carry >> 1) & 1), targetZ + (carry >> 2));
+                            targets[carry] = target;
+                        }
+                        target[permutation[i]] = value;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int select(int axis, int x, int y, int z) {
+        return (axis == 0) ? x : (axis == 1) ? y : z;
+    }
+
+    @Override
+    public Map<Vector3i, Block> toMap() {
+        Map<Vector3i, Block> result = Maps.newHashMapWithExpectedSize(size);
+        forEach((x, y, z, block) -> result.put(new Vector3i(x, y, z), block));
+        return Collections.unmodifiableMap(result);
+    }
+
+    private static int voxelIndex(int x, int y, int z) {
+        return ((y & (SECTION_SIZE_Y - 1)) << (POWER_X + POWER_Z))
+                | ((z & (SECTION_SIZE_Z - 1)) << POWER_X)
+                | (x & (SECTION_SIZE_X - 1));
+    }
+
+    /**
+     * @return the index of the section in the grid, or -1 if it lies outside of the grid
+     */
+    private int sectionIndex(int sx, int sy, int sz) {
+        int gx = sx - minSectionX;
+        int gy = sy - minSectionY;
+        int gz = sz - minSectionZ;
+        if (gx < 0 || gy < 0 || gz < 0 || gx >= sectionsX || gy >= sectionsY || gz >= sectionsZ) {
+            return -1;
+        }
+        return (gy * sectionsZ + gz) * sectionsX + gx;
+    }
+
+    private short[] getOrCreateSection(int sx, int sy, int sz) {
+        int index = sectionIndex(sx, sy, sz);
+        if (index < 0) {
+            growGrid(sx, sy, sz);
+            index = sectionIndex(sx, sy, sz);
+        }
+        short[] section = sections[index];
+        if (section == null) {
+            section = new short[SECTION_VOLUME];
+            sections[index] = section;
+        }
+        return section;
+    }
+
+    /**
+     * Grows the section grid to include the given section. The grid grows by at least half its size in the direction of the
+     * section, so a structure that is filled in one direction only triggers a logarithmic number of copies.
+     */
+    private void growGrid(int sx, int sy, int sz) {
+        int newMinX;
+        int newMinY;
+        int newMinZ;
+        int newMaxX;
+        int newMaxY;
+        int newMaxZ;
+        if (sections.length == 0) {
+            newMinX = newMaxX = sx;
+            newMinY = newMaxY = sy;
+            newMinZ = newMaxZ = sz;
+        } else {
+            newMinX = grow(minSectionX, sx, sectionsX, true);
+            newMinY = grow(minSectionY, sy, sectionsY, true);
+            newMinZ = grow(minSectionZ, sz, sectionsZ, true);
+            newMaxX = grow(minSectionX + sectionsX - 1, sx, sectionsX, false);
+            newMaxY = grow(minSectionY + sectionsY - 1, sy, sectionsY, false);
+            newMaxZ = grow(minSectionZ + sectionsZ - 1, sz, sectionsZ, false);
+        }
+        int newSizeX = newMaxX - newMinX + 1;
+        int newSizeY = newMaxY - newMinY + 1;
+        int newSizeZ = newMaxZ - newMinZ + 1;
+
+        short[][] grown = new short[newSizeX * newSizeY * newSizeZ][];
+        for (int gy = 0; gy < sectionsY; gy++) {
+            for (int gz = 0; gz < sectionsZ; gz++) {
+                for (int gx = 0; gx < sectionsX; gx++) {
+                    int target = ((gy + minSectionY - newMinY) * newSizeZ + (gz + minSectionZ - newMinZ)) * newSizeX
+                            + (gx + minSectionX - newMinX);
+                    grown[target] = sections[(gy * sectionsZ + gz) * sectionsX + gx];
+                }
+            }
+        }
+        sections = grown;
+        minSectionX = newMinX;
+        minSectionY = newMinY;
+        minSectionZ = newMinZ;
+        sectionsX = newSizeX;
+        sectionsY = newSizeY;
+        sectionsZ = newSizeZ;
+    }
+
+    private static int grow(int bound, int section, int currentSize, boolean lower) {
+        int step = Math.max(1, currentSize / 2);
+        if (lower) {
+            return (section < bound) ? Math.min(section, bound - step) : bound;
+        }
+        return (section > bound) ? Math.max(section, bound + step) : bound;
+    }
+
+    private int paletteIndex(Block block) {
+        Integer index = paletteIndices.get(block);
+        if (index == null) {
+            if (palette.size() > MAX_PALETTE_SIZE) {
+                throw new IllegalStateException("Too many distinct blocks for a dense block storage.");
+            }
+            index = palette.size();
+            palette.add(block);
+            paletteIndices.put(block, index);
+        }
+        return index;
+    }
+
+    /**
+     * Visits the part of a region inside a single section, given by inclusive bounds in block coordinates.
+     */
+    private interface SectionVisitor {
+        void visit(short[] section, int fromX, int toX, int fromY, int toY, int fromZ, int toZ);
+    }
+}
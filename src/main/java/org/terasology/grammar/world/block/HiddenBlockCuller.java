@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.block;
+
+import org.terasology.math.Region3i;
+import org.terasology.world.block.Block;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Finds the blocks of a collection that are enclosed on all six faces by opaque blocks of the same collection, e.g. the inside of solid
+ * foundations and thick walls. Such blocks can never be seen, so they are either dropped or replaced with a cheap fill block.
+ * <p/>
+ * Whether a block is hidden is decided on the collection as it is before culling, so culling one block never uncovers another. Dense
+ * collections are traversed section by section: opacity is decided once per distinct block, and the neighbours within a section are
+ * found by index arithmetic. Only neighbours across a section border are looked up.
+ * <p/>
+ * The {@link org.terasology.grammar.world.building.BlockPlacementSystem} culls each chunk of a building while it reads the chunk's
+ * blocks, see {@link #forEach(BlockCollection, Region3i, BlockConsumer)}.
+ * <p/>
+ * Dropping hidden blocks leaves whatever the world contains at their positions. Placed in the open, this is an enclosed air pocket:
+ * never visible, but its faces are meshed. Replacing them with a plain block avoids that and still saves blocks with expensive
+ * behaviour or rendering.
+ */
+public final class HiddenBlockCuller {
+
+    private final Predicate<Block> opaque;
+    private final Block fill;
+
+    /**
+     * Creates a culler that drops hidden blocks, treating all non-translucent blocks as opaque.
+     */
+    public HiddenBlockCuller() {
+        this(block -> !block.isTranslucent(), null);
+    }
+
+    /**
+     * @param opaque decides whether a block hides its neighbours - not null
+     * @param fill   the block hidden blocks are replaced with, or null to drop them
+     */
+    public HiddenBlockCuller(Predicate<Block> opaque, Block fill) {
+        if (opaque == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        this.opaque = opaque;
+        this.fill = fill;
+    }
+
+    /**
+     * @return the block hidden blocks are replaced with, or null if they are dropped
+     */
+    public Block getFill() {
+        return fill;
+    }
+
+    /**
+     * @return true if all six neighbours of the position are opaque blocks of the collection
+     */
+    public boolean isHidden(BlockCollection collection, int x, int y, int z) {
+        return isOpaque(collection.getBlock(x, y - 1, z))
+                && isOpaque(collection.getBlock(x, y + 1, z))
+                && isOpaque(collection.getBlock(x - 1, y, z))
+                && isOpaque(collection.getBlock(x + 1, y, z))
+                && isOpaque(collection.getBlock(x, y, z - 1))
+                && isOpaque(collection.getBlock(x, y, z + 1));
+    }
+
+    private boolean isOpaque(Block block) {
+        return block != null && opaque.test(block);
+    }
+
+    /**
+     * Calls the consumer for every block of the collection within the region, as it is after culling: hidden blocks are skipped or
+     * passed as the fill block. The collection is not modified.
+     *
+     * @param collection the collection to read - not null
+     * @param region     the region to read - not null
+     * @param consumer   the callback for the blocks
+     */
+    public void forEach(BlockCollection collection, Region3i region, BlockConsumer consumer) {
+        if (collection == null || region == null || consumer == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        BlockConsumer hidden = (fill == null) ? (x, y, z, block) -> { } : (x, y, z, block) -> consumer.accept(x, y, z, fill);
+        collection.forEach(region, opaque, consumer, hidden);
+    }
+
+    /**
+     * Drops or replaces all hidden blocks of the collection.
+     *
+     * @param collection the collection to cull - not null
+     *
+     * @return the number of dropped or replaced blocks
+     */
+    public int cull(BlockCollection collection) {
+        if (collection == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        // collect first, so the decisions are not affected by the blocks culled before
+        PositionList hidden = new PositionList();
+        collection.forEach(collection.getBounds(), opaque, (x, y, z, block) -> { }, (x, y, z, block) -> {
+            if (block != fill) {
+                hidden.add(x, y, z);
+            }
+        });
+        int[] positions = hidden.positions;
+        for (int i = 0; i < 3 * hidden.count; i += 3) {
+            if (fill == null) {
+                collection.removeBlock(positions[i], positions[i + 1], positions[i + 2]);
+            } else {
+                collection.setBlock(positions[i], positions[i + 1], positions[i + 2], fill);
+            }
+        }
+        return hidden.count;
+    }
+
+    /**
+     * A growing list of positions, stored as consecutive coordinate triples.
+     */
+    private static final class PositionList {
+        private int[] positions = new int[3 * 64];
+        private int count;
+
+        private void add(int x, int y, int z) {
+            if (3 * count == positions.length) {
+                positions = Arrays.copyOf(positions, positions.length * 2);
+            }
+            positions[3 * count] = x;
+            positions[3 * count + 1] = y;
+            positions[3 * count + 2] = z;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.block;
+
+import com.google.common.collect.Maps;
+import org.terasology.math.Region3i;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * A block storage for sparse structures.
+ * <p/>
+ * The positions are packed into {@code long} keys (21 bits per axis) and stored in an open addressing hash table with linear probing,
+ * so setting or looking up a block does not allocate. Positions with a coordinate outside of {@link #MIN_COORDINATE} to
+ * {@link #MAX_COORDINATE} do not fit into a key. They are kept in a separate map with full {@link Vector3i} keys, which is only
+ * created when such a position is set.
+ */
+class SparseBlockStorage implements BlockStorage {
+
+    /** The number of bits per coordinate in a packed key. */
+    private static final int BITS = 21;
+    private static final long MASK = (1L << BITS) - 1;
+    /** The smallest coordinate that can be packed. */
+    static final int MIN_COORDINATE = -(1 << (BITS - 1));
+    /** The largest coordinate that can be packed. */
+    static final int MAX_COORDINATE = (1 << (BITS - 1)) - 1;
+
+    /** Marks an empty slot - packed keys never have the sign bit set. */
+    private static final long EMPTY = -1L;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private Block[] values;
+    private int size;
+    /** The size at which the table grows. */
+    private int threshold;
+    /** The blocks at positions that cannot be packed - null until the first such block is set. */
+    private Map<Vector3i, Block> overflow;
+
+    SparseBlockStorage() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    @Override
+    public Block get(int x, int y, int z) {
+        if (!isPackable(x, y, z)) {
+            return (overflow != null) ? overflow.get(new Vector3i(x, y, z)) : null;
+        }
+        long key = pack(x, y, z);
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+            long current = keys[slot];
+            if (current == key) {
+                return values[slot];
+            } else if (current == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public void set(int x, int y, int z, Block block) {
+        if (!isPackable(x, y, z)) {
+            if (overflow == null) {
+                overflow = Maps.newHashMap();
+            }
+            overflow.put(new Vector3i(x, y, z), block);
+            return;
+        }
+        long key = pack(x, y, z);
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                values[slot] = block;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = block;
+        if (++size >= threshold) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    @Override
+    public void fill(Region3i region, Block block) {
+        for (int y = region.minY(); y <= region.maxY(); y++) {
+            for (int z = region.minZ(); z <= region.maxZ(); z++) {
+                for (int x = region.minX(); x <= region.maxX(); x++) {
+                    set(x, y, z, block);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the entry and shifts the following entries of its probe sequence back, so lookups never need tombstones.
+     */
+    @Override
+    public boolean remove(int x, int y, int z) {
+        if (!isPackable(x, y, z)) {
+            return overflow != null && overflow.remove(new Vector3i(x, y, z)) != null;
+        }
+        long key = pack(x, y, z);
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != key) {
+            if (keys[slot] == EMPTY) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+            // an entry may move into the hole only if the hole lies between its home slot and its current slot
+            int home = slot(keys[next], mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        keys[hole] = EMPTY;
+        values[hole] = null;
+        size--;
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return (overflow != null) ? size + overflow.size() : size;
+    }
+
+    @Override
+    public void forEach(BlockConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            long key = keys[i];
+            if (key != EMPTY) {
+                consumer.accept(unpackX(key), unpackY(key), unpackZ(key), values[i]);
+            }
+        }
+        if (overflow != null) {
+            for (Map.Entry<Vector3i, Block> entry : overflow.entrySet()) {
+                Vector3i pos = entry.getKey();
+                consumer.accept(pos.x, pos.y, pos.z, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Looks up every position of a region that is smaller than the table, and scans the table otherwise.
+     */
+    @Override
+    public void forEach(Region3i region, BlockConsumer consumer) {
+        if (region.isEmpty()) {
+            return;
+        }
+        long volume = (long) region.sizeX() * region.sizeY() * region.sizeZ();
+        if (volume < keys.length) {
+            for (int y = region.minY(); y <= region.maxY(); y++) {
+                for (int z = region.minZ(); z <= region.maxZ(); z++) {
+                    for (int x = region.minX(); x <= region.maxX(); x++) {
+                        Block block = get(x, y, z);
+                        if (block != null) {
+                            consumer.accept(x, y, z, block);
+                        }
+                    }
+                }
+            }
+        } else {
+            forEach((x, y, z, block) -> {
+                if (region.encompasses(x, y, z)) {
+                    consumer.accept(x, y, z, block);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void forEach(Region3i region, Predicate<Block> opaque, BlockConsumer exposed, BlockConsumer hidden) {
+        forEach(region, (x, y, z, block) -> {
+            if (isOpaque(opaque, x, y - 1, z) && isOpaque(opaque, x, y + 1, z)
+                    && isOpaque(opaque, x - 1, y, z) && isOpaque(opaque, x + 1, y, z)
+                    && isOpaque(opaque, x, y, z - 1) && isOpaque(opaque, x, y, z + 1)) {
+                hidden.accept(x, y, z, block);
+            } else {
+                exposed.accept(x, y, z, block);
+            }
+        });
+    }
+
+    private boolean isOpaque(Predicate<Block> opaque, int x, int y, int z) {
+        Block block = get(x, y, z);
+        return block != null && opaque.test(block);
+    }
+
+    @Override
+    public BlockCursor cursor() {
+        return new BlockCursor() {
+            private int slot = -1;
+            /** The overflow entries, once the table is exhausted. */
+            private Iterator<Map.Entry<Vector3i, Block>> overflowEntries;
+            private Map.Entry<Vector3i, Block> entry;
+
+            @Override
+            public boolean next() {
+                while (++slot < keys.length) {
+                    if (keys[slot] != EMPTY) {
+                        return true;
+                    }
+                }
+                slot = keys.length;
+                if (overflowEntries == null) {
+                    overflowEntries = (overflow != null) ? overflow.entrySet().iterator() : Collections.emptyIterator();
+                }
+                entry = overflowEntries.hasNext() ? overflowEntries.next() : null;
+                return entry != null;
+            }
+
+            @Override
+            public int x() {
+                return (entry != null) ? entry.getKey().x : unpackX(keys[slot]);
+            }
+
+            @Override
+            public int y() {
+                return (entry != null) ? entry.getKey().y : unpackY(keys[slot]);
+            }
+
+            @Override
+            public int z() {
+                return (entry != null) ? entry.getKey().z : unpackZ(keys[slot]);
+            }
+
+            @Override
+            public Block block() {
+                return (entry != null) ? entry.getValue() : values[slot];
+            }
+        };
+    }
+
+    @Override
+    public Map<Vector3i, Block> toMap() {
+        Map<Vector3i, Block> result = Maps.newHashMapWithExpectedSize(size());
+        forEach((x, y, z, block) -> result.put(new Vector3i(x, y, z), block));
+        return Collections.unmodifiableMap(result);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new Block[capacity];
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Block[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != EMPTY) {
+                int slot = slot(key, mask);
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        // finalizer of MurmurHash3, spreads neighbouring positions over the table
+        long h = key;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (h ^ (h >>> 33)) & mask;
+    }
+
+    /**
+     * @return true if the position fits into a packed key
+     */
+    static boolean isPackable(int x, int y, int z) {
+        return x >= MIN_COORDINATE && x <= MAX_COORDINATE && y >= MIN_COORDINATE && y <= MAX_COORDINATE
+                && z >= MIN_COORDINATE && z <= MAX_COORDINATE;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the position is not {@link #isPackable(int, int, int) packable}
+     */
+    static long pack(int x, int y, int z) {
+        if (!isPackable(x, y, z)) {
+            throw new IllegalArgumentException("Block position (" + x + ", " + y + ", " + z + ") is out of range.");
+        }
+        return ((x & MASK) << (2 * BITS)) | ((y & MASK) << BITS) | (z & MASK);
+    }
+
+    static int unpackX(long key) {
+        return (int) (key << (64 - 3 * BITS) >> (64 - BITS));
+    }
+
+    static int unpackY(long key) {
+        return (int) (key << (64 - 2 * BITS) >> (64 - BITS));
+    }
+
+    static int unpackZ(long key) {
+        return (int) (key << (64 - BITS) >> (64 - BITS));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.block;
+
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only map view of a {@link BlockCollection} with all positions shifted by a constant offset.
+ * <p/>
+ * The view does not copy the collection. Lookups translate the key back into the collection, and iterating creates the shifted
+ * position of each entry as it is read. Changes to the collection are visible through the view.
+ */
+class TranslatedBlockMap extends AbstractMap<Vector3i, Block> {
+
+    private final BlockCollection collection;
+    private final int offsetX;
+    private final int offsetY;
+    private final int offsetZ;
+
+    private Set<Entry<Vector3i, Block>> entrySet;
+
+    TranslatedBlockMap(BlockCollection collection, Vector3i offset) {
+        this.collection = collection;
+        this.offsetX = offset.x;
+        this.offsetY = offset.y;
+        this.offsetZ = offset.z;
+    }
+
+    @Override
+    public int size() {
+        return collection.size();
+    }
+
+    @Override
+    public Block get(Object key) {
+        if (!(key instanceof Vector3i)) {
+            return null;
+        }
+        Vector3i pos = (Vector3i) key;
+        return collection.getBlock(pos.x - offsetX, pos.y - offsetY, pos.z - offsetZ);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Set<Entry<Vector3i, Block>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<Vector3i, Block>>() {
+                @Override
+                public Iterator<Entry<Vector3i, Block>> iterator() {
+                    return new EntryIterator(collection.cursor());
+                }
+
+                @Override
+                public int size() {
+                    return collection.size();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private final class EntryIterator implements Iterator<Entry<Vector3i, Block>> {
+        private final BlockCursor cursor;
+        private boolean hasNext;
+
+        private EntryIterator(BlockCursor cursor) {
+            this.cursor = cursor;
+            this.hasNext = cursor.next();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        @Override
+        public Entry<Vector3i, Block> next() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+            Entry<Vector3i, Block> entry = new SimpleImmutableEntry<Vector3i, Block>(
+                    new Vector3i(cursor.x() + offsetX, cursor.y() + offsetY, cursor.z() + offsetZ), cursor.block());
+            hasNext = cursor.next();
+            return entry;
+        }
+    }
+}
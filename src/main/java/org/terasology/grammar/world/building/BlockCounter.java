@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import org.terasology.grammar.world.block.BlockSink;
+import org.terasology.grammar.world.block.BoxFill;
+import org.terasology.world.block.Block;
+
+/**
+ * A sink that counts the blocks written through it, for {@link DerivationStats}. Box fills are forwarded as they are and count with
+ * their volume.
+ */
+class BlockCounter implements BlockSink {
+
+    private BlockSink target;
+    private long count;
+
+    /**
+     * Starts counting the writes to the given sink from zero.
+     *
+     * @return this counter
+     */
+    BlockCounter reset(BlockSink sink) {
+        this.target = sink;
+        this.count = 0;
+        return this;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    @Override
+    public void setBlock(int x, int y, int z, Block block) {
+        count++;
+        target.setBlock(x, y, z, block);
+    }
+
+    @Override
+    public void fill(BoxFill box) {
+        count += box.volume();
+        target.fill(box);
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.block.BlockConsumer;
+import org.terasology.grammar.world.block.HiddenBlockCuller;
+import org.terasology.math.Region3i;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.registry.In;
+import org.terasology.registry.Share;
+import org.terasology.world.WorldProvider;
+import org.terasology.world.block.Block;
+import org.terasology.world.block.entity.placement.PlaceBlocks;
+import org.terasology.world.chunks.ChunkConstants;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Places generated buildings in the world, spread over several ticks.
+ * <p/>
+ * Sending all blocks of a building in one {@link PlaceBlocks} event makes the world update every touched chunk at once. Instead, this
+ * system groups the blocks of a building by world chunk, and sends one event per chunk. The chunks are placed bottom-up, and per update
+ * at most {@link #getMaxBatchesPerTick()} events with at most {@link #getMaxBlocksPerTick()} blocks in total are sent. A chunk with
+ * more blocks than that is split into several events.
+ * <p/>
+ * Buildings are placed one after another, in the order they were submitted.
+ * <p/>
+ * A building can be placed in diff mode. Then the current world blocks of a chunk are read right before the chunk's first batch is sent,
+ * and only the blocks that actually change are sent. Skipped blocks do not count towards the per-update block limit, but at most
+ * {@value #READS_PER_BLOCK} times as many blocks as that limit are read per update. This keeps rebuilding a building (e.g. with a new
+ * seed or a tweaked grammar) or placing it over matching terrain cheap.
+ * <p/>
+ * When a building is scheduled, only the chunks it touches are collected. The blocks of a chunk are read from the building when the
+ * chunk's first batch is sent, so the building is never copied as a whole. It must therefore not be modified until it is placed.
+ * <p/>
+ * If a {@link HiddenBlockCuller} is set, blocks that are enclosed by opaque blocks of the same building are dropped or replaced with
+ * the culler's fill block when their chunk is read. The building itself is not modified.
+ */
+@RegisterSystem
+@Share(BlockPlacementSystem.class)
+public class BlockPlacementSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+
+    /** The default number of blocks placed per update. */
+    public static final int DEFAULT_MAX_BLOCKS_PER_TICK = 4096;
+    /** The default number of events sent per update. */
+    public static final int DEFAULT_MAX_BATCHES_PER_TICK = 4;
+
+    /** The number of world blocks read in diff mode per block that may be placed. */
+    private static final int READS_PER_BLOCK = 8;
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockPlacementSystem.class);
+
+    /** Orders chunks bottom-up, then along x and z. */
+    private static final Comparator<ChunkBatch> CHUNK_ORDER = Comparator.<ChunkBatch>comparingInt(batch -> batch.chunk.y)
+            .thenComparingInt(batch -> batch.chunk.x)
+            .thenComparingInt(batch -> batch.chunk.z);
+
+    @In
+    private WorldProvider worldProvider;
+
+    private final Deque<Placement> placements = new ArrayDeque<Placement>();
+    private int maxBlocksPerTick = DEFAULT_MAX_BLOCKS_PER_TICK;
+    private int maxBatchesPerTick = DEFAULT_MAX_BATCHES_PER_TICK;
+    private long skippedBlocks;
+    private HiddenBlockCuller culler;
+
+    /**
+     * Schedules the placement of a building, writing every block.
+     *
+     * @see #place(BlockCollection, Vector3i, boolean, Runnable)
+     */
+    public void place(BlockCollection collection, Vector3i offset, Runnable onFinished) {
+        place(collection, offset, false, onFinished);
+    }
+
+    /**
+     * Schedules the placement of a building.
+     *
+     * @param collection    the blocks to place - not null, and not modified until it is placed
+     * @param offset        the world position of the collection's origin - not null
+     * @param skipUnchanged whether to skip blocks that are already in the world (diff mode)
+     * @param onFinished    called on the game thread when all blocks are placed, may be null
+     */
+    public void place(BlockCollection collection, Vector3i offset, boolean skipUnchanged, Runnable onFinished) {
+        if (collection == null || offset == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        // only the touched chunks are collected here, their blocks are read when the chunk is placed
+        Set<Vector3i> chunks = new HashSet<Vector3i>();
+        Vector3i last = new Vector3i(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE);
+        collection.forEach((x, y, z, block) -> {
+            int chunkX = (x + offset.x) >> ChunkConstants.POWER_X;
+            int chunkY = (y + offset.y) >> ChunkConstants.POWER_Y;
+            int chunkZ = (z + offset.z) >> ChunkConstants.POWER_Z;
+            if (chunkX != last.x || chunkY != last.y || chunkZ != last.z) {
+                last.set(chunkX, chunkY, chunkZ);
+                chunks.add(new Vector3i(last));
+            }
+        });
+        List<ChunkBatch> batches = new ArrayList<ChunkBatch>(chunks.size());
+        for (Vector3i chunk : chunks) {
+            batches.add(new ChunkBatch(chunk));
+        }
+        batches.sort(CHUNK_ORDER);
+        placements.add(new Placement(collection, new Vector3i(offset), culler, new ArrayDeque<ChunkBatch>(batches), skipUnchanged,
+                onFinished));
+    }
+
+    public int getMaxBlocksPerTick() {
+        return maxBlocksPerTick;
+    }
+
+    /**
+     * @param maxBlocksPerTick the maximal number of blocks placed per update - positive
+     */
+    public void setMaxBlocksPerTick(int maxBlocksPerTick) {
+        if (maxBlocksPerTick <= 0) {
+            throw new IllegalArgumentException("The number of blocks per tick has to be positive.");
+        }
+        this.maxBlocksPerTick = maxBlocksPerTick;
+    }
+
+    public int getMaxBatchesPerTick() {
+        return maxBatchesPerTick;
+    }
+
+    /**
+     * @param maxBatchesPerTick the maximal number of {@link PlaceBlocks} events sent per update - positive
+     */
+    public void setMaxBatchesPerTick(int maxBatchesPerTick) {
+        if (maxBatchesPerTick <= 0) {
+            throw new IllegalArgumentException("The number of batches per tick has to be positive.");
+        }
+        this.maxBatchesPerTick = maxBatchesPerTick;
+    }
+
+    public HiddenBlockCuller getHiddenBlockCuller() {
+        return culler;
+    }
+
+    /**
+     * @param culler the culler for blocks hidden within a building, or null to place all blocks - applies to buildings scheduled
+     *               afterwards
+     */
+    public void setHiddenBlockCuller(HiddenBlockCuller culler) {
+        this.culler = culler;
+    }
+
+    /**
+     * @return the number of blocks that were not sent in diff mode, because the world already contained them
+     */
+    public long getSkippedBlocks() {
+        return skippedBlocks;
+    }
+
+    /**
+     * @return the number of buildings that are not completely placed yet
+     */
+    public int getPendingCount() {
+        return placements.size();
+    }
+
+    @Override
+    public void update(float delta) {
+        int blocksLeft = maxBlocksPerTick;
+        int batchesLeft = maxBatchesPerTick;
+        long readsLeft = (long) maxBlocksPerTick * READS_PER_BLOCK;
+        while (!placements.isEmpty() && blocksLeft > 0 && batchesLeft > 0) {
+            Placement placement = placements.peek();
+            ChunkBatch chunk = placement.chunks.peek();
+            if (chunk != null && !chunk.loaded) {
+                chunk.load(placement);
+            }
+            if (chunk != null && placement.skipUnchanged && !chunk.diffed) {
+                if (readsLeft <= 0) {
+                    break;
+                }
+                readsLeft -= chunk.remaining();
+                skippedBlocks += chunk.removeUnchanged(this);
+            }
+            if (chunk != null && chunk.remaining() == 0) {
+                placement.chunks.poll();
+            } else if (chunk != null) {
+                int count = Math.min(chunk.remaining(), blocksLeft);
+                sendBatch(chunk.take(count));
+                blocksLeft -= count;
+                batchesLeft--;
+                if (chunk.remaining() == 0) {
+                    placement.chunks.poll();
+                }
+            }
+            if (placement.chunks.isEmpty()) {
+                placements.poll();
+                finish(placement);
+            }
+        }
+    }
+
+    /**
+     * Sends one batch of blocks, all in the same chunk, to the world.
+     *
+     * @param blocks the blocks to place, by world position
+     */
+    protected void sendBatch(Map<Vector3i, Block> blocks) {
+        if (worldProvider != null) {
+            worldProvider.getWorldEntity().send(new PlaceBlocks(blocks));
+        }
+    }
+
+    /**
+     * Reads the current block at a world position, for diff mode.
+     *
+     * @return the block in the world, or null if unknown
+     */
+    protected Block getWorldBlock(int x, int y, int z) {
+        return (worldProvider != null) ? worldProvider.getBlock(x, y, z) : null;
+    }
+
+    private void finish(Placement placement) {
+        if (placement.onFinished != null) {
+            try {
+                placement.onFinished.run();
+            } catch (RuntimeException e) {
+                logger.error("Failed to handle a finished placement", e);
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        placements.clear();
+    }
+
+    /**
+     * The blocks of one building within one chunk. The blocks are only read from the building when the chunk is reached.
+     */
+    private static final class ChunkBatch {
+        private final Vector3i chunk;
+        private final List<Vector3i> positions = new ArrayList<Vector3i>();
+        private final List<Block> blocks = new ArrayList<Block>();
+        private int sent;
+        private boolean loaded;
+        private boolean diffed;
+
+        private ChunkBatch(Vector3i chunk) {
+            this.chunk = chunk;
+        }
+
+        /**
+         * Reads the blocks of the building within this chunk, in world coordinates.
+         */
+        private void load(Placement placement) {
+            Vector3i offset = placement.offset;
+            int minX = (chunk.x << ChunkConstants.POWER_X) - offset.x;
+            int minY = (chunk.y << ChunkConstants.POWER_Y) - offset.y;
+            int minZ = (chunk.z << ChunkConstants.POWER_Z) - offset.z;
+            Region3i region = Region3i.createFromMinMax(new Vector3i(minX, minY, minZ), new Vector3i(minX + ChunkConstants.SIZE_X - 1,
+                    minY + ChunkConstants.SIZE_Y - 1, minZ + ChunkConstants.SIZE_Z - 1));
+            BlockConsumer consumer = (x, y, z, block) -> {
+                positions.add(new Vector3i(x + offset.x, y + offset.y, z + offset.z));
+                blocks.add(block);
+            };
+            if (placement.culler != null) {
+                placement.culler.forEach(placement.collection, region, consumer);
+            } else {
+                placement.collection.forEach(region, consumer);
+            }
+            loaded = true;
+        }
+
+        private int remaining() {
+            return positions.size() - sent;
+        }
+
+        /**
+         * Removes all blocks the world already contains. Must be called before any block of the chunk is sent.
+         *
+         * @return the number of removed blocks
+         */
+        private int removeUnchanged(BlockPlacementSystem system) {
+            int kept = 0;
+            for (int i = 0; i < positions.size(); i++) {
+                Vector3i pos = positions.get(i);
+                Block block = blocks.get(i);
+                if (!block.equals(system.getWorldBlock(pos.x, pos.y, pos.z))) {
+                    positions.set(kept, pos);
+                    blocks.set(kept, block);
+                    kept++;
+                }
+            }
+            diffed = true;
+            int removed = positions.size() - kept;
+            positions.subList(kept, positions.size()).clear();
+            blocks.subList(kept, blocks.size()).clear();
+            return removed;
+        }
+
+        private Map<Vector3i, Block> take(int count) {
+            Map<Vector3i, Block> batch = new HashMap<Vector3i, Block>(count * 2);
+            for (int i = sent; i < sent + count; i++) {
+                batch.put(positions.get(i), blocks.get(i));
+            }
+            sent += count;
+            return batch;
+        }
+    }
+
+    private static final class Placement {
+        private final BlockCollection collection;
+        private final Vector3i offset;
+        private final HiddenBlockCuller culler;
+        private final Deque<ChunkBatch> chunks;
+        private final boolean skipUnchanged;
+        private final Runnable onFinished;
+
+        private Placement(BlockCollection collection, Vector3i offset, HiddenBlockCuller culler, Deque<ChunkBatch> chunks,
+                          boolean skipUnchanged, Runnable onFinished) {
+            this.collection = collection;
+            this.offset = offset;
+            this.culler = culler;
+            this.chunks = chunks;
+            this.skipUnchanged = skipUnchanged;
+            this.onFinished = onFinished;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import org.terasology.grammar.logic.grammar.shapes.Orientation;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.block.BlockSink;
+import org.terasology.math.geom.Matrix4i;
+import org.terasology.math.geom.Vector3i;
+
+/**
+ * A building design of a fixed size and seed, which can be placed in any orientation.
+ * <p/>
+ * The building is generated once in its canonical orientation. Rotated and mirrored variants are created from it by permuting the
+ * coordinates of its blocks, and are cached per orientation. Placing the same design facing four directions thus derives it only once.
+ * <p/>
+ * A variant is the canonical building turned as a whole, about its origin. It is not necessarily the same as the building generated
+ * with the rotation as matrix: divide and split rules may distribute their scopes differently in another orientation, so the
+ * rotated derivation can differ in single rows of blocks.
+ * <p/>
+ * A mirrored variant is mirrored at the local yz plane before it is rotated, i.e., its local x coordinates are negated. The variants
+ * are shared and must not be modified. They are {@link BlockCollection#rasterize() rasterized} before they are handed out, so reading
+ * them never writes, and blueprints may be used by several threads at once.
+ */
+public final class BuildingBlueprint {
+
+    private final BuildingGenerator generator;
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final long seed;
+
+    /** The variants, indexed by orientation - the mirrored ones in the upper half. */
+    private final BlockCollection[] variants = new BlockCollection[2 * Orientation.COUNT];
+
+    /**
+     * @param generator the generator of the design - not null
+     * @param width     the (maximal) width of the building
+     * @param height    the (maximal) height of the building
+     * @param depth     the (maximal) depth of the building
+     * @param seed      the seed for all random choices of the derivation
+     */
+    public BuildingBlueprint(BuildingGenerator generator, int width, int height, int depth, long seed) {
+        if (generator == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        this.generator = generator;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.seed = seed;
+    }
+
+    /**
+     * @return the building in its canonical orientation, with its origin at (0, 0, 0)
+     */
+    public BlockCollection getCanonical() {
+        return getVariant(Orientation.IDENTITY, false);
+    }
+
+    /**
+     * @param orientation the orientation of the building - not null
+     * @param mirrored    whether the building is mirrored at its local yz plane before it is rotated
+     *
+     * @return the building in the given orientation, rotated about its origin
+     */
+    public synchronized BlockCollection getVariant(Orientation orientation, boolean mirrored) {
+        if (orientation == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        int index = orientation.getIndex() + (mirrored ? Orientation.COUNT : 0);
+        BlockCollection variant = variants[index];
+        if (variant == null) {
+            variant = createVariant(orientation, mirrored);
+            variant.rasterize();
+            variants[index] = variant;
+        }
+        return variant;
+    }
+
+    private BlockCollection createVariant(Orientation orientation, boolean mirrored) {
+        if (orientation == Orientation.IDENTITY && !mirrored) {
+            return generator.generate(width, height, depth, Matrix4i.id(), seed);
+        }
+        // rotate the canonical building, negating its x coordinates first if mirrored
+        int[] axes = new int[3];
+        int[] signs = new int[3];
+        for (int axis = 0; axis < 3; axis++) {
+            axes[axis] = orientation.getSourceAxis(axis);
+            signs[axis] = (mirrored && axes[axis] == 0) ? -orientation.getSign(axis) : orientation.getSign(axis);
+        }
+        return getCanonical().permuted(axes, signs);
+    }
+
+    /**
+     * Writes the building in the given orientation to the sink, with its origin at the given position.
+     *
+     * @param sink        the target for the blocks
+     * @param orientation the orientation of the building - not null
+     * @param mirrored    whether the building is mirrored at its local yz plane before it is rotated
+     * @param position    the position of the building's origin
+     */
+    public void writeTo(BlockSink sink, Orientation orientation, boolean mirrored, Vector3i position) {
+        getVariant(orientation, mirrored).writeTo(sink, position);
+    }
+
+    /**
+     * @return the number of variants created so far, including the canonical one
+     */
+    public synchronized int getVariantCount() {
+        int count = 0;
+        for (BlockCollection variant : variants) {
+            if (variant != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+}
@@ -27,17 +27,17 @@ import org.terasology.grammar.logic.grammar.shapes.complex.SetRule;
 import org.terasology.grammar.logic.grammar.shapes.complex.Size;
 import org.terasology.grammar.logic.grammar.shapes.complex.SplitArg;
 import org.terasology.grammar.logic.grammar.shapes.complex.SplitRule;
-import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.block.HiddenBlockCuller;
 import org.terasology.input.cameraTarget.CameraTargetSystem;
 import org.terasology.logic.console.Console;
 import org.terasology.logic.console.commandSystem.annotations.Command;
 import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.math.geom.Matrix4i;
 import org.terasology.math.geom.Vector3f;
+import org.terasology.math.geom.Vector3i;
 import org.terasology.registry.In;
-import org.terasology.world.WorldProvider;
 import org.terasology.world.block.BlockManager;
 import org.terasology.world.block.BlockUri;
-import org.terasology.world.block.entity.placement.PlaceBlocks;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,10 +45,15 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 @RegisterSystem
 public class BuildingCommands extends BaseComponentSystem {
 
+    /** The time a background build may take, in seconds. */
+    private static final long BUILD_TIMEOUT = 30;
+
     @In
     private Console console;
 
@@ -56,22 +61,47 @@ public class BuildingCommands extends BaseComponentSystem {
     private CameraTargetSystem cameraTargetSystem;
 
     @In
-    private WorldProvider worldProvider;
+    private BlockPlacementSystem blockPlacementSystem;
+
+    @In
+    private GenerationJobSystem generationJobSystem;
+
+    @In
+    private BuildingGenerationService generationService;
+
+    @In
+    private BuildingStatsSystem statsSystem;
 
     @Command(shortDescription = "Building generation test", runOnServer = true)
     public void build() {
         console.addMessage("Starting building a default structure ...");
 
         BuildingGenerator generator = setUp();
-        BlockCollection collection = generator.generate(3, 12, 3);
-
-        Vector3f targetPos = cameraTargetSystem.getHitPosition();
+        GenerationRequest request = new GenerationRequest(generator.getCompiledGrammar(), 3, 12, 3, Matrix4i.id(),
+                ThreadLocalRandom.current().nextLong());
+
+        final Vector3f targetPos = cameraTargetSystem.getHitPosition();
+
+        generationService.submit(request, BUILD_TIMEOUT, TimeUnit.SECONDS)
+                .thenAcceptAsync(collection -> blockPlacementSystem.place(collection, new Vector3i(targetPos), true,
+                        () -> console.addMessage("Finished ...")), generationService.getGameThreadExecutor())
+                .exceptionally(e -> {
+                    generationService.getGameThreadExecutor().execute(() -> console.addMessage("Building failed: " + e.getMessage()));
+                    return null;
+                });
+    }
 
-        if (worldProvider != null) {
-            worldProvider.getWorldEntity().send(new PlaceBlocks(collection.getBlocks(targetPos)));
-        }
+    @Command(shortDescription = "Cancel all pending building generations", runOnServer = true)
+    public String cancelBuilds() {
+        return "Cancelled " + generationService.cancelAll() + " building generation(s).";
+    }
 
-        console.addMessage("Finished ...");
+    @Command(shortDescription = "Drop blocks hidden inside of placed buildings",
+            helpText = "If enabled, blocks that are enclosed on all six faces by opaque blocks of the same building are not placed.",
+            runOnServer = true)
+    public String cullHiddenBlocks(@CommandParam(value = "enabled") boolean enabled) {
+        blockPlacementSystem.setHiddenBlockCuller(enabled ? new HiddenBlockCuller() : null);
+        return "Hidden block culling " + (enabled ? "enabled." : "disabled.");
     }
 
     @Command(shortDescription = "Place a building with specified size in front of the player",
@@ -88,27 +118,34 @@ public class BuildingCommands extends BaseComponentSystem {
 
         console.addMessage(builder.toString());
 
-        Vector3f targetPos = cameraTargetSystem.getHitPosition();
+        final Vector3f targetPos = cameraTargetSystem.getHitPosition();
         BuildingGenerator generator = complexBuildingGenerator();
 
         console.addMessage("Created Building Generator. Starting building process ...");
-        long time = System.currentTimeMillis();
-
-        BlockCollection collection = generator.generate(width, height, depth);
-
-        time = System.currentTimeMillis() - time;
-        builder = new StringBuilder("Created collection in ");
-        builder.append(time).append(" ms");
-        console.addMessage(builder.toString());
-
-        if (worldProvider != null) {
-            worldProvider.getWorldEntity().send(new PlaceBlocks(collection.getBlocks(targetPos)));
-        }
-
-        console.addMessage("Finished ...");
+        final long time = System.currentTimeMillis();
+
+        // the building is derived a few milliseconds per tick, and placed when it is done
+        final DerivationStats stats = new DerivationStats(generator.getCompiledGrammar());
+        final GenerationJob job = generator.createJob(width, height, depth, Matrix4i.id(), ThreadLocalRandom.current().nextLong(), stats);
+        generationJobSystem.submit(job, collection -> {
+            statsSystem.record(stats);
+            StringBuilder message = new StringBuilder("Created collection in ");
+            message.append(System.currentTimeMillis() - time).append(" ms (");
+            message.append(job.getDerivedNodes()).append(" derivation nodes)");
+            console.addMessage(message.toString());
+
+            blockPlacementSystem.place(collection, new Vector3i(targetPos), true, () -> console.addMessage("Finished ..."));
+        });
     }
 
     public BuildingGenerator setUp() {
+        return new BuildingGenerator(new Grammar(defaultSystem()));
+    }
+
+    /**
+     * @return the production system of a simple house: stone walls and a plank roof
+     */
+    public static ProductionSystem defaultSystem() {
         // symbols used in this test
         ShapeSymbol axiom = new ShapeSymbol("axiom");
         ShapeSymbol house = new ShapeSymbol("house");
@@ -135,14 +172,17 @@ public class BuildingCommands extends BaseComponentSystem {
         rules.put(floor.getLabel(), Arrays.<Shape>asList(splitWalls));
         rules.put(roof.getLabel(), Arrays.<Shape>asList(setPlank));
 
-        ProductionSystem system = new ProductionSystem(rules, axiom);
-        Grammar grammar = new Grammar(system);
-
-
-        return new BuildingGenerator(grammar);
+        return new ProductionSystem(rules, axiom);
     }
 
     public static BuildingGenerator complexBuildingGenerator() {
+        return new BuildingGenerator(new Grammar(complexSystem()));
+    }
+
+    /**
+     * @return the production system of a house with a ground floor with door and windows, a border and a middle part
+     */
+    public static ProductionSystem complexSystem() {
         //================================================
         ShapeSymbol house = new ShapeSymbol("house");
         ShapeSymbol groundFloor = new ShapeSymbol("ground_floor");
@@ -237,13 +277,17 @@ public class BuildingCommands extends BaseComponentSystem {
         rules.put(middlePart.getLabel(), Arrays.<Shape>asList(splitMiddlePart));
         rules.put(middlePartWalls.getLabel(), Arrays.<Shape>asList(divideMiddlePartWalls));
 
-        ProductionSystem system = new ProductionSystem(rules, house);
-        Grammar grammar = new Grammar(system);
-
-        return new BuildingGenerator(grammar);
+        return new ProductionSystem(rules, house);
     }
 
     public static BuildingGenerator testGenerator() {
+        return new BuildingGenerator(new Grammar(testSystem()));
+    }
+
+    /**
+     * @return the production system of four walls with windows
+     */
+    public static ProductionSystem testSystem() {
         Map<String, List<Shape>> rules = new HashMap<String, List<Shape>>();
 
         SetRule setStone = new SetRule(new BlockUri("core:stone"));
@@ -268,7 +312,6 @@ public class BuildingCommands extends BaseComponentSystem {
         ShapeSymbol floor = new ShapeSymbol("floor");
         rules.put(floor.getLabel(), Arrays.<Shape>asList(splitWalls));
 
-        Grammar grammar = new Grammar(new ProductionSystem(rules, floor));
-        return new BuildingGenerator(grammar);
+        return new ProductionSystem(rules, floor);
     }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.registry.In;
+import org.terasology.registry.Share;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates buildings in the background.
+ * <p/>
+ * Submitted {@link GenerationRequest}s are derived on worker threads - virtual threads if the runtime provides them, a pool of daemon
+ * threads otherwise. At most {@code maxRunning} derivations run at once, and at most {@code maxPending} requests may be
+ * submitted but not finished. Further requests are rejected right away (their future fails with a
+ * {@link RejectedExecutionException}), so callers notice when generation cannot keep up.
+ * <p/>
+ * A derivation runs as a {@link GenerationJob} in small steps. Between two steps the worker checks whether the future was cancelled or
+ * the request timed out, and stops deriving if so. A runaway grammar can therefore always be stopped.
+ * <p/>
+ * The futures complete on the worker threads. Results that are used to modify the world should be handed over to the game thread with
+ * the {@link #getGameThreadExecutor() game thread executor}, which runs its tasks in the service's update.
+ */
+@RegisterSystem
+@Share(BuildingGenerationService.class)
+public class BuildingGenerationService extends BaseComponentSystem implements UpdateSubscriberSystem {
+
+    /** The default number of requests that may be submitted but not finished. */
+    public static final int DEFAULT_MAX_PENDING = 16;
+
+    /** The number of derivation nodes derived between two checks for cancellation and timeout. */
+    private static final int NODES_PER_STEP = 256;
+
+    private static final Logger logger = LoggerFactory.getLogger(BuildingGenerationService.class);
+
+    private final int maxPending;
+    private final Semaphore pendingSlots;
+    private final Semaphore runningSlots;
+    private final ExecutorService executor;
+    private final Set<CompletableFuture<BlockCollection>> pending = ConcurrentHashMap.newKeySet();
+
+    @In
+    private BuildingStatsSystem statsSystem;
+
+    private final ConcurrentLinkedQueue<Runnable> gameThreadTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Executor gameThreadExecutor = gameThreadTasks::add;
+
+    public BuildingGenerationService() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @param maxRunning the maximal number of derivations running at once
+     * @param maxPending the maximal number of submitted, but not finished requests - at least {@code maxRunning}
+     */
+    public BuildingGenerationService(int maxRunning, int maxPending) {
+        if (maxRunning <= 0 || maxPending < maxRunning) {
+            throw new IllegalArgumentException("Invalid bounds: " + maxRunning + " running, " + maxPending + " pending.");
+        }
+        this.maxPending = maxPending;
+        this.pendingSlots = new Semaphore(maxPending);
+        this.runningSlots = new Semaphore(maxRunning);
+        this.executor = createExecutor(maxPending);
+    }
+
+    /**
+     * Uses a virtual thread per task if the runtime supports it (looked up reflectively, as the module is compiled for Java 8), and a
+     * fixed pool of daemon threads otherwise. The pool has a thread per pending request, so a request waiting for a running slot still
+     * notices its timeout.
+     */
+    private static ExecutorService createExecutor(int maxPending) {
+        try {
+            Object executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            logger.debug("Generating buildings on virtual threads");
+            return (ExecutorService) executor;
+        } catch (ReflectiveOperationException e) {
+            ThreadFactory threadFactory = new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "building-generation-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            return Executors.newFixedThreadPool(maxPending, threadFactory);
+        }
+    }
+
+    /**
+     * Submits a request without timeout.
+     *
+     * @see #submit(GenerationRequest, long, TimeUnit)
+     */
+    public CompletableFuture<BlockCollection> submit(GenerationRequest request) {
+        return submit(request, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Submits a request for background generation.
+     * <p/>
+     * Cancelling the returned future stops the derivation. If the building is not generated within the timeout (measured from
+     * submission), the derivation is stopped and the future fails with a {@link TimeoutException}.
+     *
+     * @param request the building to generate - not null
+     * @param timeout the maximal time until the building is generated, or 0 for no timeout
+     * @param unit    the unit of the timeout - not null
+     *
+     * @return the future generated building - fails with a {@link RejectedExecutionException} if too many requests are pending
+     */
+    public CompletableFuture<BlockCollection> submit(GenerationRequest request, long timeout, TimeUnit unit) {
+        if (request == null || unit == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        CompletableFuture<BlockCollection> future = new CompletableFuture<BlockCollection>();
+        if (!pendingSlots.tryAcquire()) {
+            future.completeExceptionally(new RejectedExecutionException("Too many pending generation requests (" + maxPending + ")."));
+            return future;
+        }
+        long deadline = (timeout > 0) ? System.nanoTime() + unit.toNanos(timeout) : 0;
+        pending.add(future);
+        try {
+            executor.execute(() -> run(request, future, deadline));
+        } catch (RejectedExecutionException e) {
+            release(future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void run(GenerationRequest request, CompletableFuture<BlockCollection> future, long deadline) {
+        BlockCollection result = null;
+        Throwable failure = null;
+        boolean running = false;
+        try {
+            if (deadline == 0) {
+                runningSlots.acquire();
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || !runningSlots.tryAcquire(remaining, TimeUnit.NANOSECONDS)) {
+                    // the request timed out before a running slot became free
+                    failure = new TimeoutException("Generation of " + request + " timed out.");
+                    return;
+                }
+            }
+            running = true;
+            DerivationStats stats = (statsSystem != null) ? new DerivationStats(request.getGrammar()) : null;
+            GenerationJob job = request.createJob(stats);
+            do {
+                if (future.isDone()) {
+                    job.cancel();
+                    return;
+                }
+                if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+                    job.cancel();
+                    failure = new TimeoutException("Generation of " + request + " timed out.");
+                    return;
+                }
+            } while (!job.advance(NODES_PER_STEP));
+            result = job.getResult();
+            if (stats != null) {
+                statsSystem.record(stats);
+            }
+        } catch (InterruptedException e) {
+            failure = e;
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException | Error e) {
+            logger.error("Failed to generate {}", request, e);
+            failure = e;
+        } finally {
+            // free the slots first, so callers may submit again as soon as the future completes
+            if (running) {
+                runningSlots.release();
+            }
+            release(future);
+            if (failure != null) {
+                future.completeExceptionally(failure);
+            } else if (result != null) {
+                future.complete(result);
+            }
+        }
+    }
+
+    private void release(CompletableFuture<BlockCollection> future) {
+        if (pending.remove(future)) {
+            pendingSlots.release();
+        }
+    }
+
+    /**
+     * @return the number of requests that are submitted but not finished
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Cancels all pending requests.
+     *
+     * @return the number of cancelled requests
+     */
+    public int cancelAll() {
+        int cancelled = 0;
+        for (CompletableFuture<BlockCollection> future : pending) {
+            if (future.cancel(false)) {
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * An executor running its tasks on the game thread, during the next update of this system. Use it to process generated buildings,
+     * e.g. with {@code future.thenAcceptAsync(..., service.getGameThreadExecutor())}.
+     *
+     * @return the game thread executor
+     */
+    public Executor getGameThreadExecutor() {
+        return gameThreadExecutor;
+    }
+
+    @Override
+    public void update(float delta) {
+        Runnable task;
+        while ((task = gameThreadTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Failed to process a generated building", e);
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        cancelAll();
+        executor.shutdownNow();
+        gameThreadTasks.clear();
+    }
+}
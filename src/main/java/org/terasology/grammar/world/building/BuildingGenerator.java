@@ -16,23 +16,27 @@
 
 package org.terasology.grammar.world.building;
 
+import com.google.common.base.Preconditions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.terasology.grammar.logic.grammar.ProductionSystem;
+import org.terasology.grammar.logic.grammar.CompiledGrammar;
+import org.terasology.grammar.logic.grammar.SplittableSeed;
 import org.terasology.grammar.logic.grammar.assets.Grammar;
 import org.terasology.grammar.logic.grammar.shapes.Shape;
 import org.terasology.grammar.logic.grammar.shapes.ShapeSymbol;
 import org.terasology.grammar.logic.grammar.shapes.TerminalShape;
 import org.terasology.grammar.logic.grammar.shapes.complex.ComplexRule;
 import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.block.BlockSink;
+import org.terasology.grammar.world.block.ClippingBlockSink;
+import org.terasology.math.Region3i;
 import org.terasology.math.geom.Matrix4i;
+import org.terasology.math.geom.Vector3i;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * @author Tobias 'skaldarnar' Nett
@@ -43,130 +47,485 @@ import java.util.Random;
  *         <p/>
  *         The generator offers a public method {@code generate()}, which takes the dimension of the strucutre to build. The structure
  *         generated is returned as a {@code BlockCollection}.
+ *         <p/>
+ *         All random choices of a derivation are based on a seed. Every node of the derivation tree derives the seeds of its children
+ *         from its own seed and the children's indices (see {@link SplittableSeed}), thus the same seed always yields the same
+ *         building, no matter in which order or on which thread the subtrees are expanded.
+ *         <p/>
+ *         The generator is stateless: it never modifies the shapes owned by the grammar, and all state of a single {@code generate}
+ *         call is kept in a {@link DerivationContext}. One generator (or one {@link CompiledGrammar}) can therefore be used by several
+ *         threads at once.
+ *         <p/>
+ *         Optionally, a generator uses a {@link DerivationCache}. Subtrees of relocatable symbols (see
+ *         {@link CompiledGrammar#isRelocatable(int)}) that repeat are then derived once per symbol, scope dimension, orientation and
+ *         seed, and stamped at their position afterwards. The root of a derivation is never cached, and a repeating subtree is captured
+ *         while it is derived on the derivation's stack, so a cached generation advances in the same small steps as any other.
  */
 public class BuildingGenerator {
 
     // Logging with specific logging class
     private static final Logger logger = LoggerFactory.getLogger(BuildingGenerator.class);
 
-    private Grammar grammar;                            // The org.terasology.logic.grammar this generator is based on
-    private ProductionSystem system;                    // The underlying production system
-    private Map<String, List<Shape>> ruleMap;      // A map of simple rules
-
-    private Random rand;                                // A random number generator - TODO: Replace with seed!
+    private final CompiledGrammar rules;                // The compiled production system - shared, never modified
+    private final DerivationCache cache;                // The cache for derived subtrees - may be null
 
     /**
      * The BuildingGenerator has to be initialized with a {@code Grammar} as a basis for construction.
      *
      * @param grammar the org.terasology.logic.grammar used for building generation
+     *
+     * @throws IllegalArgumentException if the grammar's production system cannot be compiled
      */
     public BuildingGenerator(Grammar grammar) {
-        this.grammar = grammar;
-        rand = new Random();
+        this(grammar.getCompiledGrammar());
+    }
 
-        system = grammar.getProductionSystem();
-        ruleMap = system.getRules();
+    /**
+     * Creates a generator based on an already compiled grammar. Any number of generators may share the same compiled grammar.
+     *
+     * @param rules the compiled grammar used for building generation - not null
+     */
+    public BuildingGenerator(CompiledGrammar rules) {
+        this(rules, null);
+    }
+
+    /**
+     * Creates a generator that reuses derived subtrees from the given cache. The cache may be shared with other generators of the same
+     * compiled grammar, but not with generators of other grammars.
+     *
+     * @param rules the compiled grammar used for building generation - not null
+     * @param cache the cache for derived subtrees, or null to derive every subtree
+     */
+    public BuildingGenerator(CompiledGrammar rules, DerivationCache cache) {
+        Preconditions.checkArgument(rules != null);
+        this.rules = rules;
+        this.cache = cache;
+    }
+
+    /**
+     * @return the compiled grammar used by this generator
+     */
+    public CompiledGrammar getCompiledGrammar() {
+        return rules;
     }
 
     public BlockCollection generate(int width, int height, int depth) {
         return generate(width, height, depth, Matrix4i.id());
     }
 
+    /**
+     * Constructs a building like {@link #generate(int, int, int, Matrix4i, long)}, using a random seed.
+     */
+    public BlockCollection generate(int width, int height, int depth, Matrix4i matrix) {
+        return generate(width, height, depth, matrix, ThreadLocalRandom.current().nextLong());
+    }
+
     /**
      * This method constructs a building, using the org.terasology.logic.grammar specified for this generator and the dimensions passed to
-     * this method. Each dimension must be greater zero (obviously). The generation process is fully random at this moment!
+     * this method. Each dimension must be greater zero (obviously). The generation process is fully determined by the seed.
      *
      * @param width  the (maximal) width of the structure to generate
      * @param height the (maximal) height of the structure to generate
      * @param depth  the (maximal) depth of the structure to generate
+     * @param matrix the orientation and translation of the structure - the rotation must be axis aligned
+     * @param seed   the seed for all random choices of the derivation
      *
      * @return the generated building as {@code BlockCollection}
      */
-    public BlockCollection generate(int width, int height, int depth, Matrix4i matrix) {
+    public BlockCollection generate(int width, int height, int depth, Matrix4i matrix, long seed) {
+        BlockCollection building = new BlockCollection();
+        generate(width, height, depth, matrix, seed, building);
+        // return the constructed blueprint
+        return building;
+    }
+
+    /**
+     * Constructs a building and writes its blocks directly to the given sink.
+     * <p/>
+     * The derivation tree is traversed depth-first while it is derived, and the blocks of every terminal shape are written to the sink
+     * as soon as the terminal is reached. Neither the derivation tree nor intermediate block collections are kept. The blocks are
+     * written in the same order in which the tree returned by {@link #deriveTree(int, int, int, Matrix4i, long)} merges them, so later
+     * writes override earlier ones exactly as in the tree.
+     *
+     * @param width  the (maximal) width of the structure to generate
+     * @param height the (maximal) height of the structure to generate
+     * @param depth  the (maximal) depth of the structure to generate
+     * @param matrix the orientation and translation of the structure - the rotation must be axis aligned
+     * @param seed   the seed for all random choices of the derivation
+     * @param sink   the target for the generated blocks
+     */
+    public void generate(int width, int height, int depth, Matrix4i matrix, long seed, BlockSink sink) {
+        generate(width, height, depth, matrix, seed, sink, null);
+    }
+
+    /**
+     * Constructs a building like {@link #generate(int, int, int, Matrix4i, long, BlockSink)}, and records the counters of the
+     * derivation in the given stats. Collecting stats does not change the generated building.
+     *
+     * @param width  the (maximal) width of the structure to generate
+     * @param height the (maximal) height of the structure to generate
+     * @param depth  the (maximal) depth of the structure to generate
+     * @param matrix the orientation and translation of the structure - the rotation must be axis aligned
+     * @param seed   the seed for all random choices of the derivation
+     * @param sink   the target for the generated blocks
+     * @param stats  the stats to fill, or null to collect no stats
+     */
+    public void generate(int width, int height, int depth, Matrix4i matrix, long seed, BlockSink sink, DerivationStats stats) {
 
-        logger.info("Starting structure generation with maximal dimension {}x{}x{} (width, height, depth)",
-                width, height, depth);
+        logger.info("Starting structure generation with maximal dimension {}x{}x{} (width, height, depth) and seed {}",
+                width, height, depth, seed);
+
+        DerivationContext context = createContext(width, height, depth, matrix, seed, null, stats);
+        context.push(context.getAxiom(), context.getSeed());
+        derive(context, sink);
+        logger.info("Finished generation!");
+    }
+
+    /**
+     * Constructs only the part of a building inside the given region, e.g. a single chunk.
+     *
+     * @see #generate(int, int, int, Matrix4i, long, Region3i, BlockSink)
+     */
+    public BlockCollection generate(int width, int height, int depth, Matrix4i matrix, long seed, Region3i clip) {
+        BlockCollection building = new BlockCollection();
+        generate(width, height, depth, matrix, seed, clip, building);
+        return building;
+    }
+
+    /**
+     * Constructs only the part of a building inside the given region, and writes it to the sink. The blocks are the same as the blocks
+     * of {@link #generate(int, int, int, Matrix4i, long, BlockSink)} within the region.
+     * <p/>
+     * Subtrees whose scope does not intersect the region are not derived at all. This relies on a shape never producing blocks outside
+     * of its scope, which holds for all rules of the grammar system. Terminals and cached fragments are written through a
+     * {@link ClippingBlockSink}, so no block outside the region reaches the sink. Clipped subtrees are never added to the cache.
+     *
+     * @param width  the (maximal) width of the structure to generate
+     * @param height the (maximal) height of the structure to generate
+     * @param depth  the (maximal) depth of the structure to generate
+     * @param matrix the orientation and translation of the structure - the rotation must be axis aligned
+     * @param seed   the seed for all random choices of the derivation
+     * @param clip   the region to generate, in world coordinates - not null
+     * @param sink   the target for the generated blocks
+     */
+    public void generate(int width, int height, int depth, Matrix4i matrix, long seed, Region3i clip, BlockSink sink) {
+        Preconditions.checkArgument(clip != null);
+        DerivationContext context = createContext(width, height, depth, matrix, seed, clip, null);
+        context.push(context.getAxiom(), context.getSeed());
+        derive(context, new ClippingBlockSink(sink, clip));
+    }
+
+    /**
+     * Creates a job that constructs a building like {@link #generate(int, int, int, Matrix4i, long)}, but only advances when asked to.
+     * The job derives the same building, in the same order.
+     *
+     * @param width  the (maximal) width of the structure to generate
+     * @param height the (maximal) height of the structure to generate
+     * @param depth  the (maximal) depth of the structure to generate
+     * @param matrix the orientation and translation of the structure - the rotation must be axis aligned
+     * @param seed   the seed for all random choices of the derivation
+     *
+     * @return the new job - nothing is derived yet
+     */
+    public GenerationJob createJob(int width, int height, int depth, Matrix4i matrix, long seed) {
+        return createJob(width, height, depth, matrix, seed, null);
+    }
+
+    /**
+     * Creates a job like {@link #createJob(int, int, int, Matrix4i, long)} that records the counters of its derivation in the given
+     * stats.
+     *
+     * @param stats the stats to fill, or null to collect no stats
+     */
+    public GenerationJob createJob(int width, int height, int depth, Matrix4i matrix, long seed, DerivationStats stats) {
+        DerivationContext context = createContext(width, height, depth, matrix, seed, null, stats);
+        context.push(context.getAxiom(), context.getSeed());
+        return new GenerationJob(this, context);
+    }
+
+    /**
+     * Derives the subtree rooted at a single shape depth-first, like {@link #generate(int, int, int, Matrix4i, long, BlockSink)} derives
+     * the whole building. The shape itself is never taken from the cache, but repeating subtrees below it are.
+     *
+     * @param shape the root of the subtree - not modified
+     * @param seed  the seed of the shape's derivation node
+     * @param sink  the target for the generated blocks
+     */
+    void derive(Shape shape, long seed, BlockSink sink) {
+        DerivationContext context = new DerivationContext(shape, seed);
+        context.push(shape, seed);
+        derive(context, sink);
+    }
+
+    /**
+     * Derives all pending shapes of the context depth-first, writing the blocks of the terminals to the sink.
+     */
+    private void derive(DerivationContext context, BlockSink sink) {
+        while (context.hasPending()) {
+            deriveNext(context, sink);
+        }
+    }
 
-        // Building up a derivation tree, using random derivations at the moment.
-        // TODO: base derivation on world seed
+    /**
+     * Derives the top shape of the context's stack. The context must have pending shapes.
+     */
+    void deriveNext(DerivationContext context, BlockSink sink) {
+        DerivationStats stats = context.getStats();
+        if (stats != null) {
+            stats.recordNode(context.getPendingCount());
+        }
+        Shape s = context.pop();
+        long nodeSeed = context.getCurrentSeed();
+        int owner = (stats != null) ? ownerOf(s, context.getCurrentOwner()) : -1;
+
+        BlockSink target = context.target(sink);
+        if (s instanceof TerminalShape) {
+            ((TerminalShape) s).writeTo(context.countingSink(target));
+            context.recordBlocks(owner, context.getCurrentProducer());
+        } else if (isCulled(s, context.getClip())) {
+            logger.debug("Culled shape: \t {}", s);
+        } else if (deriveCached(context, s, nodeSeed, context.countingSink(target))) {
+            context.recordBlocks(owner, null);
+        } else {
+            logger.debug("Active shape: \t {}", s);
+            pushSuccessors(context, s, nodeSeed, owner);
+        }
+
+        CapturingBlockSink capture = context.getCapture();
+        if (capture != null && capture.getBlocks() > cache.getCapacity()) {
+            // the subtree cannot be cached anyway, stop copying its blocks
+            context.setCapture(null);
+        } else if (capture != null && context.getPendingCount() == capture.getDepth()) {
+            // the captured subtree is complete
+            cache.put(capture.getKey(), capture.getFragment(), capture.getBlocks());
+            context.setCapture(null);
+        }
+    }
+
+    /**
+     * @return the id of the symbol, if the shape is a symbol - the given owner otherwise
+     */
+    private int ownerOf(Shape s, int owner) {
+        if (s instanceof ShapeSymbol) {
+            ShapeSymbol symbol = (ShapeSymbol) s;
+            return (symbol.getId() >= 0) ? symbol.getId() : rules.getSymbolId(symbol.getLabel());
+        }
+        return owner;
+    }
+
+    /**
+     * @return true if the shape's scope lies completely outside the clipping region - shapes without scope are never culled
+     */
+    private static boolean isCulled(Shape s, Region3i clip) {
+        if (clip == null) {
+            return false;
+        }
+        Region3i scope = s.getScopeBounds();
+        return !scope.isEmpty() && !ClippingBlockSink.intersects(scope, clip);
+    }
+
+    /**
+     * Pushes the successors of a shape on the context's stack. If the context collects stats, the expansion is timed.
+     *
+     * @param owner the id of the symbol whose production the shape belongs to, or -1 if unknown
+     */
+    private void pushSuccessors(DerivationContext context, Shape s, long seed, int owner) {
+        DerivationStats stats = context.getStats();
+        List<Shape> successors;
+        if (stats == null) {
+            successors = expand(s, seed);
+        } else {
+            long start = System.nanoTime();
+            successors = expand(s, seed);
+            stats.recordExpansion(s, owner, System.nanoTime() - start);
+        }
+        // push in reverse order, so that the first successor is derived first
+        Class<?> producer = s.getClass();
+        for (int i = successors.size() - 1; i >= 0; i--) {
+            context.push(successors.get(i), SplittableSeed.child(seed, i), owner, producer);
+        }
+    }
+
+    /**
+     * Derives a shape by stamping a cached fragment of its subtree. On a cache miss of a repeating subtree, the context starts capturing
+     * the subtree, which is then derived as usual.
+     * <p/>
+     * A clipped derivation only stamps fragments, which the clipping sink cuts to the region. It never captures a subtree, as the culled
+     * parts of the subtree would be missing from the fragment.
+     *
+     * @param context the derivation the shape belongs to
+     * @param s       the shape to derive
+     * @param seed    the seed of the shape's derivation node
+     * @param sink    the target for the blocks
+     *
+     * @return false if the shape is not in the cache - the shape has to be derived as usual then
+     */
+    private boolean deriveCached(DerivationContext context, Shape s, long seed, BlockSink sink) {
+        if (cache == null || s == context.getAxiom() || !(s instanceof ShapeSymbol)) {
+            return false;
+        }
+        int id = ((ShapeSymbol) s).getId();
+        if (id < 0 || !rules.isRelocatable(id)) {
+            return false;
+        }
+        Vector3i dimension = s.getDimension();
+        DerivationCache.Key key = new DerivationCache.Key(id, dimension.x, dimension.y, dimension.z,
+                s.getTransform().getOrientation().getIndex(), rules.isDeterministic(id) ? 0 : seed);
+        BlockCollection fragment = cache.get(key);
+        if (fragment != null) {
+            fragment.writeTo(sink, s.getPosition());
+            return true;
+        }
+        if (context.getClip() == null && context.getCapture() == null && cache.admit(key)) {
+            context.setCapture(new CapturingBlockSink(key, s.getPosition(), context.getPendingCount()));
+        }
+        return false;
+    }
+
+    /**
+     * Builds up the complete derivation tree for a building, e.g. for inspecting the derivation. {@code deriveTree(...).derive()}
+     * yields the same building as {@link #generate(int, int, int, Matrix4i, long)}, but needs considerably more memory.
+     *
+     * @param width  the (maximal) width of the structure to generate
+     * @param height the (maximal) height of the structure to generate
+     * @param depth  the (maximal) depth of the structure to generate
+     * @param matrix the orientation and translation of the structure - the rotation must be axis aligned
+     * @param seed   the seed for all random choices of the derivation
+     *
+     * @return the root of the derivation tree
+     */
+    public Tree deriveTree(int width, int height, int depth, Matrix4i matrix, long seed) {
+        FlatDerivationTree tree = new FlatDerivationTree();
+        deriveTree(width, height, depth, matrix, seed, tree);
+        return tree.toTree();
+    }
+
+    /**
+     * Builds up the complete derivation tree for a building in the given flat tree. Any previous content of the tree is cleared, its
+     * arrays are reused.
+     *
+     * @param width  the (maximal) width of the structure to generate
+     * @param height the (maximal) height of the structure to generate
+     * @param depth  the (maximal) depth of the structure to generate
+     * @param matrix the orientation and translation of the structure - the rotation must be axis aligned
+     * @param seed   the seed for all random choices of the derivation
+     * @param tree   the tree to store the derivation in
+     */
+    public void deriveTree(int width, int height, int depth, Matrix4i matrix, long seed, FlatDerivationTree tree) {
+        DerivationContext context = createContext(width, height, depth, matrix, seed, null, null);
+        tree.clear();
         // The root of the tree is the initial axiom.
-        Shape initialAxiom = system.getInitialAxiom();      // get the initial axiom (starting shape)
-        initialAxiom.setDimension(width, height, depth);    // set the shape's dimensions accordingly to the arguments
-        initialAxiom.setMatrix(matrix);                     // set the shapes orientation and translation
-        Tree root = new TreeNode(initialAxiom);             // Place the initial axiom as the derivation tree's root
-
-        // A list of _active_ nodes -- all nodes that are not derived.
-        Queue<TreeNode> activeNodes = new LinkedList<TreeNode>();
-        activeNodes.add((TreeNode) root);       // add the root as starting node to the list
-
-        // This derivation loop runs until all active nodes are derived. That means after this loop we get the generated
-        // structure by traversing the generated tree.
-        while (!activeNodes.isEmpty()) {
-            // Get the first active shape in the queue
-            TreeNode t = activeNodes.poll();
-            Shape s = t.getShape();
-            logger.debug("Active shape: \t {}", s.toString());
-
-            // Prepare a list for successor shapes
-            List<Shape> successors = new ArrayList<Shape>();
-
-            /**
-             * If t contains a ShapeSymbol, select a rule from the production system. That means, selecting one of the
-             * possible derivations.
-             * Otherwise retrieve the successors from the ComplexShape. The successors of a complex shape are all
-             * resulting sub rules of the complex rule.
-             */
-            if (s instanceof ShapeSymbol) {
-                Shape selectedRule = selectRule((ShapeSymbol) s);
-                selectedRule.setDimension(s.getDimension());
-                //selectedRule.setPosition(s.getPosition());
-                selectedRule.setMatrix(s.getMatrix());
-                successors.add(selectedRule);
-            } else if (s instanceof ComplexRule) {
-                ComplexRule c = (ComplexRule) s;
-                successors = c.getElements();
+        tree.add(context.getAxiom(), FlatDerivationTree.NONE, context.getSeed());
+
+        // Nodes are appended in breadth-first order, thus the nodes behind the current one are exactly the active nodes. This loop
+        // runs until all of them are derived.
+        for (int node = 0; node < tree.size(); node++) {
+            if (tree.isTerminal(node) && node > 0) {
+                continue;
             }
-            // Set the node t as inactive
-            t.setActive(false);
-
-            for (Shape succ : successors) {
-                if (succ instanceof TerminalShape) {
-                    t.add(new TreeLeaf((TerminalShape) succ));
-                } else {
-                    TreeNode tn = new TreeNode(succ);
-                    t.add(tn);
-                    activeNodes.offer(tn);
-                }
+            Shape s = tree.getShape(node);
+            logger.debug("Active shape: \t {}", s);
+
+            long nodeSeed = tree.getSeed(node);
+            List<Shape> successors = expand(s, nodeSeed);
+            for (int i = 0; i < successors.size(); i++) {
+                tree.add(successors.get(i), node, SplittableSeed.child(nodeSeed, i));
             }
-            logger.debug("Active Nodes: \t {}", activeNodes);
         }
+    }
+
+    public BlockCollection generateParallel(int width, int height, int depth, Matrix4i matrix, long seed) {
+        return generateParallel(width, height, depth, matrix, seed, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructs a building just like {@link #generate(int, int, int, Matrix4i, long)}, but derives independent subtrees in parallel.
+     * <p/>
+     * Successors of a complex rule never depend on each other, thus every non-terminal successor with a large scope is expanded as a
+     * separate fork-join task on the given pool. Smaller subtrees are derived sequentially within their parent's task. The partial
+     * results are merged in the order of the successors, which is the same order the sequential derivation merges its tree in. Later
+     * blocks therefore override earlier ones exactly as in {@link #generate(int, int, int, Matrix4i, long)}, and the same seed yields
+     * the same building in both modes.
+     *
+     * @param width  the (maximal) width of the structure to generate
+     * @param height the (maximal) height of the structure to generate
+     * @param depth  the (maximal) depth of the structure to generate
+     * @param matrix the orientation and translation of the structure - the rotation must be axis aligned
+     * @param seed   the seed for all random choices of the derivation
+     * @param pool   the fork-join pool to run the derivation on
+     *
+     * @return the generated building as {@code BlockCollection}
+     */
+    public BlockCollection generateParallel(int width, int height, int depth, Matrix4i matrix, long seed, ForkJoinPool pool) {
+        logger.info("Starting parallel structure generation with maximal dimension {}x{}x{} (width, height, depth) and seed {}",
+                width, height, depth, seed);
+
+        DerivationContext context = createContext(width, height, depth, matrix, seed, null, null);
+        BlockCollection building = pool.invoke(new DerivationTask(this, context.getAxiom(), context.getSeed()));
 
-        // traverse the tree to construct the actual BlockCollection
-        BlockCollection building = root.derive();
         logger.info("Finished generation!");
-        // return the constructed blueprint
         return building;
     }
 
     /**
-     * Selects a rule for the given shape symbol from the possible rules. </p> The selection is fully random at the moment. All possible
-     * rules are determined by the rule map, and one rule will be selected randomly.
+     * Sets up the state of a single derivation. The root shape is a copy of the initial axiom of the production system.
      *
-     * @param symbol the shape a rule is queried for
+     * @return a new derivation context with the root shape's scope set accordingly
+     */
+    private DerivationContext createContext(int width, int height, int depth, Matrix4i matrix, long seed, Region3i clip,
+                                            DerivationStats stats) {
+        Shape initialAxiom = rules.getInitialAxiom().clone();         // copy the initial axiom (starting shape)
+        initialAxiom.setDimension(new Vector3i(width, height, depth));  // set the shape's dimensions accordingly to the arguments
+        initialAxiom.setMatrix(matrix);                                // set the shapes orientation and translation
+        return new DerivationContext(initialAxiom, seed, clip, stats);
+    }
+
+    /**
+     * Computes the successors of a single derivation step.
+     * <p/>
+     * If the shape is a ShapeSymbol, a rule is selected from the production system. That means, selecting one of the possible
+     * derivations. Otherwise the successors are retrieved from the ComplexShape. The successors of a complex shape are all resulting
+     * sub rules of the complex rule.
+     * <p/>
+     * The i-th successor has to be derived with the seed {@code SplittableSeed.child(seed, i)}.
      *
-     * @return a shape - the _right side_ of the rule
+     * @param s    the shape to derive
+     * @param seed the seed of the derivation node
+     *
+     * @return the successor shapes, in derivation order
      */
-    private Shape selectRule(ShapeSymbol symbol) {
-        if (!ruleMap.containsKey(symbol.getLabel())) {
-            throw new RuntimeException("Symbol " + symbol.toString() + " not in lookup table");
+    List<Shape> expand(Shape s, long seed) {
+        List<Shape> successors = new ArrayList<Shape>();
+        if (s instanceof ShapeSymbol) {
+            Shape selectedRule = selectRule((ShapeSymbol) s, seed);
+            selectedRule.setDimension(new Vector3i(s.getDimension()));
+            selectedRule.setTransform(s.getTransform());
+            successors.add(selectedRule);
+        } else if (s instanceof ComplexRule) {
+            ComplexRule c = (ComplexRule) s;
+            successors = c.getElements();
         }
+        return successors;
+    }
 
-        List<Shape> successorShapes = ruleMap.get(symbol.getLabel());
-        if (successorShapes == null) {
-            throw new RuntimeException("Symbol " + symbol.toString() + " not in lookup table");
-            //return null;
+    /**
+     * Selects a rule for the given shape symbol from the possible rules. </p> All possible rules are determined by the compiled rule
+     * table, and one rule will be selected randomly, weighted by the rules' probabilities.
+     *
+     * @param symbol the shape a rule is queried for
+     * @param seed   the seed of the symbol's derivation node
+     *
+     * @return a shape - the _right side_ of the rule
+     */
+    private Shape selectRule(ShapeSymbol symbol, long seed) {
+        int id = symbol.getId();
+        if (id < 0) {
+            // symbols created by complex rules the grammar compiler does not know are not bound yet
+            id = rules.getSymbolId(symbol.getLabel());
+            if (id < 0) {
+                throw new RuntimeException("Symbol " + symbol.toString() + " not in lookup table");
+            }
         }
-        int index = rand.nextInt(successorShapes.size());
-        return successorShapes.get(index).clone();
+        return rules.instantiate(id, rules.select(id, seed));
     }
 }
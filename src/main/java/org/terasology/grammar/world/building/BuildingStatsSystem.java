@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.registry.Share;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the {@link DerivationStats} of the last builds and shows their most expensive symbols and rule types on the console.
+ * <p/>
+ * Stats may be recorded from any thread, e.g. by the {@link BuildingGenerationService} workers.
+ */
+@RegisterSystem
+@Share(BuildingStatsSystem.class)
+public class BuildingStatsSystem extends BaseComponentSystem {
+
+    /** The number of builds whose stats are kept. */
+    public static final int HISTORY_SIZE = 32;
+
+    /** The number of symbols and rule types listed by {@link #buildStats(int)}. */
+    private static final int TOP_ENTRIES = 10;
+
+    private final Deque<DerivationStats> history = new ArrayDeque<DerivationStats>(HISTORY_SIZE);
+
+    /**
+     * Adds the stats of a finished build. The oldest stats are dropped if {@link #HISTORY_SIZE} builds are kept already.
+     *
+     * @param stats the stats of the build - not null, not modified afterwards
+     */
+    public void record(DerivationStats stats) {
+        if (stats == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        synchronized (history) {
+            if (history.size() == HISTORY_SIZE) {
+                history.removeLast();
+            }
+            history.addFirst(stats);
+        }
+    }
+
+    /**
+     * @param builds the maximal number of builds to return
+     *
+     * @return the stats of the last builds, the most recent first
+     */
+    public List<DerivationStats> getRecent(int builds) {
+        List<DerivationStats> result = new ArrayList<DerivationStats>();
+        synchronized (history) {
+            Iterator<DerivationStats> iterator = history.iterator();
+            while (iterator.hasNext() && result.size() < builds) {
+                result.add(iterator.next());
+            }
+        }
+        return result;
+    }
+
+    @Command(shortDescription = "Show the most expensive rules of the last builds",
+            helpText = "Lists the derivation nodes, block writes and peak number of pending shapes of the given number of recent builds, " +
+                    "followed by the symbols and rule types that took the most time, summed over these builds.")
+    public String buildStats(@CommandParam(value = "builds") int builds) {
+        List<DerivationStats> recent = getRecent(builds);
+        if (recent.isEmpty()) {
+            return "No building stats recorded yet.";
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append("Last ").append(recent.size()).append(" build(s):");
+        for (DerivationStats stats : recent) {
+            builder.append("\n  ").append(stats.getNodes()).append(" nodes, ");
+            builder.append(stats.getBlocks()).append(" blocks, ");
+            builder.append(stats.getPeakPending()).append(" peak pending, ");
+            builder.append(String.format("%.2f ms", stats.getNanos() / 1e6));
+        }
+        List<DerivationStats.RuleStats> symbols = new ArrayList<DerivationStats.RuleStats>();
+        List<DerivationStats.RuleStats> ruleTypes = new ArrayList<DerivationStats.RuleStats>();
+        for (DerivationStats stats : recent) {
+            symbols.addAll(stats.getSymbolStats());
+            ruleTypes.addAll(stats.getRuleTypeStats());
+        }
+        appendTop(builder, "Symbols:", summarize(symbols));
+        appendTop(builder, "Rule types:", summarize(ruleTypes));
+        return builder.toString();
+    }
+
+    private static void appendTop(StringBuilder builder, String title, List<DerivationStats.RuleStats> entries) {
+        builder.append('\n').append(title);
+        for (int i = 0; i < entries.size() && i < TOP_ENTRIES; i++) {
+            builder.append("\n  ").append(entries.get(i));
+        }
+    }
+
+    /**
+     * Sums up the counters of equally named entries.
+     *
+     * @return the summed entries, the most time consuming first
+     */
+    static List<DerivationStats.RuleStats> summarize(List<DerivationStats.RuleStats> entries) {
+        Map<String, DerivationStats.RuleStats> sums = new LinkedHashMap<String, DerivationStats.RuleStats>();
+        for (DerivationStats.RuleStats entry : entries) {
+            DerivationStats.RuleStats sum = sums.get(entry.getName());
+            if (sum == null) {
+                sum = new DerivationStats.RuleStats(entry.getName());
+                sums.put(entry.getName(), sum);
+            }
+            sum.add(entry);
+        }
+        List<DerivationStats.RuleStats> result = new ArrayList<DerivationStats.RuleStats>(sums.values());
+        result.sort((a, b) -> Long.compare(b.getNanos(), a.getNanos()));
+        return result;
+    }
+}
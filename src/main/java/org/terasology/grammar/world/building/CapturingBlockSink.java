@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.block.BlockSink;
+import org.terasology.grammar.world.block.BoxFill;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+
+/**
+ * A sink that records the blocks of a subtree for the {@link DerivationCache} while they are written to the actual target.
+ * <p/>
+ * The subtree is derived on the derivation's own stack like any other subtree. Its blocks are copied into the fragment relative to the
+ * scope's position, and the capture is complete once the stack is back at the depth it had when the subtree's root was popped.
+ */
+final class CapturingBlockSink implements BlockSink {
+
+    private final DerivationCache.Key key;
+    private final BlockCollection fragment = new BlockCollection();
+    private final int originX;
+    private final int originY;
+    private final int originZ;
+    /** The number of pending shapes below the subtree. */
+    private final int depth;
+
+    private BlockSink target;
+    private long blocks;
+
+    /**
+     * @param key    the key to cache the fragment under
+     * @param origin the position of the subtree's scope
+     * @param depth  the number of pending shapes when the subtree's root was popped
+     */
+    CapturingBlockSink(DerivationCache.Key key, Vector3i origin, int depth) {
+        this.key = key;
+        this.originX = origin.x;
+        this.originY = origin.y;
+        this.originZ = origin.z;
+        this.depth = depth;
+    }
+
+    /**
+     * Sets the sink the blocks are forwarded to.
+     *
+     * @return this sink
+     */
+    CapturingBlockSink forwardTo(BlockSink sink) {
+        this.target = sink;
+        return this;
+    }
+
+    DerivationCache.Key getKey() {
+        return key;
+    }
+
+    BlockCollection getFragment() {
+        return fragment;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the number of blocks written to the fragment - blocks written twice count twice
+     */
+    long getBlocks() {
+        return blocks;
+    }
+
+    @Override
+    public void setBlock(int x, int y, int z, Block block) {
+        fragment.setBlock(x - originX, y - originY, z - originZ, block);
+        blocks++;
+        target.setBlock(x, y, z, block);
+    }
+
+    @Override
+    public void fill(BoxFill box) {
+        fragment.fill(box.translate(-originX, -originY, -originZ));
+        blocks += box.volume();
+        target.fill(box);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import com.google.common.base.Preconditions;
+import org.terasology.grammar.world.block.BlockCollection;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache for derived subtrees, shared by any number of {@link BuildingGenerator}s and threads.
+ * <p/>
+ * A cached fragment holds the blocks a symbol derives to for a given scope dimension and orientation, in coordinates relative to the
+ * scope's position. The generator stamps the fragment at the scope's actual position instead of deriving the subtree again. Fragments
+ * of subtrees that depend on the seed are cached per seed; deterministic subtrees share one fragment for all seeds.
+ * <p/>
+ * Only subtrees that repeat are cached: a subtree is admitted on its second miss, so a building (or a symbol) that occurs only once
+ * never takes up space in the cache. The capacity is given in blocks. When the cached fragments hold more blocks than that, the least
+ * recently used fragments are evicted; a fragment larger than the whole capacity is not cached at all.
+ */
+public class DerivationCache {
+
+    /** The default capacity, in blocks. */
+    public static final long DEFAULT_CAPACITY = 1 << 20;
+
+    /** The number of missed keys that are remembered for admission. */
+    private static final int ADMISSION_HISTORY = 4096;
+
+    private final long capacity;
+    private final LinkedHashMap<Key, Fragment> fragments = new LinkedHashMap<Key, Fragment>(16, 0.75f, true);
+    /** The keys that missed once - a key that misses again is admitted. */
+    private final LinkedHashMap<Key, Boolean> missedKeys = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > ADMISSION_HISTORY;
+        }
+    };
+
+    private long blockCount;
+    private long hits;
+    private long misses;
+
+    public DerivationCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the maximal number of blocks in all cached fragments - greater zero
+     */
+    public DerivationCache(long capacity) {
+        Preconditions.checkArgument(capacity > 0, "The capacity must be greater zero.");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Looks up a fragment and marks it as recently used.
+     *
+     * @return the cached fragment, or null if there is none - must not be modified
+     */
+    synchronized BlockCollection get(Key key) {
+        Fragment fragment = fragments.get(key);
+        if (fragment != null) {
+            hits++;
+            return fragment.blocks;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Decides whether the subtree of a key that was just missed should be cached.
+     *
+     * @return true if the key missed before, i.e. the subtree repeats
+     */
+    synchronized boolean admit(Key key) {
+        if (missedKeys.remove(key) != null) {
+            return true;
+        }
+        missedKeys.put(key, Boolean.TRUE);
+        return false;
+    }
+
+    /**
+     * Adds a fragment, evicting the least recently used fragments if the capacity is exceeded. The fragment must not be modified
+     * afterwards.
+     *
+     * @param blocks the number of blocks of the fragment
+     */
+    synchronized void put(Key key, BlockCollection fragment, long blocks) {
+        if (blocks > capacity) {
+            return;
+        }
+        Fragment previous = fragments.put(key, new Fragment(fragment, blocks));
+        if (previous != null) {
+            blockCount -= previous.size;
+        }
+        blockCount += blocks;
+        Iterator<Fragment> eldest = fragments.values().iterator();
+        while (blockCount > capacity) {
+            blockCount -= eldest.next().size;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @return the maximal number of blocks in all cached fragments
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of cached fragments
+     */
+    public synchronized int size() {
+        return fragments.size();
+    }
+
+    /**
+     * @return the number of blocks in all cached fragments
+     */
+    public synchronized long getBlockCount() {
+        return blockCount;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        fragments.clear();
+        missedKeys.clear();
+        blockCount = 0;
+    }
+
+    private static final class Fragment {
+        private final BlockCollection blocks;
+        private final long size;
+
+        private Fragment(BlockCollection blocks, long size) {
+            this.blocks = blocks;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Identifies a derived subtree: the symbol, the scope's dimension and orientation, and the subtree seed (0 for deterministic
+     * subtrees).
+     */
+    static final class Key {
+        private final int symbolId;
+        private final int width;
+        private final int height;
+        private final int depth;
+        /** The index of the scope's {@link org.terasology.grammar.logic.grammar.shapes.Orientation}. */
+        private final int orientation;
+        private final long seed;
+
+        Key(int symbolId, int width, int height, int depth, int orientation, long seed) {
+            this.symbolId = symbolId;
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            this.orientation = orientation;
+            this.seed = seed;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return symbolId == key.symbolId && width == key.width && height == key.height && depth == key.depth
+                    && orientation == key.orientation && seed == key.seed;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = symbolId;
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + depth;
+            result = 31 * result + orientation;
+            result = 31 * result + (int) (seed ^ (seed >>> 32));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import org.terasology.grammar.logic.grammar.shapes.Shape;
+import org.terasology.grammar.world.block.BlockSink;
+import org.terasology.math.Region3i;
+
+import java.util.Arrays;
+
+/**
+ * The state of a single derivation, i.e. of a single call to one of the {@code generate} methods of a {@link BuildingGenerator}.
+ * <p/>
+ * The generator itself only holds the (immutable) compiled grammar. Everything that belongs to one derivation lives here, so concurrent
+ * derivations never share any mutable state.
+ * <p/>
+ * For streaming derivations the context holds the stack of pending shapes (and their seeds). Shapes are pushed in reverse successor
+ * order, so popping them yields a depth-first, left-to-right traversal of the derivation tree - the order in which
+ * {@link TreeNode#derive()} merges its children.
+ * <p/>
+ * While a subtree is captured for the {@link DerivationCache}, all blocks are written through the context's
+ * {@link CapturingBlockSink}. At most one subtree is captured at a time.
+ */
+class DerivationContext {
+
+    /** The root shape of the derivation - a copy of the initial axiom with the requested scope. */
+    private final Shape axiom;
+    /** The seed of the root node. */
+    private final long seed;
+    /** The region blocks are generated for - null to generate all blocks. */
+    private final Region3i clip;
+    /** The counters of the derivation - null if no stats are collected. */
+    private final DerivationStats stats;
+    /** Counts the blocks of a terminal, if stats are collected. */
+    private final BlockCounter blockCounter;
+
+    /** The stack of pending shapes. */
+    private Shape[] pendingShapes = new Shape[16];
+    /** The seeds of the pending shapes. */
+    private long[] pendingSeeds = new long[16];
+    /** The ids of the symbols whose productions the pending shapes belong to. */
+    private int[] pendingOwners = new int[16];
+    /** The classes of the shapes that created the pending shapes. */
+    private Class<?>[] pendingProducers = new Class<?>[16];
+    /** The number of pending shapes. */
+    private int pendingCount;
+    /** The seed of the shape popped last. */
+    private long currentSeed;
+    /** The owner of the shape popped last. */
+    private int currentOwner = -1;
+    /** The producer of the shape popped last. */
+    private Class<?> currentProducer;
+    /** The subtree that is currently captured for the cache - null if none. */
+    private CapturingBlockSink capture;
+
+    DerivationContext(Shape axiom, long seed) {
+        this(axiom, seed, null);
+    }
+
+    DerivationContext(Shape axiom, long seed, Region3i clip) {
+        this(axiom, seed, clip, null);
+    }
+
+    DerivationContext(Shape axiom, long seed, Region3i clip, DerivationStats stats) {
+        this.axiom = axiom;
+        this.seed = seed;
+        this.clip = clip;
+        this.stats = stats;
+        this.blockCounter = (stats != null) ? new BlockCounter() : null;
+    }
+
+    Shape getAxiom() {
+        return axiom;
+    }
+
+    long getSeed() {
+        return seed;
+    }
+
+    Region3i getClip() {
+        return clip;
+    }
+
+    DerivationStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Returns the sink to write blocks to. If stats are collected, this is a counter forwarding to the given sink; the blocks written to
+     * it are recorded by {@link #recordBlocks(int, Class)}.
+     */
+    BlockSink countingSink(BlockSink sink) {
+        return (blockCounter != null) ? blockCounter.reset(sink) : sink;
+    }
+
+    /**
+     * Records the blocks written to the {@link #countingSink(BlockSink) counting sink} since it was requested.
+     */
+    void recordBlocks(int owner, Class<?> producer) {
+        if (stats != null) {
+            stats.recordBlocks(owner, producer, blockCounter.getCount());
+        }
+    }
+
+    /**
+     * Returns the sink the blocks of the current shape go to: the given sink, or the capture forwarding to it while a subtree is
+     * captured.
+     */
+    BlockSink target(BlockSink sink) {
+        return (capture != null) ? capture.forwardTo(sink) : sink;
+    }
+
+    CapturingBlockSink getCapture() {
+        return capture;
+    }
+
+    /**
+     * @param capture the subtree to capture from now on, or null to end the current capture
+     */
+    void setCapture(CapturingBlockSink capture) {
+        this.capture = capture;
+    }
+
+    void push(Shape shape, long shapeSeed) {
+        push(shape, shapeSeed, -1, null);
+    }
+
+    /**
+     * @param shape     the shape to derive
+     * @param shapeSeed the seed of the shape's derivation node
+     * @param owner     the id of the symbol whose production the shape belongs to, or -1 if unknown
+     * @param producer  the class of the shape that created the shape, or null if unknown
+     */
+    void push(Shape shape, long shapeSeed, int owner, Class<?> producer) {
+        if (pendingCount == pendingShapes.length) {
+            pendingShapes = Arrays.copyOf(pendingShapes, pendingCount * 2);
+            pendingSeeds = Arrays.copyOf(pendingSeeds, pendingCount * 2);
+            pendingOwners = Arrays.copyOf(pendingOwners, pendingCount * 2);
+            pendingProducers = Arrays.copyOf(pendingProducers, pendingCount * 2);
+        }
+        pendingShapes[pendingCount] = shape;
+        pendingSeeds[pendingCount] = shapeSeed;
+        pendingOwners[pendingCount] = owner;
+        pendingProducers[pendingCount] = producer;
+        pendingCount++;
+    }
+
+    boolean hasPending() {
+        return pendingCount > 0;
+    }
+
+    int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Removes the top shape from the stack. Its seed is available via {@link #getCurrentSeed()} afterwards.
+     *
+     * @return the top shape of the stack
+     */
+    Shape pop() {
+        pendingCount--;
+        Shape shape = pendingShapes[pendingCount];
+        pendingShapes[pendingCount] = null;
+        currentSeed = pendingSeeds[pendingCount];
+        currentOwner = pendingOwners[pendingCount];
+        currentProducer = pendingProducers[pendingCount];
+        pendingProducers[pendingCount] = null;
+        return shape;
+    }
+
+    long getCurrentSeed() {
+        return currentSeed;
+    }
+
+    int getCurrentOwner() {
+        return currentOwner;
+    }
+
+    Class<?> getCurrentProducer() {
+        return currentProducer;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import org.terasology.grammar.logic.grammar.CompiledGrammar;
+import org.terasology.grammar.logic.grammar.shapes.Shape;
+import org.terasology.grammar.logic.grammar.shapes.ShapeSymbol;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counters of a single derivation, per symbol and per rule type.
+ * <p/>
+ * For every symbol the stats count how often it was expanded, the time spent computing the successors of the rules in its production
+ * (up to the next symbol), and the blocks written by the terminals of its production. For every rule type (i.e. shape class) they count
+ * the expansions, the time spent in {@code getElements}, and the blocks written by the terminals created by rules of that type. In
+ * addition, the stats hold the number of derived nodes and the peak number of pending shapes.
+ * <p/>
+ * Block counts are block writes: a block that is written twice counts twice. A subtree taken from a {@link DerivationCache} counts its
+ * blocks for the cached symbol only, not for any rule type, and does not count its expansions.
+ * <p/>
+ * Stats are filled by a single derivation and are not thread safe. Once the derivation is done they are not modified anymore.
+ */
+public final class DerivationStats {
+
+    private final RuleStats[] symbols;
+    private final Map<Class<?>, RuleStats> ruleTypes = new IdentityHashMap<Class<?>, RuleStats>();
+
+    private long nodes;
+    private long blocks;
+    private int peakPending;
+
+    /**
+     * @param grammar the grammar of the derivation - not null
+     */
+    public DerivationStats(CompiledGrammar grammar) {
+        if (grammar == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        symbols = new RuleStats[grammar.getSymbolCount()];
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = new RuleStats(grammar.getLabel(i));
+        }
+    }
+
+    /**
+     * Records the computation of the successors of a shape.
+     *
+     * @param shape the expanded shape
+     * @param owner the id of the symbol whose production the shape belongs to, or -1 if unknown
+     * @param nanos the time spent computing the successors
+     */
+    void recordExpansion(Shape shape, int owner, long nanos) {
+        if (owner >= 0 && owner < symbols.length) {
+            RuleStats symbol = symbols[owner];
+            if (shape instanceof ShapeSymbol) {
+                symbol.expansions++;
+            }
+            symbol.nanos += nanos;
+        }
+        RuleStats type = typeStats(shape.getClass());
+        type.expansions++;
+        type.nanos += nanos;
+    }
+
+    /**
+     * Records blocks written for a terminal or a cached subtree.
+     *
+     * @param owner    the id of the symbol whose production wrote the blocks, or -1 if unknown
+     * @param producer the class of the shape that created the terminal, or null if unknown
+     * @param count    the number of block writes
+     */
+    void recordBlocks(int owner, Class<?> producer, long count) {
+        blocks += count;
+        if (owner >= 0 && owner < symbols.length) {
+            symbols[owner].blocks += count;
+        }
+        if (producer != null) {
+            typeStats(producer).blocks += count;
+        }
+    }
+
+    void recordNode(int pending) {
+        nodes++;
+        if (pending > peakPending) {
+            peakPending = pending;
+        }
+    }
+
+    private RuleStats typeStats(Class<?> type) {
+        RuleStats stats = ruleTypes.get(type);
+        if (stats == null) {
+            stats = new RuleStats(type.getSimpleName());
+            ruleTypes.put(type, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * @return the stats of all symbols that were expanded or wrote blocks
+     */
+    public List<RuleStats> getSymbolStats() {
+        List<RuleStats> result = new ArrayList<RuleStats>();
+        for (RuleStats symbol : symbols) {
+            if (symbol.expansions > 0 || symbol.blocks > 0) {
+                result.add(symbol);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the stats of all rule types that were expanded or created terminals
+     */
+    public List<RuleStats> getRuleTypeStats() {
+        return new ArrayList<RuleStats>(ruleTypes.values());
+    }
+
+    /**
+     * @return the number of derived nodes
+     */
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the largest number of pending shapes during the derivation
+     */
+    public int getPeakPending() {
+        return peakPending;
+    }
+
+    /**
+     * @return the total number of block writes
+     */
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return the total time spent computing successors, in nanoseconds
+     */
+    public long getNanos() {
+        long nanos = 0;
+        for (RuleStats type : ruleTypes.values()) {
+            nanos += type.nanos;
+        }
+        return nanos;
+    }
+
+    /**
+     * The counters of a single symbol or rule type.
+     */
+    public static final class RuleStats {
+        private final String name;
+        private long expansions;
+        private long nanos;
+        private long blocks;
+
+        RuleStats(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Adds the counters of another symbol or rule type.
+         */
+        void add(RuleStats other) {
+            expansions += other.expansions;
+            nanos += other.nanos;
+            blocks += other.blocks;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getExpansions() {
+            return expansions;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getBlocks() {
+            return blocks;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d expansions, %.2f ms, %d blocks", name, expansions, nanos / 1e6, blocks);
+        }
+    }
+}
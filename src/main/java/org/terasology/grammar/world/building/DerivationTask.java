@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import org.terasology.grammar.logic.grammar.SplittableSeed;
+import org.terasology.grammar.logic.grammar.shapes.Shape;
+import org.terasology.grammar.logic.grammar.shapes.TerminalShape;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.math.geom.Vector3i;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A fork-join task deriving the subtree rooted at a single shape.
+ * <p/>
+ * Forking pays off only for large subtrees, so the scope volume of a shape serves as an estimate of its subtree's cost. A shape whose
+ * scope holds fewer than {@link #SEQUENTIAL_THRESHOLD} blocks is derived sequentially, streaming its blocks into the task's collection.
+ * Only the successors above the threshold are derived by subtasks. They are forked first, and the task derives the small successors into
+ * collections of their own while they run. The results are merged in successor order, so the resulting collection is the same as the
+ * one {@link TreeNode#derive()} yields for the corresponding subtree.
+ */
+class DerivationTask extends RecursiveTask<BlockCollection> {
+
+    /** The scope volume, in blocks, below which a subtree is derived sequentially. */
+    static final long SEQUENTIAL_THRESHOLD = 1 << 12;
+
+    private final BuildingGenerator generator;
+    private final Shape shape;
+    private final long seed;
+
+    DerivationTask(BuildingGenerator generator, Shape shape, long seed) {
+        this.generator = generator;
+        this.shape = shape;
+        this.seed = seed;
+    }
+
+    @Override
+    protected BlockCollection compute() {
+        BlockCollection collection = new BlockCollection();
+        if (!isLarge(shape)) {
+            generator.derive(shape, seed, collection);
+            return collection;
+        }
+        List<Shape> successors = generator.expand(shape, seed);
+
+        // fork the large successors first, and derive the small ones in the meantime - runs.get(k) holds the small successors
+        // following subtask k, the ones before the first subtask are written to the collection directly
+        List<DerivationTask> subtasks = new ArrayList<DerivationTask>();
+        List<BlockCollection> runs = new ArrayList<BlockCollection>();
+        BlockCollection run = collection;
+        for (int i = 0; i < successors.size(); i++) {
+            Shape succ = successors.get(i);
+            if (succ instanceof TerminalShape) {
+                ((TerminalShape) succ).writeTo(run);
+            } else if (isLarge(succ)) {
+                DerivationTask subtask = new DerivationTask(generator, succ, SplittableSeed.child(seed, i));
+                subtask.fork();
+                subtasks.add(subtask);
+                run = new BlockCollection();
+                runs.add(run);
+            } else {
+                generator.derive(succ, SplittableSeed.child(seed, i), run);
+            }
+        }
+
+        for (int k = 0; k < subtasks.size(); k++) {
+            collection.merge(subtasks.get(k).join());
+            collection.merge(runs.get(k));
+        }
+        return collection;
+    }
+
+    /**
+     * @return true if the shape's subtree is worth a task of its own
+     */
+    private static boolean isLarge(Shape s) {
+        Vector3i dimension = s.getDimension();
+        return (long) Math.abs(dimension.x) * Math.abs(dimension.y) * Math.abs(dimension.z) >= SEQUENTIAL_THRESHOLD;
+    }
+}
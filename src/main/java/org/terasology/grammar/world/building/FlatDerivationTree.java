@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import org.terasology.grammar.logic.grammar.shapes.Shape;
+import org.terasology.grammar.logic.grammar.shapes.ShapeSymbol;
+import org.terasology.grammar.logic.grammar.shapes.TerminalShape;
+import org.terasology.grammar.logic.grammar.shapes.Transform;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.block.BlockSink;
+
+import java.util.Arrays;
+
+/**
+ * A derivation tree stored in parallel arrays, indexed by node.
+ * <p/>
+ * Instead of one {@link TreeNode} (with a list of children and a parent pointer) per node, the tree keeps the symbol id, parent,
+ * first child, next sibling and seed of every node in primitive arrays. The root has index 0, and the nodes are stored in breadth-first
+ * order. The arrays are kept when the tree is {@link #clear() cleared}, so one tree can be reused for any number of derivations.
+ * <p/>
+ * The shape of every node is still kept as an object, since the successors of a node and the blocks of a terminal depend on it. The
+ * tree saves the {@code TreeNode} objects and their child lists, not the shapes.
+ * <p/>
+ * Tools that walk a {@link Tree} can use {@link #toTree()}.
+ */
+public class FlatDerivationTree {
+
+    /** The index used for "no node". */
+    public static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private Shape[] shapes = new Shape[INITIAL_CAPACITY];
+    private int[] symbolIds = new int[INITIAL_CAPACITY];
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int[] firstChildren = new int[INITIAL_CAPACITY];
+    private int[] lastChildren = new int[INITIAL_CAPACITY];
+    private int[] nextSiblings = new int[INITIAL_CAPACITY];
+    private long[] seeds = new long[INITIAL_CAPACITY];
+    private int nodeCount;
+
+    /**
+     * Removes all nodes. The allocated arrays are kept for the next derivation.
+     */
+    public void clear() {
+        Arrays.fill(shapes, 0, nodeCount, null);
+        nodeCount = 0;
+    }
+
+    /**
+     * Appends a node as last child of the given parent.
+     *
+     * @param shape  the shape of the node
+     * @param parent the parent node, or {@link #NONE} for the root
+     * @param seed   the seed of the node's derivation
+     *
+     * @return the index of the new node
+     */
+    int add(Shape shape, int parent, long seed) {
+        if (nodeCount == shapes.length) {
+            grow();
+        }
+        int node = nodeCount++;
+        shapes[node] = shape;
+        symbolIds[node] = (shape instanceof ShapeSymbol) ? ((ShapeSymbol) shape).getId() : NONE;
+        parents[node] = parent;
+        firstChildren[node] = NONE;
+        lastChildren[node] = NONE;
+        nextSiblings[node] = NONE;
+        seeds[node] = seed;
+
+        if (parent != NONE) {
+            if (lastChildren[parent] == NONE) {
+                firstChildren[parent] = node;
+            } else {
+                nextSiblings[lastChildren[parent]] = node;
+            }
+            lastChildren[parent] = node;
+        }
+        return node;
+    }
+
+    private void grow() {
+        int capacity = shapes.length * 2;
+        shapes = Arrays.copyOf(shapes, capacity);
+        symbolIds = Arrays.copyOf(symbolIds, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        lastChildren = Arrays.copyOf(lastChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        seeds = Arrays.copyOf(seeds, capacity);
+    }
+
+    public int size() {
+        return nodeCount;
+    }
+
+    public Shape getShape(int node) {
+        return shapes[node];
+    }
+
+    /**
+     * @return the id of the node's shape symbol, or {@link #NONE} if the node is not a (bound) shape symbol
+     */
+    public int getSymbolId(int node) {
+        return symbolIds[node];
+    }
+
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    public int getFirstChild(int node) {
+        return firstChildren[node];
+    }
+
+    public int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    public long getSeed(int node) {
+        return seeds[node];
+    }
+
+    public Transform getTransform(int node) {
+        return shapes[node].getTransform();
+    }
+
+    public boolean isTerminal(int node) {
+        return shapes[node] instanceof TerminalShape;
+    }
+
+    /**
+     * Merges the blocks of all terminals, just like {@link TreeNode#derive()} does for the root of the equivalent tree.
+     *
+     * @return the derived building
+     */
+    public BlockCollection derive() {
+        BlockCollection collection = new BlockCollection();
+        derive(collection);
+        return collection;
+    }
+
+    /**
+     * Writes the blocks of all terminals to the sink, depth-first and in child order.
+     *
+     * @param sink the target for the blocks
+     */
+    public void derive(BlockSink sink) {
+        if (nodeCount == 0) {
+            return;
+        }
+        int node = 0;
+        while (node != NONE) {
+            if (isTerminal(node)) {
+                ((TerminalShape) shapes[node]).writeTo(sink);
+            }
+            node = nextInPreOrder(node);
+        }
+    }
+
+    /**
+     * @return the node following the given one in a depth-first, left-to-right traversal, or {@link #NONE} at the end
+     */
+    private int nextInPreOrder(int node) {
+        if (firstChildren[node] != NONE) {
+            return firstChildren[node];
+        }
+        int current = node;
+        while (current != NONE) {
+            if (nextSiblings[current] != NONE) {
+                return nextSiblings[current];
+            }
+            current = parents[current];
+        }
+        return NONE;
+    }
+
+    /**
+     * Creates the equivalent object tree, for tools inspecting a {@link Tree}. Terminals become {@link TreeLeaf}s, all other nodes
+     * inactive {@link TreeNode}s.
+     *
+     * @return the root of the tree, or null if this tree is empty
+     */
+    public Tree toTree() {
+        if (nodeCount == 0) {
+            return null;
+        }
+        Tree[] nodes = new Tree[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            if (i > 0 && isTerminal(i)) {
+                nodes[i] = new TreeLeaf((TerminalShape) shapes[i]);
+            } else {
+                TreeNode treeNode = new TreeNode(shapes[i], seeds[i]);
+                treeNode.setActive(false);
+                nodes[i] = treeNode;
+            }
+            // parents always precede their children, and children are added in order
+            if (parents[i] != NONE) {
+                ((TreeNode) nodes[parents[i]]).add(nodes[i]);
+            }
+        }
+        return nodes[0];
+    }
+}
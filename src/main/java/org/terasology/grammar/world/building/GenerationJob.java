@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import org.terasology.grammar.world.block.BlockCollection;
+
+/**
+ * A building generation that is derived step by step.
+ * <p/>
+ * Each call to {@link #advance(long, int)} derives pending shapes until either the time or the node budget is used up. The derivation
+ * state is kept in the job between calls, so a large building can be spread over many game ticks. Once {@link #isDone()} returns
+ * true, the building is available via {@link #getResult()}.
+ * <p/>
+ * A job is not thread safe, it should be advanced by one thread only (usually by the {@link GenerationJobSystem}).
+ * <p/>
+ * Note that one derivation step of a generator with a {@link DerivationCache} may stamp a complete subtree on a cache hit.
+ */
+public class GenerationJob {
+
+    /** The number of nodes derived between two checks of the clock. */
+    private static final int CLOCK_INTERVAL = 32;
+
+    private final BuildingGenerator generator;
+    private final DerivationContext context;
+    private final BlockCollection result = new BlockCollection();
+
+    private long derivedNodes;
+    private boolean cancelled;
+
+    GenerationJob(BuildingGenerator generator, DerivationContext context) {
+        this.generator = generator;
+        this.context = context;
+    }
+
+    /**
+     * Derives pending shapes until the job is done or one of the budgets is used up.
+     *
+     * @param maxNanos the maximal time to spend, in nanoseconds
+     * @param maxNodes the maximal number of derivation nodes to derive
+     *
+     * @return true if the job is done
+     */
+    public boolean advance(long maxNanos, int maxNodes) {
+        long deadline = System.nanoTime() + maxNanos;
+        int nodes = 0;
+        while (!isDone() && nodes < maxNodes) {
+            generator.deriveNext(context, result);
+            derivedNodes++;
+            nodes++;
+            if (nodes % CLOCK_INTERVAL == 0 && System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+        return isDone();
+    }
+
+    /**
+     * Derives at most the given number of derivation nodes.
+     *
+     * @param maxNodes the maximal number of derivation nodes to derive
+     *
+     * @return true if the job is done
+     */
+    public boolean advance(int maxNodes) {
+        return advance(Long.MAX_VALUE, maxNodes);
+    }
+
+    /**
+     * @return true if all shapes are derived, or the job was cancelled
+     */
+    public boolean isDone() {
+        return cancelled || !context.hasPending();
+    }
+
+    /**
+     * Stops the job. No further shapes are derived, and the job has no result.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the number of derivation nodes derived so far
+     */
+    public long getDerivedNodes() {
+        return derivedNodes;
+    }
+
+    /**
+     * @return the number of derivation nodes that are known but not derived yet
+     */
+    public int getPendingNodes() {
+        return context.getPendingCount();
+    }
+
+    /**
+     * An estimate of the job's progress, based on the derived and the currently pending nodes. The size of the derivation is not known
+     * in advance, so the estimate may drop when a node is expanded into many successors.
+     *
+     * @return the estimated progress, between 0 and 1
+     */
+    public float getProgress() {
+        if (!context.hasPending()) {
+            return 1f;
+        }
+        return (float) derivedNodes / (derivedNodes + context.getPendingCount());
+    }
+
+    /**
+     * @return the generated building
+     *
+     * @throws IllegalStateException if the job is not done yet or was cancelled
+     */
+    public BlockCollection getResult() {
+        if (cancelled) {
+            throw new IllegalStateException("The generation job was cancelled.");
+        }
+        if (!isDone()) {
+            throw new IllegalStateException("The generation job is not done yet.");
+        }
+        return result;
+    }
+}
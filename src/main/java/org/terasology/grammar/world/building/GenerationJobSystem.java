@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.registry.Share;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Drives {@link GenerationJob}s from the game loop.
+ * <p/>
+ * On every update, the system advances the submitted jobs for at most a few milliseconds, so building generation never stalls a tick
+ * for longer than the time budget. Jobs are derived one after another in the order they were submitted. When a job is done, its
+ * callback is invoked with the generated building, on the game thread. A job whose derivation fails is logged and dropped, and its
+ * callback is never invoked.
+ */
+@RegisterSystem
+@Share(GenerationJobSystem.class)
+public class GenerationJobSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+
+    /** The default time spent on generation per update, in milliseconds. */
+    public static final long DEFAULT_TIME_BUDGET = 4;
+
+    private static final Logger logger = LoggerFactory.getLogger(GenerationJobSystem.class);
+
+    private final Deque<ScheduledJob> jobs = new ArrayDeque<ScheduledJob>();
+    private long timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIME_BUDGET);
+
+    /**
+     * Schedules a job. The job is advanced in the following updates.
+     *
+     * @param job        the job to derive - not null
+     * @param onFinished called with the generated building when the job is done - not null
+     */
+    public void submit(GenerationJob job, Consumer<BlockCollection> onFinished) {
+        if (job == null || onFinished == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        jobs.add(new ScheduledJob(job, onFinished));
+    }
+
+    /**
+     * @param millis the time spent on generation per update, in milliseconds
+     */
+    public void setTimeBudget(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("The time budget has to be positive.");
+        }
+        timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public long getTimeBudget() {
+        return TimeUnit.NANOSECONDS.toMillis(timeBudgetNanos);
+    }
+
+    /**
+     * @return the number of scheduled jobs that are not done yet
+     */
+    public int getJobCount() {
+        return jobs.size();
+    }
+
+    @Override
+    public void update(float delta) {
+        long deadline = System.nanoTime() + timeBudgetNanos;
+        while (!jobs.isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            ScheduledJob scheduled = jobs.peek();
+            boolean done;
+            try {
+                done = scheduled.job.advance(remaining, Integer.MAX_VALUE);
+            } catch (RuntimeException e) {
+                logger.error("Failed to derive a generation job, dropping it", e);
+                scheduled.job.cancel();
+                jobs.poll();
+                continue;
+            }
+            if (done) {
+                jobs.poll();
+                if (!scheduled.job.isCancelled()) {
+                    finish(scheduled);
+                }
+            }
+        }
+    }
+
+    private void finish(ScheduledJob scheduled) {
+        try {
+            scheduled.onFinished.accept(scheduled.job.getResult());
+        } catch (RuntimeException e) {
+            logger.error("Failed to handle the result of a generation job", e);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        for (ScheduledJob scheduled : jobs) {
+            scheduled.job.cancel();
+        }
+        jobs.clear();
+    }
+
+    private static final class ScheduledJob {
+        private final GenerationJob job;
+        private final Consumer<BlockCollection> onFinished;
+
+        private ScheduledJob(GenerationJob job, Consumer<BlockCollection> onFinished) {
+            this.job = job;
+            this.onFinished = onFinished;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.world.building;
+
+import org.terasology.grammar.logic.grammar.CompiledGrammar;
+import org.terasology.math.geom.Matrix4i;
+
+/**
+ * The parameters of a single building generation, as submitted to the {@link BuildingGenerationService}.
+ * <p/>
+ * A request is immutable: the transformation matrix is copied when the request is created.
+ * <p/>
+ * Requests of the same grammar may share a {@link DerivationCache}, so the service reuses subtrees that repeat across buildings. The
+ * cache must not be shared with requests of other grammars.
+ */
+public final class GenerationRequest {
+
+    private final CompiledGrammar grammar;
+    private final DerivationCache cache;
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final Matrix4i matrix;
+    private final long seed;
+
+    /**
+     * @param grammar the grammar to derive the building with - not null
+     * @param width   the (maximal) width of the structure to generate
+     * @param height  the (maximal) height of the structure to generate
+     * @param depth   the (maximal) depth of the structure to generate
+     * @param matrix  the orientation and translation of the structure - not null, the rotation must be axis aligned
+     * @param seed    the seed for all random choices of the derivation
+     */
+    public GenerationRequest(CompiledGrammar grammar, int width, int height, int depth, Matrix4i matrix, long seed) {
+        this(grammar, null, width, height, depth, matrix, seed);
+    }
+
+    /**
+     * @param grammar the grammar to derive the building with - not null
+     * @param cache   the cache for derived subtrees, shared with other requests of the same grammar - or null to derive every subtree
+     * @param width   the (maximal) width of the structure to generate
+     * @param height  the (maximal) height of the structure to generate
+     * @param depth   the (maximal) depth of the structure to generate
+     * @param matrix  the orientation and translation of the structure - not null, the rotation must be axis aligned
+     * @param seed    the seed for all random choices of the derivation
+     */
+    public GenerationRequest(CompiledGrammar grammar, DerivationCache cache, int width, int height, int depth, Matrix4i matrix,
+                             long seed) {
+        if (grammar == null || matrix == null) {
+            throw new IllegalArgumentException("no null params allowed.");
+        }
+        this.grammar = grammar;
+        this.cache = cache;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.matrix = new Matrix4i(matrix);
+        this.seed = seed;
+    }
+
+    public CompiledGrammar getGrammar() {
+        return grammar;
+    }
+
+    /**
+     * @return the cache for derived subtrees, or null if every subtree is derived
+     */
+    public DerivationCache getCache() {
+        return cache;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return a copy of the structure's transformation matrix
+     */
+    public Matrix4i getMatrix() {
+        return new Matrix4i(matrix);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Creates a job deriving the requested building.
+     *
+     * @return a new job - nothing is derived yet
+     */
+    GenerationJob createJob() {
+        return createJob(null);
+    }
+
+    /**
+     * Creates a job deriving the requested building, recording its counters in the given stats.
+     *
+     * @param stats the stats to fill, or null to collect no stats
+     *
+     * @return a new job - nothing is derived yet
+     */
+    GenerationJob createJob(DerivationStats stats) {
+        return new BuildingGenerator(grammar, cache).createJob(width, height, depth, matrix, seed, stats);
+    }
+
+    @Override
+    public String toString() {
+        return "GenerationRequest{" + width + "x" + height + "x" + depth + ", seed=" + seed + "}";
+    }
+}
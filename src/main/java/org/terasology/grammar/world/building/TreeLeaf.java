@@ -38,7 +38,7 @@ public class TreeLeaf extends Tree {
 
     @Override
     public BlockCollection derive() {
-        return terminal.getValue();
+        return terminal.derive();
     }
 
     @Override
@@ -33,11 +33,18 @@ public class TreeNode extends Tree {
     private boolean active = true;
     private List<Tree> children = new ArrayList<Tree>();
     private Shape shape;
+    /** The seed for the random choices in this node's subtree. */
+    private long seed;
 
     public TreeNode(Shape shape) {
         this.shape = shape;
     }
 
+    public TreeNode(Shape shape, long seed) {
+        this.shape = shape;
+        this.seed = seed;
+    }
+
     @Override
     public BlockCollection derive() {
         BlockCollection c = new BlockCollection();
@@ -85,16 +92,28 @@ public class TreeNode extends Tree {
         return shape;
     }
 
+    public long getSeed() {
+        return seed;
+    }
+
     public List<TreeNode> findActiveNodes() {
         List<TreeNode> retVal = new ArrayList<TreeNode>();
+        collectActiveNodes(retVal);
+        return retVal;
+    }
+
+    /**
+     * Adds the active nodes of this subtree to the given list, in pre-order. All nodes share the one list, so collecting takes linear
+     * time instead of copying the lists of the subtrees at every level.
+     */
+    private void collectActiveNodes(List<TreeNode> activeNodes) {
         if (active) {
-            retVal.add(this);
+            activeNodes.add(this);
         }
         for (Tree t : children) {
             if (t instanceof TreeNode) {
-                retVal.addAll(t.findActiveNodes());
+                ((TreeNode) t).collectActiveNodes(activeNodes);
             }
         }
-        return retVal;
     }
 }
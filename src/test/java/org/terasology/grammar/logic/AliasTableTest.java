@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic;
+
+import org.junit.Test;
+import org.terasology.grammar.logic.grammar.AliasTable;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+
+public class AliasTableTest {
+
+    private static final int DRAWS = 100000;
+
+    private int[] histogram(AliasTable table, long seed) {
+        Random random = new Random(seed);
+        int[] counts = new int[table.size()];
+        for (int i = 0; i < DRAWS; i++) {
+            counts[table.sample(random)]++;
+        }
+        return counts;
+    }
+
+    @Test
+    public void testWeightedDistribution() throws Exception {
+        int[] counts = histogram(new AliasTable(new float[]{.4f, .3f, .3f}), 42);
+
+        assertEquals(.4, counts[0] / (double) DRAWS, .01);
+        assertEquals(.3, counts[1] / (double) DRAWS, .01);
+        assertEquals(.3, counts[2] / (double) DRAWS, .01);
+    }
+
+    @Test
+    public void testZeroWeightIsNeverSelected() throws Exception {
+        int[] counts = histogram(new AliasTable(new float[]{1f, 0f, 3f}), 7);
+
+        assertEquals(0, counts[1]);
+        assertEquals(.25, counts[0] / (double) DRAWS, .01);
+    }
+
+    @Test
+    public void testAllZeroWeightsAreUniform() throws Exception {
+        int[] counts = histogram(new AliasTable(new float[]{0f, 0f}), 1);
+
+        assertEquals(.5, counts[0] / (double) DRAWS, .01);
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic;
+
+import com.google.common.collect.Maps;
+import org.junit.Before;
+import org.junit.Test;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.block.BoxFill;
+import org.terasology.grammar.world.block.HiddenBlockCuller;
+import org.terasology.math.Region3i;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.registry.CoreRegistry;
+import org.terasology.world.block.Block;
+import org.terasology.world.block.BlockManager;
+import org.terasology.world.block.BlockUri;
+
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class BlockCollectionTest {
+
+    private Block stone;
+    private Block dirt;
+
+    @Before
+    public void setUp() throws Exception {
+        BlockManager blockManager = CoreRegistry.get(BlockManager.class);
+        stone = blockManager.getBlock(new BlockUri("some:stone"));
+        dirt = blockManager.getBlock(new BlockUri("some:dirt"));
+    }
+
+    /**
+     * A solid cube is large enough to switch to the dense storage. It crosses section borders and contains negative coordinates.
+     */
+    @Test
+    public void testDenseContentMatchesMap() {
+        BlockCollection collection = new BlockCollection();
+        Map<Vector3i, Block> expected = Maps.newHashMap();
+        for (int x = -20; x < 20; x++) {
+            for (int y = -40; y < 30; y++) {
+                for (int z = -5; z < 35; z++) {
+                    Block block = ((x + y + z) % 3 == 0) ? dirt : stone;
+                    collection.setBlock(new Vector3i(x, y, z), block);
+                    expected.put(new Vector3i(x, y, z), block);
+                }
+            }
+        }
+        // override some blocks after the switch
+        for (int x = -20; x < 20; x++) {
+            collection.setBlock(new Vector3i(x, 0, 0), dirt);
+            expected.put(new Vector3i(x, 0, 0), dirt);
+        }
+
+        assertEquals(expected.size(), collection.size());
+        assertEquals(expected, collection.getBlocks());
+        assertEquals(stone, collection.getBlock(new Vector3i(-20, -40, -4)));
+        assertNull(collection.getBlock(new Vector3i(20, 0, 0)));
+        assertNull(collection.getBlock(new Vector3i(1000, -1000, 0)));
+    }
+
+    @Test
+    public void testEqualsIgnoresStorage() {
+        BlockCollection sparse = new BlockCollection();
+        BlockCollection dense = new BlockCollection();
+        for (int x = 0; x < 64; x++) {
+            for (int z = 0; z < 64; z++) {
+                dense.setBlock(new Vector3i(x, 0, z), stone);
+            }
+        }
+        for (int x = 0; x < 64; x++) {
+            for (int z = 0; z < 64; z++) {
+                if (x != 0 || z != 0) {
+                    dense.setBlock(new Vector3i(x, 0, z), dirt);
+                }
+            }
+        }
+        sparse.setBlock(new Vector3i(0, 0, 0), stone);
+        BlockCollection merged = new BlockCollection();
+        merged.merge(sparse, dense);
+
+        assertEquals(dense, merged);
+        assertEquals(dense.hashCode(), merged.hashCode());
+        assertFalse(sparse.equals(dense));
+    }
+
+    @Test
+    public void testSparseForEach() {
+        BlockCollection collection = new BlockCollection();
+        collection.setBlock(-1, -1, -1, stone);
+        collection.setBlock(1000000, -1000000, 7, dirt);
+        collection.setBlock(0, 0, 0, stone);
+        collection.setBlock(0, 0, 0, dirt);
+
+        Map<Vector3i, Block> visited = Maps.newHashMap();
+        collection.forEach((x, y, z, block) -> visited.put(new Vector3i(x, y, z), block));
+
+        assertEquals(3, collection.size());
+        assertEquals(collection.getBlocks(), visited);
+        assertEquals(stone, visited.get(new Vector3i(-1, -1, -1)));
+        assertEquals(dirt, visited.get(new Vector3i(1000000, -1000000, 7)));
+        assertEquals(dirt, collection.getBlock(0, 0, 0));
+    }
+
+    @Test
+    public void testCoordinatesBeyondPackedRange() {
+        BlockCollection collection = new BlockCollection();
+        Vector3i[] positions = {new Vector3i(0, 0, 0), new Vector3i(1048575, -1048576, 0), new Vector3i(1048576, 0, 0),
+                new Vector3i(0, -1048577, 5), new Vector3i(Integer.MAX_VALUE, Integer.MIN_VALUE, 3)};
+        Map<Vector3i, Block> expected = Maps.newHashMap();
+        for (Vector3i pos : positions) {
+            collection.setBlock(pos, stone);
+            expected.put(pos, stone);
+        }
+        collection.setBlock(1048576, 0, 0, dirt);
+        expected.put(new Vector3i(1048576, 0, 0), dirt);
+
+        assertEquals(expected.size(), collection.size());
+        assertEquals(expected, collection.getBlocks());
+        // the view iterates the collection's cursor
+        assertEquals(collection.getBlocks(new Vector3f(0, 0, 0)), expected);
+        assertEquals(dirt, collection.getBlock(1048576, 0, 0));
+        assertNull(collection.getBlock(1048577, 0, 0));
+
+        assertTrue(collection.removeBlock(Integer.MAX_VALUE, Integer.MIN_VALUE, 3));
+        assertFalse(collection.removeBlock(Integer.MAX_VALUE, Integer.MIN_VALUE, 3));
+        expected.remove(new Vector3i(Integer.MAX_VALUE, Integer.MIN_VALUE, 3));
+        Map<Vector3i, Block> visited = Maps.newHashMap();
+        collection.forEach((x, y, z, block) -> visited.put(new Vector3i(x, y, z), block));
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    public void testRegionForEach() {
+        BlockCollection sparse = new BlockCollection();
+        BlockCollection dense = new BlockCollection();
+        // few enough blocks to stay in the sparse storage
+        for (int x = -40; x < 40; x += 7) {
+            for (int y = -10; y < 80; y += 5) {
+                for (int z = -30; z < 30; z += 4) {
+                    sparse.setBlock(x, y, z, ((x + y) % 2 == 0) ? stone : dirt);
+                }
+            }
+        }
+        dense.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(-40, -10, -30), new Vector3i(39, 79, 29)), stone));
+        dense.setBlock(5, 5, 5, dirt);
+
+        Region3i[] regions = {
+                Region3i.createFromMinMax(new Vector3i(-33, 0, -32), new Vector3i(-1, 63, -1)),
+                Region3i.createFromMinMax(new Vector3i(3, 4, 5), new Vector3i(6, 7, 8)),
+                Region3i.createFromMinMax(new Vector3i(-100, -100, -100), new Vector3i(100, 100, 100)),
+                Region3i.createFromMinMax(new Vector3i(500, 0, 0), new Vector3i(531, 63, 31))};
+        for (BlockCollection collection : new BlockCollection[]{sparse, dense}) {
+            for (Region3i region : regions) {
+                Map<Vector3i, Block> expected = Maps.newHashMap();
+                for (Map.Entry<Vector3i, Block> entry : collection.getBlocks().entrySet()) {
+                    if (region.encompasses(entry.getKey())) {
+                        expected.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                Map<Vector3i, Block> visited = Maps.newHashMap();
+                collection.forEach(region, (x, y, z, block) -> visited.put(new Vector3i(x, y, z), block));
+                assertEquals(expected, visited);
+            }
+        }
+    }
+
+    @Test
+    public void testTranslatedView() {
+        BlockCollection sparse = new BlockCollection();
+        sparse.setBlock(1, 2, 3, stone);
+        sparse.setBlock(-4, 0, 9, dirt);
+        BlockCollection dense = new BlockCollection();
+        for (int x = 0; x < 40; x++) {
+            for (int z = 0; z < 40; z++) {
+                for (int y = 0; y < 3; y++) {
+                    dense.setBlock(x, y, -z, (x == z) ? dirt : stone);
+                }
+            }
+        }
+
+        Vector3f offset = new Vector3f(10, -20, 5);
+        for (BlockCollection collection : new BlockCollection[]{sparse, dense}) {
+            Map<Vector3i, Block> expected = Maps.newHashMap();
+            collection.forEach((x, y, z, block) -> expected.put(new Vector3i(x + 10, y - 20, z + 5), block));
+
+            Map<Vector3i, Block> view = collection.getBlocks(offset);
+            assertEquals(expected.size(), view.size());
+            assertEquals(expected, Maps.newHashMap(view));
+            assertEquals(expected, view);
+            expected.forEach((pos, block) -> assertEquals(block, view.get(pos)));
+            assertNull(view.get(new Vector3i(1, 2, 3)));
+        }
+    }
+
+    @Test
+    public void testBoxFillsKeepWriteOrder() {
+        BlockCollection boxes = new BlockCollection();
+        boxes.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(0, 0, 0), new Vector3i(3, 3, 3)), stone));
+        boxes.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(2, 2, 2), new Vector3i(5, 3, 3)), dirt));
+
+        BlockCollection collection = new BlockCollection();
+        collection.setBlock(3, 3, 3, dirt);
+        collection.setBlock(9, 9, 9, dirt);
+        collection.merge(boxes);
+        collection.setBlock(0, 0, 0, dirt);
+        collection.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(0, 0, 0), new Vector3i(0, 0, 1)), stone));
+
+        Map<Vector3i, Block> expected = Maps.newHashMap();
+        expected.put(new Vector3i(9, 9, 9), dirt);
+        for (int x = 0; x <= 5; x++) {
+            for (int y = 0; y <= 3; y++) {
+                for (int z = 0; z <= 3; z++) {
+                    if (x >= 2 && y >= 2 && z >= 2) {
+                        expected.put(new Vector3i(x, y, z), dirt);
+                    } else if (x <= 3) {
+                        expected.put(new Vector3i(x, y, z), stone);
+                    }
+                }
+            }
+        }
+
+        assertEquals(expected, collection.getBlocks());
+        assertEquals(expected.size(), collection.size());
+        assertEquals(stone, collection.getBlock(0, 0, 0));
+    }
+
+    @Test
+    public void testSingleBlocksBetweenBoxFills() {
+        BlockCollection collection = new BlockCollection();
+        collection.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(0, 0, 0), new Vector3i(3, 3, 3)), stone));
+        collection.setBlock(1, 1, 1, dirt);
+        collection.setBlock(2, 2, 2, dirt);
+        collection.setBlock(9, 9, 9, dirt);
+        collection.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(2, 0, 0), new Vector3i(3, 3, 3)), stone));
+        collection.setBlock(3, 3, 3, dirt);
+        // outside of the boxes, removing does not rasterize them
+        assertTrue(collection.removeBlock(9, 9, 9));
+        assertFalse(collection.removeBlock(9, 9, 9));
+
+        Map<Vector3i, Block> expected = Maps.newHashMap();
+        for (int x = 0; x <= 3; x++) {
+            for (int y = 0; y <= 3; y++) {
+                for (int z = 0; z <= 3; z++) {
+                    expected.put(new Vector3i(x, y, z), stone);
+                }
+            }
+        }
+        // the block at (2, 2, 2) is overridden by the second box, the one at (3, 3, 3) is set after it
+        expected.put(new Vector3i(1, 1, 1), dirt);
+        expected.put(new Vector3i(3, 3, 3), dirt);
+
+        BlockCollection written = new BlockCollection();
+        collection.writeTo(written);
+        BlockCollection mirrored = collection.permuted(new int[]{0, 1, 2}, new int[]{-1, 1, 1}).permuted(new int[]{0, 1, 2},
+                new int[]{-1, 1, 1});
+        assertEquals(expected, written.getBlocks());
+        assertEquals(expected, mirrored.getBlocks());
+        assertEquals(expected, collection.getBlocks());
+
+        // inside of a box, the box is rasterized first
+        BlockCollection removed = new BlockCollection();
+        removed.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(0, 0, 0), new Vector3i(1, 0, 0)), stone));
+        assertTrue(removed.removeBlock(1, 0, 0));
+        assertEquals(1, removed.size());
+    }
+
+    @Test
+    public void testRasterize() {
+        BlockCollection collection = new BlockCollection();
+        collection.setBlock(1, 1, 1, dirt);
+        collection.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(0, 0, 0), new Vector3i(2, 2, 2)), stone));
+        BlockCollection pending = new BlockCollection();
+        pending.merge(collection);
+
+        collection.rasterize();
+        collection.rasterize();
+
+        assertEquals(27, collection.size());
+        assertEquals(stone, collection.getBlock(1, 1, 1));
+        assertEquals(pending.getBlocks(), collection.getBlocks());
+    }
+
+    @Test
+    public void testLargeBoxFill() {
+        BlockCollection collection = new BlockCollection();
+        collection.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(-50, 0, -50), new Vector3i(49, 99, 49)), stone));
+        collection.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(-10, 10, -10), new Vector3i(9, 19, 9)), dirt));
+
+        assertEquals(100 * 100 * 100, collection.size());
+        assertEquals(stone, collection.getBlock(-50, 0, -50));
+        assertEquals(stone, collection.getBlock(49, 99, 49));
+        assertEquals(dirt, collection.getBlock(-10, 10, -10));
+        assertEquals(dirt, collection.getBlock(9, 19, 9));
+        assertEquals(stone, collection.getBlock(10, 19, 9));
+        assertNull(collection.getBlock(50, 0, 0));
+    }
+
+    @Test
+    public void testRemoveBlock() {
+        BlockCollection sparse = new BlockCollection();
+        BlockCollection dense = new BlockCollection();
+        dense.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(-20, -20, -20), new Vector3i(19, 19, 19)), stone));
+        Map<Vector3i, Block> expectedSparse = Maps.newHashMap();
+        for (int i = 0; i < 1000; i++) {
+            sparse.setBlock(i % 10, i / 100, (i / 10) % 10, stone);
+            expectedSparse.put(new Vector3i(i % 10, i / 100, (i / 10) % 10), stone);
+        }
+        Map<Vector3i, Block> expectedDense = Maps.newHashMap(dense.getBlocks());
+        // remove every third block, so many probe sequences of the sparse storage are cut
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                for (int z = 0; z < 10; z++) {
+                    if ((x + y + z) % 3 == 0) {
+                        assertTrue(sparse.removeBlock(x, y, z));
+                        assertTrue(dense.removeBlock(x, y, z));
+                        expectedSparse.remove(new Vector3i(x, y, z));
+                        expectedDense.remove(new Vector3i(x, y, z));
+                    }
+                }
+            }
+        }
+        assertFalse(sparse.removeBlock(0, 0, 0));
+        assertFalse(dense.removeBlock(100, 0, 0));
+
+        assertEquals(expectedSparse.size(), sparse.size());
+        assertEquals(expectedSparse, sparse.getBlocks());
+        assertEquals(expectedDense.size(), dense.size());
+        assertEquals(expectedDense, dense.getBlocks());
+    }
+
+    @Test
+    public void testHiddenBlockCulling() {
+        Block glass = CoreRegistry.get(BlockManager.class).getBlock(new BlockUri("some:glass"));
+        BlockCollection collection = new BlockCollection();
+        collection.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(0, 0, 0), new Vector3i(39, 39, 39)), stone));
+        collection.setBlock(10, 10, 10, glass);
+        BlockCollection replaced = new BlockCollection();
+        replaced.merge(collection);
+
+        HiddenBlockCuller dropping = new HiddenBlockCuller(block -> block != glass, null);
+        assertTrue(dropping.isHidden(collection, 10, 10, 10));
+        assertFalse(dropping.isHidden(collection, 10, 10, 11));
+        assertFalse(dropping.isHidden(collection, 0, 5, 5));
+
+        // the inner 38^3 blocks, but not the six neighbours of the glass block
+        int hidden = 38 * 38 * 38 - 6;
+        assertEquals(hidden, dropping.cull(collection));
+        assertEquals(40 * 40 * 40 - hidden, collection.size());
+        assertNull(collection.getBlock(10, 10, 10));
+        assertEquals(stone, collection.getBlock(10, 10, 11));
+        assertEquals(stone, collection.getBlock(0, 5, 5));
+
+        HiddenBlockCuller replacing = new HiddenBlockCuller(block -> block != glass, dirt);
+        assertEquals(hidden, replacing.cull(replaced));
+        assertEquals(40 * 40 * 40, replaced.size());
+        assertEquals(dirt, replaced.getBlock(10, 10, 10));
+        assertEquals(stone, replaced.getBlock(10, 10, 11));
+        // replaced blocks are not counted again, but the neighbours of the former glass block are hidden now
+        assertEquals(6, replacing.cull(replaced));
+        assertEquals(0, replacing.cull(replaced));
+    }
+
+    @Test
+    public void testHiddenBlocksAcrossSections() {
+        Block glass = CoreRegistry.get(BlockManager.class).getBlock(new BlockUri("some:glass"));
+        HiddenBlockCuller culler = new HiddenBlockCuller(block -> block != glass, dirt);
+        BlockCollection sparse = new BlockCollection();
+        BlockCollection dense = new BlockCollection();
+        // a solid block spanning several sections, with glass and holes at and next to section borders
+        dense.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(-35, -5, -40), new Vector3i(40, 70, 3)), stone));
+        for (int i = -34; i < 40; i += 5) {
+            dense.setBlock(i, 63, -1, glass);
+            dense.setBlock(31, i + 30, 0, glass);
+            dense.removeBlock(-1, 64, i % 40);
+            dense.removeBlock(i, 0, -32);
+        }
+        sparse.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(-3, -3, -3), new Vector3i(3, 3, 3)), stone));
+        sparse.setBlock(0, 1, 0, glass);
+
+        for (BlockCollection collection : new BlockCollection[]{sparse, dense}) {
+            Region3i[] regions = {Region3i.createFromMinMax(new Vector3i(-100, -100, -100), new Vector3i(100, 100, 100)),
+                    Region3i.createFromMinMax(new Vector3i(0, 32, -32), new Vector3i(31, 95, -1))};
+            for (Region3i region : regions) {
+                Map<Vector3i, Block> expected = Maps.newHashMap();
+                for (Map.Entry<Vector3i, Block> entry : collection.getBlocks().entrySet()) {
+                    Vector3i pos = entry.getKey();
+                    if (region.encompasses(pos)) {
+                        expected.put(pos, culler.isHidden(collection, pos.x, pos.y, pos.z) ? dirt : entry.getValue());
+                    }
+                }
+                Map<Vector3i, Block> visited = Maps.newHashMap();
+                culler.forEach(collection, region, (x, y, z, block) -> visited.put(new Vector3i(x, y, z), block));
+                assertEquals(expected, visited);
+            }
+        }
+    }
+
+    @Test
+    public void testPermuted() {
+        BlockCollection sparse = new BlockCollection();
+        BlockCollection dense = new BlockCollection();
+        for (int x = -40; x < 30; x++) {
+            for (int y = -70; y < 10; y++) {
+                for (int z = -3; z < 50; z++) {
+                    Block block = ((x * 7 + y * 3 + z) % 5 == 0) ? dirt : stone;
+                    dense.setBlock(x, y, z, block);
+                    if ((x + y + z) % 97 == 0) {
+                        sparse.setBlock(x, y, z, block);
+                    }
+                }
+            }
+        }
+        sparse.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(1, 2, 3), new Vector3i(4, 8, 5)), dirt));
+
+        // rotations about y keep the sections, the others are copied block by block
+        int[][] axes = {{2, 1, 0}, {0, 1, 2}, {2, 1, 0}, {1, 2, 0}, {0, 2, 1}};
+        int[][] signs = {{-1, 1, 1}, {-1, 1, -1}, {1, -1, 1}, {1, 1, 1}, {-1, -1, 1}};
+        for (BlockCollection collection : new BlockCollection[]{sparse, dense}) {
+            for (int i = 0; i < axes.length; i++) {
+                Map<Vector3i, Block> expected = Maps.newHashMap();
+                for (Map.Entry<Vector3i, Block> entry : collection.getBlocks().entrySet()) {
+                    int[] p = {entry.getKey().x, entry.getKey().y, entry.getKey().z};
+                    expected.put(new Vector3i(signs[i][0] * p[axes[i][0]], signs[i][1] * p[axes[i][1]], signs[i][2] * p[axes[i][2]]),
+                            entry.getValue());
+                }
+                assertEquals(expected, collection.permuted(axes[i], signs[i]).getBlocks());
+            }
+        }
+    }
+}
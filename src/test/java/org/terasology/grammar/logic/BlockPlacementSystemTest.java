@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.block.BoxFill;
+import org.terasology.grammar.world.block.HiddenBlockCuller;
+import org.terasology.grammar.world.building.BlockPlacementSystem;
+import org.terasology.grammar.world.building.BuildingCommands;
+import org.terasology.grammar.world.building.BuildingGenerator;
+import org.terasology.math.Region3i;
+import org.terasology.math.geom.Matrix4i;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.registry.CoreRegistry;
+import org.terasology.world.block.Block;
+import org.terasology.world.block.BlockManager;
+import org.terasology.world.block.BlockUri;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BlockPlacementSystemTest {
+
+    private BuildingGenerator generator;
+
+    @Before
+    public void setUp() throws Exception {
+        generator = BuildingCommands.complexBuildingGenerator();
+    }
+
+    @Test
+    public void testBatchedPlacement() throws Exception {
+        BlockCollection building = generator.generate(40, 70, 40, Matrix4i.id(), 17L);
+        final Vector3i offset = new Vector3i(-20, 10, 5);
+        final List<Map<Vector3i, Block>> batches = new ArrayList<Map<Vector3i, Block>>();
+        BlockPlacementSystem placementSystem = new BlockPlacementSystem() {
+            @Override
+            protected void sendBatch(Map<Vector3i, Block> blocks) {
+                batches.add(blocks);
+            }
+        };
+        placementSystem.setMaxBlocksPerTick(1000);
+        placementSystem.setMaxBatchesPerTick(2);
+        final boolean[] finished = new boolean[1];
+        placementSystem.place(building, offset, () -> finished[0] = true);
+
+        int ticks = 0;
+        while (placementSystem.getPendingCount() > 0) {
+            int sent = batches.size();
+            placementSystem.update(0.016f);
+            ticks++;
+            Assert.assertTrue(batches.size() - sent <= 2);
+        }
+        Assert.assertTrue(finished[0]);
+        Assert.assertTrue(ticks > 1);
+
+        Map<Vector3i, Block> placed = new HashMap<Vector3i, Block>();
+        int previousChunkY = Integer.MIN_VALUE;
+        for (Map<Vector3i, Block> batch : batches) {
+            Assert.assertTrue(batch.size() <= 1000);
+            Vector3i first = batch.keySet().iterator().next();
+            for (Vector3i pos : batch.keySet()) {
+                // every batch lies within a single chunk
+                Assert.assertEquals(first.x >> 5, pos.x >> 5);
+                Assert.assertEquals(first.y >> 6, pos.y >> 6);
+                Assert.assertEquals(first.z >> 5, pos.z >> 5);
+            }
+            // chunks are placed bottom-up
+            Assert.assertTrue(first.y >> 6 >= previousChunkY);
+            previousChunkY = first.y >> 6;
+            placed.putAll(batch);
+        }
+        Map<Vector3i, Block> expected = new HashMap<Vector3i, Block>();
+        for (Map.Entry<Vector3i, Block> entry : building.getBlocks().entrySet()) {
+            Vector3i pos = entry.getKey();
+            expected.put(new Vector3i(pos.x + offset.x, pos.y + offset.y, pos.z + offset.z), entry.getValue());
+        }
+        Assert.assertEquals(expected, placed);
+    }
+
+    @Test
+    public void testDiffPlacement() throws Exception {
+        final Map<Vector3i, Block> world = new HashMap<Vector3i, Block>();
+        final List<Map<Vector3i, Block>> batches = new ArrayList<Map<Vector3i, Block>>();
+        BlockPlacementSystem placementSystem = new BlockPlacementSystem() {
+            @Override
+            protected void sendBatch(Map<Vector3i, Block> blocks) {
+                batches.add(blocks);
+                world.putAll(blocks);
+            }
+
+            @Override
+            protected Block getWorldBlock(int x, int y, int z) {
+                return world.get(new Vector3i(x, y, z));
+            }
+        };
+        BlockCollection building = generator.generate(40, 70, 40, Matrix4i.id(), 19L);
+        Vector3i offset = new Vector3i(3, 0, -7);
+
+        placementSystem.place(building, offset, true, null);
+        while (placementSystem.getPendingCount() > 0) {
+            placementSystem.update(0.016f);
+        }
+        Assert.assertEquals(building.size(), world.size());
+        Assert.assertEquals(0, placementSystem.getSkippedBlocks());
+
+        // placing the same building again does not write a single block
+        batches.clear();
+        placementSystem.place(building, offset, true, null);
+        while (placementSystem.getPendingCount() > 0) {
+            placementSystem.update(0.016f);
+        }
+        Assert.assertTrue(batches.isEmpty());
+        Assert.assertEquals(building.size(), placementSystem.getSkippedBlocks());
+    }
+
+    @Test
+    public void testCulledPlacement() throws Exception {
+        final Map<Vector3i, Block> placed = new HashMap<Vector3i, Block>();
+        BlockPlacementSystem placementSystem = new BlockPlacementSystem() {
+            @Override
+            protected void sendBatch(Map<Vector3i, Block> blocks) {
+                placed.putAll(blocks);
+            }
+        };
+        HiddenBlockCuller culler = new HiddenBlockCuller();
+        placementSystem.setHiddenBlockCuller(culler);
+        BlockCollection building = new BlockCollection();
+        Block stone = CoreRegistry.get(BlockManager.class).getBlock(new BlockUri("engine:stone"));
+        building.fill(new BoxFill(Region3i.createFromMinMax(new Vector3i(0, 0, 0), new Vector3i(39, 69, 39)), stone));
+        Vector3i offset = new Vector3i(-20, 10, 5);
+
+        placementSystem.place(building, offset, null);
+        while (placementSystem.getPendingCount() > 0) {
+            placementSystem.update(0.016f);
+        }
+        // only the hull of the box is placed, the building itself is untouched
+        Assert.assertEquals(40 * 70 * 40 - 38 * 68 * 38, placed.size());
+        Assert.assertEquals(40 * 70 * 40, building.size());
+        for (Vector3i pos : placed.keySet()) {
+            Assert.assertFalse(culler.isHidden(building, pos.x - offset.x, pos.y - offset.y, pos.z - offset.z));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.terasology.grammar.logic.grammar.shapes.Orientation;
+import org.terasology.grammar.logic.grammar.shapes.Transform;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.building.BuildingBlueprint;
+import org.terasology.grammar.world.building.BuildingCommands;
+import org.terasology.grammar.world.building.BuildingGenerator;
+import org.terasology.math.geom.Matrix4i;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BuildingBlueprintTest {
+
+    private BuildingGenerator generator;
+
+    @Before
+    public void setUp() throws Exception {
+        generator = BuildingCommands.complexBuildingGenerator();
+    }
+
+    @Test
+    public void testBlueprintVariants() throws Exception {
+        BuildingBlueprint blueprint = new BuildingBlueprint(generator, 30, 20, 40, 11L);
+        BlockCollection canonical = blueprint.getCanonical();
+        Assert.assertEquals(generator.generate(30, 20, 40, Matrix4i.id(), 11L), canonical);
+
+        Orientation[] orientations = {Orientation.rotationY(1), Orientation.rotationY(2), Orientation.rotationY(3), Orientation.get(5),
+                Orientation.get(17)};
+        for (Orientation orientation : orientations) {
+            Transform transform = new Transform(orientation, 0, 0, 0);
+            Map<Vector3i, Block> rotated = new HashMap<Vector3i, Block>();
+            Map<Vector3i, Block> mirrored = new HashMap<Vector3i, Block>();
+            for (Map.Entry<Vector3i, Block> entry : canonical.getBlocks().entrySet()) {
+                Vector3i position = new Vector3i(entry.getKey());
+                transform.transformPoint(position);
+                rotated.put(position, entry.getValue());
+                Vector3i mirroredPosition = new Vector3i(-entry.getKey().x, entry.getKey().y, entry.getKey().z);
+                transform.transformPoint(mirroredPosition);
+                mirrored.put(mirroredPosition, entry.getValue());
+            }
+            BlockCollection variant = blueprint.getVariant(orientation, false);
+            Assert.assertEquals(rotated, variant.getBlocks());
+            Assert.assertSame(variant, blueprint.getVariant(orientation, false));
+            Assert.assertEquals(mirrored, blueprint.getVariant(orientation, true).getBlocks());
+        }
+        Assert.assertEquals(1 + 2 * orientations.length, blueprint.getVariantCount());
+
+        BlockCollection placed = new BlockCollection();
+        blueprint.writeTo(placed, Orientation.rotationY(1), false, new Vector3i(100, 5, -20));
+        BlockCollection expected = new BlockCollection();
+        blueprint.getVariant(Orientation.rotationY(1), false).writeTo(expected, new Vector3i(100, 5, -20));
+        Assert.assertEquals(expected, placed);
+        Assert.assertEquals(canonical.size(), placed.size());
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        final Map<Vector3i, Block> expected = generator.generate(30, 20, 40, Matrix4i.id(), 11L).getBlocks();
+        final BuildingBlueprint blueprint = new BuildingBlueprint(generator, 30, 20, 40, 11L);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Map<Vector3i, Block>>> results = new ArrayList<Future<Map<Vector3i, Block>>>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(new Callable<Map<Vector3i, Block>>() {
+                    @Override
+                    public Map<Vector3i, Block> call() throws Exception {
+                        Map<Vector3i, Block> blocks = new HashMap<Vector3i, Block>();
+                        blueprint.getCanonical().forEach((x, y, z, block) -> blocks.put(new Vector3i(x, y, z), block));
+                        return blocks;
+                    }
+                }));
+            }
+            for (Future<Map<Vector3i, Block>> result : results) {
+                Assert.assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
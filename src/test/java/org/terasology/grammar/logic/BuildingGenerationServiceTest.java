@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.terasology.grammar.logic.grammar.ProductionSystem;
+import org.terasology.grammar.logic.grammar.assets.Grammar;
+import org.terasology.grammar.logic.grammar.shapes.Shape;
+import org.terasology.grammar.logic.grammar.shapes.ShapeSymbol;
+import org.terasology.grammar.logic.grammar.shapes.complex.ComplexRule;
+import org.terasology.grammar.logic.grammar.shapes.complex.DivideArg;
+import org.terasology.grammar.logic.grammar.shapes.complex.DivideRule;
+import org.terasology.grammar.logic.grammar.shapes.complex.SetRule;
+import org.terasology.grammar.logic.grammar.shapes.complex.Size;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.building.BuildingCommands;
+import org.terasology.grammar.world.building.BuildingGenerationService;
+import org.terasology.grammar.world.building.BuildingGenerator;
+import org.terasology.grammar.world.building.DerivationCache;
+import org.terasology.grammar.world.building.GenerationRequest;
+import org.terasology.math.geom.Matrix4i;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+import org.terasology.world.block.BlockUri;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class BuildingGenerationServiceTest {
+
+    private BuildingGenerator generator;
+
+    @Before
+    public void setUp() throws Exception {
+        generator = BuildingCommands.complexBuildingGenerator();
+    }
+
+    @Test
+    public void testGenerationService() throws Exception {
+        Map<Vector3i, Block> expected = generator.generate(30, 20, 40, Matrix4i.id(), 13L).getBlocks();
+        GenerationRequest request = new GenerationRequest(generator.getCompiledGrammar(), 30, 20, 40, Matrix4i.id(), 13L);
+
+        BuildingGenerationService service = new BuildingGenerationService(1, 2);
+        try {
+            Assert.assertEquals(expected, service.submit(request).get(10, TimeUnit.SECONDS).getBlocks());
+
+            GenerationRequest slowRequest = slowRequest();
+            CompletableFuture<BlockCollection> timedOut = service.submit(slowRequest, 50, TimeUnit.MILLISECONDS);
+            try {
+                timedOut.get(10, TimeUnit.SECONDS);
+                Assert.fail("the generation should time out");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof TimeoutException);
+            }
+
+            // requests beyond the pending bound are rejected right away
+            CompletableFuture<BlockCollection> first = service.submit(slowRequest);
+            CompletableFuture<BlockCollection> second = service.submit(slowRequest);
+            CompletableFuture<BlockCollection> rejected = service.submit(slowRequest);
+            Assert.assertTrue(rejected.isCompletedExceptionally());
+            try {
+                rejected.get();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            Assert.assertEquals(2, service.cancelAll());
+            Assert.assertTrue(first.isCancelled() && second.isCancelled());
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedCache() throws Exception {
+        DerivationCache cache = new DerivationCache();
+        BuildingGenerationService service = new BuildingGenerationService(2, 4);
+        try {
+            for (long seed = 0; seed < 3; seed++) {
+                Map<Vector3i, Block> expected = generator.generate(30, 20, 40, Matrix4i.id(), seed).getBlocks();
+                GenerationRequest request = new GenerationRequest(generator.getCompiledGrammar(), cache, 30, 20, 40, Matrix4i.id(), seed);
+                Assert.assertSame(cache, request.getCache());
+                Assert.assertEquals(expected, service.submit(request).get(10, TimeUnit.SECONDS).getBlocks());
+            }
+            // the requests stamped repeating subtrees from the shared cache
+            Assert.assertTrue(cache.getHits() > 0);
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimeoutWhileWaiting() throws Exception {
+        BuildingGenerationService service = new BuildingGenerationService(1, 2);
+        try {
+            // the only running slot is taken by a request that never finishes
+            CountDownLatch started = new CountDownLatch(1);
+            CompletableFuture<BlockCollection> blocking = service.submit(slowRequest(started));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            GenerationRequest request = new GenerationRequest(generator.getCompiledGrammar(), 30, 20, 40, Matrix4i.id(), 13L);
+            CompletableFuture<BlockCollection> waiting = service.submit(request, 50, TimeUnit.MILLISECONDS);
+            try {
+                waiting.get(10, TimeUnit.SECONDS);
+                Assert.fail("the generation should time out");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            Assert.assertFalse(blocking.isDone());
+            Assert.assertEquals(1, service.cancelAll());
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    private static GenerationRequest slowRequest() {
+        return slowRequest(new CountDownLatch(1));
+    }
+
+    /**
+     * @param started counted down when the derivation starts
+     *
+     * @return a request for a strip of single blocks, derived one block per step - this takes a while for a long strip
+     */
+    private static GenerationRequest slowRequest(CountDownLatch started) {
+        ShapeSymbol start = new ShapeSymbol("start");
+        ShapeSymbol strip = new ShapeSymbol("strip");
+        Map<String, List<Shape>> rules = new HashMap<String, List<Shape>>();
+        rules.put(start.getLabel(), Collections.<Shape>singletonList(new SignallingRule(started, strip.getLabel())));
+        rules.put(strip.getLabel(), Collections.<Shape>singletonList(new DivideRule(Arrays.asList(
+                new DivideArg(new Size(1f, true), new SetRule(new BlockUri("engine:stone"))),
+                new DivideArg(new Size(1f, false), strip)), DivideRule.Direction.X)));
+        Grammar grammar = new Grammar(new ProductionSystem(rules, start));
+        return new GenerationRequest(grammar.getCompiledGrammar(), 1 << 30, 1, 1, Matrix4i.id(), 0L);
+    }
+
+    /**
+     * A rule that counts down a latch when it is expanded, and continues with a symbol covering its whole scope.
+     */
+    private static final class SignallingRule extends ComplexRule {
+        private final CountDownLatch latch;
+        private final String successor;
+
+        private SignallingRule(CountDownLatch latch, String successor) {
+            this.latch = latch;
+            this.successor = successor;
+        }
+
+        @Override
+        public List<Shape> getElements() {
+            latch.countDown();
+            ShapeSymbol symbol = new ShapeSymbol(successor);
+            symbol.setDimension(new Vector3i(getDimension()));
+            symbol.setTransform(getTransform());
+            return Collections.<Shape>singletonList(symbol);
+        }
+
+        @Override
+        public Shape clone() {
+            return new SignallingRule(latch, successor);
+        }
+    }
+}
@@ -22,6 +22,8 @@ import org.terasology.grammar.logic.grammar.ProductionSystem;
 import org.terasology.grammar.logic.grammar.assets.Grammar;
 import org.terasology.grammar.logic.grammar.shapes.Shape;
 import org.terasology.grammar.logic.grammar.shapes.ShapeSymbol;
+import org.terasology.grammar.logic.grammar.shapes.TerminalShape;
+import org.terasology.grammar.logic.grammar.shapes.Transform;
 import org.terasology.grammar.logic.grammar.shapes.complex.DivideArg;
 import org.terasology.grammar.logic.grammar.shapes.complex.DivideRule;
 import org.terasology.grammar.logic.grammar.shapes.complex.SetRule;
@@ -29,9 +31,20 @@ import org.terasology.grammar.logic.grammar.shapes.complex.Size;
 import org.terasology.grammar.logic.grammar.shapes.complex.SplitArg;
 import org.terasology.grammar.logic.grammar.shapes.complex.SplitRule;
 import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.block.BlockSink;
+import org.terasology.grammar.world.block.BoxFill;
+import org.terasology.grammar.world.building.BuildingCommands;
 import org.terasology.grammar.world.building.BuildingGenerator;
+import org.terasology.grammar.world.building.DerivationCache;
+import org.terasology.grammar.world.building.DerivationStats;
+import org.terasology.grammar.world.building.FlatDerivationTree;
+import org.terasology.grammar.world.building.GenerationJob;
+import org.terasology.grammar.world.building.GenerationJobSystem;
+import org.terasology.math.Region3i;
+import org.terasology.math.geom.Matrix4i;
 import org.terasology.math.geom.Vector3i;
 import org.terasology.registry.CoreRegistry;
+import org.terasology.world.block.Block;
 import org.terasology.world.block.BlockManager;
 import org.terasology.world.block.BlockUri;
 
@@ -40,6 +53,10 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created with IntelliJ IDEA. User: tobias Date: 28.08.12 Time: 19:07 To change this template use File | Settings | File Templates.
@@ -47,6 +64,7 @@ import java.util.Map;
 public class BuildingGeneratorTest {
     private static Vector3i size = new Vector3i(4, 6, 6);
 
+    private Grammar grammar;
     private BuildingGenerator generator;
 
     private BlockCollection expectedBuilding;
@@ -82,7 +100,7 @@ public class BuildingGeneratorTest {
         rules.put(roof.getLabel(), shapeToList(setPlank));
 
         ProductionSystem system = new ProductionSystem(rules, axiom);
-        Grammar grammar = new Grammar(system);
+        grammar = new Grammar(system);
 
 
         generator = new BuildingGenerator(grammar);
@@ -118,4 +136,371 @@ public class BuildingGeneratorTest {
         Assert.assertEquals(expectedBuilding.getBlocks().size(), resultingBuilding.getBlocks().size());
         Assert.assertEquals(expectedBuilding, resultingBuilding);
     }
+
+    @Test
+    public void testParallelGeneration() throws Exception {
+        BlockCollection sequential = generator.generate(size.x, size.y, size.z, Matrix4i.id(), 42L);
+        BlockCollection parallel = generator.generateParallel(size.x, size.y, size.z, Matrix4i.id(), 42L);
+
+        Assert.assertEquals(sequential.getBlocks(), parallel.getBlocks());
+    }
+
+    @Test
+    public void testParallelGenerationLargeBuilding() throws Exception {
+        // large enough to fork subtasks, with subtrees below the sequential threshold
+        BuildingGenerator complexGenerator = BuildingCommands.complexBuildingGenerator();
+        BuildingGenerator cachedGenerator = new BuildingGenerator(complexGenerator.getCompiledGrammar(), new DerivationCache());
+        Matrix4i matrix = new Matrix4i().rotY((float) Math.PI);
+        matrix.translate(7, 0, 3);
+        for (long seed = 0; seed < 3; seed++) {
+            Map<Vector3i, Block> sequential = complexGenerator.generate(60, 40, 80, matrix, seed).getBlocks();
+            Assert.assertEquals(sequential, complexGenerator.generateParallel(60, 40, 80, matrix, seed).getBlocks());
+            Assert.assertEquals(sequential, cachedGenerator.generateParallel(60, 40, 80, matrix, seed).getBlocks());
+        }
+    }
+
+    @Test
+    public void testParallelGenerationNegativeDimensions() throws Exception {
+        // scopes extending into negative direction are forked just like positive ones
+        BuildingGenerator complexGenerator = BuildingCommands.complexBuildingGenerator();
+        for (long seed = 0; seed < 3; seed++) {
+            Map<Vector3i, Block> sequential = complexGenerator.generate(-60, 40, -80, Matrix4i.id(), seed).getBlocks();
+            Assert.assertFalse(sequential.isEmpty());
+            Assert.assertEquals(sequential, complexGenerator.generateParallel(-60, 40, -80, Matrix4i.id(), seed).getBlocks());
+        }
+    }
+
+    @Test
+    public void testPrefabKeepsFillsSymbolic() throws Exception {
+        Block dirt = CoreRegistry.get(BlockManager.class).getBlock(new BlockUri("engine:dirt"));
+        BlockCollection prefab = new BlockCollection();
+        prefab.setBlock(0, 0, 0, dirt);
+        prefab.setBlock(0, 1, 0, dirt);
+
+        ShapeSymbol wall = new ShapeSymbol("wall");
+        ShapeSymbol window = new ShapeSymbol("window");
+        Map<String, List<Shape>> rules = new HashMap<String, List<Shape>>();
+        rules.put(wall.getLabel(), Arrays.<Shape>asList(new DivideRule(Arrays.asList(
+                new DivideArg(new Size(1f, true), new SetRule(new BlockUri("engine:stone"))),
+                new DivideArg(new Size(1f, true), window),
+                new DivideArg(new Size(1f, false), new SetRule(new BlockUri("engine:stone")))), DivideRule.Direction.X)));
+        rules.put(window.getLabel(), Arrays.<Shape>asList(new TerminalShape(prefab)));
+        BuildingGenerator wallGenerator = new BuildingGenerator(new Grammar(new ProductionSystem(rules, wall)));
+
+        BlockCollection building = wallGenerator.generate(5, 2, 2, Matrix4i.id(), 0L);
+        CountingSink sink = new CountingSink();
+        building.writeTo(sink);
+        // the blocks of the prefab did not rasterize the fills of the set rules
+        Assert.assertEquals(2, sink.fills);
+        Assert.assertEquals(2, sink.blocks);
+
+        Assert.assertEquals(4 * 2 * 2 + 2, building.size());
+        sink = new CountingSink();
+        building.writeTo(sink);
+        Assert.assertEquals(0, sink.fills);
+    }
+
+    @Test
+    public void testStreamingMatchesDerivationTree() throws Exception {
+        BlockCollection streamed = generator.generate(size.x, size.y, size.z, Matrix4i.id(), 3L);
+        BlockCollection derived = generator.deriveTree(size.x, size.y, size.z, Matrix4i.id(), 3L).derive();
+
+        Assert.assertEquals(derived.getBlocks(), streamed.getBlocks());
+    }
+
+    @Test
+    public void testFlatDerivationTree() throws Exception {
+        FlatDerivationTree tree = new FlatDerivationTree();
+        for (long seed = 0; seed < 4; seed++) {
+            // the same tree is reused for every derivation
+            generator.deriveTree(size.x, size.y, size.z, Matrix4i.id(), seed, tree);
+            Map<Vector3i, Block> expected = generator.generate(size.x, size.y, size.z, Matrix4i.id(), seed).getBlocks();
+            Assert.assertEquals(expected, tree.derive().getBlocks());
+            Assert.assertEquals(expected, tree.toTree().derive().getBlocks());
+        }
+
+        int leaves = 0;
+        for (int node = 1; node < tree.size(); node++) {
+            int parent = tree.getParent(node);
+            Assert.assertTrue(parent >= 0 && parent < node);
+            if (tree.isTerminal(node)) {
+                leaves++;
+            }
+        }
+        // one terminal per wall and one for the roof
+        Assert.assertEquals(5, leaves);
+        Assert.assertTrue(tree.toTree().findActiveNodes().isEmpty());
+    }
+
+    @Test
+    public void testGenerationJob() throws Exception {
+        Map<Vector3i, Block> expected = generator.generate(size.x, size.y, size.z, Matrix4i.id(), 11L).getBlocks();
+
+        GenerationJob job = generator.createJob(size.x, size.y, size.z, Matrix4i.id(), 11L);
+        int steps = 0;
+        while (!job.advance(1)) {
+            steps++;
+            Assert.assertEquals(steps, job.getDerivedNodes());
+            Assert.assertTrue(job.getProgress() < 1f);
+        }
+        Assert.assertTrue(steps > 1);
+        Assert.assertEquals(1f, job.getProgress());
+        Assert.assertEquals(expected, job.getResult().getBlocks());
+
+        final List<BlockCollection> results = new ArrayList<BlockCollection>();
+        GenerationJobSystem jobSystem = new GenerationJobSystem();
+        jobSystem.submit(generator.createJob(size.x, size.y, size.z, Matrix4i.id(), 11L), results::add);
+        while (jobSystem.getJobCount() > 0) {
+            jobSystem.update(0.016f);
+        }
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(expected, results.get(0).getBlocks());
+    }
+
+    @Test
+    public void testClippedGeneration() throws Exception {
+        BuildingGenerator complexGenerator = BuildingCommands.complexBuildingGenerator();
+        Region3i[] clips = {
+                Region3i.createFromMinMax(new Vector3i(0, 0, -31), new Vector3i(31, 63, 0)),
+                Region3i.createFromMinMax(new Vector3i(-5, 2, -40), new Vector3i(3, 9, -12)),
+                Region3i.createFromMinMax(new Vector3i(100, 0, 0), new Vector3i(120, 10, 10))};
+        for (int rotation = 0; rotation < 4; rotation++) {
+            Matrix4i matrix = new Matrix4i().rotY((float) (rotation * Math.PI / 2));
+            matrix.translate(4, 0, -6);
+            Map<Vector3i, Block> full = complexGenerator.generate(30, 20, 40, matrix, 23L).getBlocks();
+            for (Region3i clip : clips) {
+                Map<Vector3i, Block> expected = new HashMap<Vector3i, Block>();
+                for (Map.Entry<Vector3i, Block> entry : full.entrySet()) {
+                    if (clip.encompasses(entry.getKey())) {
+                        expected.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                Assert.assertEquals(expected, complexGenerator.generate(30, 20, 40, matrix, 23L, clip).getBlocks());
+            }
+        }
+    }
+
+    @Test
+    public void testPrefabStamping() throws Exception {
+        BlockManager blockManager = CoreRegistry.get(BlockManager.class);
+        Block stone = blockManager.getBlock(new BlockUri("engine:stone"));
+        Block glass = blockManager.getBlock(new BlockUri("engine:glass"));
+        // a window of a stone sill and a glass pane, in local coordinates
+        BlockCollection window = new BlockCollection();
+        window.setBlock(0, 0, 0, stone);
+        window.setBlock(0, 1, 0, glass);
+        ShapeSymbol row = new ShapeSymbol("row");
+        ShapeSymbol windowSymbol = new ShapeSymbol("window");
+        List<DivideArg> divArgs = new ArrayList<DivideArg>();
+        for (int i = 0; i < 4; i++) {
+            divArgs.add(new DivideArg(new Size(1f, true), windowSymbol));
+        }
+        Map<String, List<Shape>> rules = new HashMap<String, List<Shape>>();
+        rules.put(row.getLabel(), shapeToList(new DivideRule(divArgs, DivideRule.Direction.X)));
+        rules.put(windowSymbol.getLabel(), shapeToList(new TerminalShape(window)));
+        Grammar windowGrammar = new Grammar(new ProductionSystem(rules, row));
+        BuildingGenerator windowGenerator = new BuildingGenerator(windowGrammar);
+        BuildingGenerator cachedGenerator = new BuildingGenerator(windowGrammar.getCompiledGrammar(), new DerivationCache(4));
+
+        FlatDerivationTree tree = new FlatDerivationTree();
+        for (int rotation = 0; rotation < 4; rotation++) {
+            Matrix4i matrix = new Matrix4i().rotY((float) (rotation * Math.PI / 2));
+            matrix.translate(5, 2, -3);
+            Transform transform = Transform.fromMatrix(matrix);
+            Map<Vector3i, Block> expected = new HashMap<Vector3i, Block>();
+            for (int i = 0; i < 4; i++) {
+                Vector3i sill = new Vector3i(i, 0, 0);
+                Vector3i pane = new Vector3i(i, 1, 0);
+                transform.transformPoint(sill);
+                transform.transformPoint(pane);
+                expected.put(sill, stone);
+                expected.put(pane, glass);
+            }
+
+            Assert.assertEquals(expected, windowGenerator.generate(4, 2, 1, matrix, 0L).getBlocks());
+            Assert.assertEquals(expected, windowGenerator.generateParallel(4, 2, 1, matrix, 0L).getBlocks());
+            Assert.assertEquals(expected, windowGenerator.deriveTree(4, 2, 1, matrix, 0L).derive().getBlocks());
+            Assert.assertEquals(expected, cachedGenerator.generate(4, 2, 1, matrix, 0L).getBlocks());
+
+            // all terminals stamp the same prefab
+            windowGenerator.deriveTree(4, 2, 1, matrix, 0L, tree);
+            for (int node = 0; node < tree.size(); node++) {
+                if (tree.isTerminal(node)) {
+                    Assert.assertSame(window, ((TerminalShape) tree.getShape(node)).getValue());
+                }
+            }
+        }
+        Assert.assertEquals(2, window.size());
+    }
+
+    @Test
+    public void testSeededGeneration() throws Exception {
+        // every wall segment is randomly made of stone or planks
+        ShapeSymbol box = new ShapeSymbol("box");
+        ShapeSymbol segment = new ShapeSymbol("segment");
+        SetRule setStone = new SetRule(new BlockUri("engine:stone"), .5f);
+        SetRule setPlank = new SetRule(new BlockUri("engine:plank"), .5f);
+        List<DivideArg> divArgs = new ArrayList<DivideArg>();
+        for (int i = 0; i < 8; i++) {
+            divArgs.add(new DivideArg(new Size(1f, true), segment));
+        }
+
+        Map<String, List<Shape>> rules = new HashMap<String, List<Shape>>();
+        rules.put(box.getLabel(), shapeToList(new DivideRule(divArgs, DivideRule.Direction.X)));
+        rules.put(segment.getLabel(), Arrays.<Shape>asList(setStone, setPlank));
+        BuildingGenerator randomGenerator = new BuildingGenerator(new Grammar(new ProductionSystem(rules, box)));
+
+        for (long seed = 0; seed < 16; seed++) {
+            Map<Vector3i, Block> expected = randomGenerator.generate(8, 1, 1, Matrix4i.id(), seed).getBlocks();
+            Assert.assertEquals(expected, randomGenerator.generate(8, 1, 1, Matrix4i.id(), seed).getBlocks());
+            Assert.assertEquals(expected, randomGenerator.generateParallel(8, 1, 1, Matrix4i.id(), seed).getBlocks());
+        }
+    }
+
+    @Test
+    public void testConcurrentGeneration() throws Exception {
+        final Map<Vector3i, Block> expected = generator.generate(size.x, size.y, size.z, Matrix4i.id(), 7L).getBlocks();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<BlockCollection>> results = new ArrayList<Future<BlockCollection>>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(new Callable<BlockCollection>() {
+                    @Override
+                    public BlockCollection call() throws Exception {
+                        return generator.generate(size.x, size.y, size.z, Matrix4i.id(), 7L);
+                    }
+                }));
+            }
+            for (Future<BlockCollection> result : results) {
+                Assert.assertEquals(expected, result.get().getBlocks());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCachedGeneration() throws Exception {
+        DerivationCache cache = new DerivationCache(1024);
+        BuildingGenerator cachedGenerator = new BuildingGenerator(grammar.getCompiledGrammar(), cache);
+
+        int[][] translations = {{0, 0, 0}, {10, 0, -5}, {-3, 7, 2}};
+        for (int[] t : translations) {
+            for (int rotation = 0; rotation < 4; rotation++) {
+                Matrix4i matrix = new Matrix4i().rotY((float) (rotation * Math.PI / 2));
+                matrix.translate(t[0], t[1], t[2]);
+                Map<Vector3i, Block> expected = generator.generate(size.x, size.y, size.z, matrix, 5L).getBlocks();
+                Assert.assertEquals(expected, cachedGenerator.generate(size.x, size.y, size.z, matrix, 5L).getBlocks());
+                Assert.assertEquals(expected, cachedGenerator.generateParallel(size.x, size.y, size.z, matrix, 5L).getBlocks());
+            }
+        }
+        Assert.assertTrue(cache.getHits() > 0);
+        Assert.assertTrue(cache.getBlockCount() <= 1024);
+
+        // the root is never cached: it is expanded in a step of its own, and the cached house is stamped in the next
+        GenerationJob job = cachedGenerator.createJob(size.x, size.y, size.z, Matrix4i.id(), 5L);
+        int steps = 0;
+        while (!job.advance(1)) {
+            steps++;
+        }
+        Assert.assertEquals(1, steps);
+        Assert.assertEquals(generator.generate(size.x, size.y, size.z, Matrix4i.id(), 5L).getBlocks(), job.getResult().getBlocks());
+    }
+
+    @Test
+    public void testCachedClippedGeneration() throws Exception {
+        DerivationCache cache = new DerivationCache(1024);
+        BuildingGenerator cachedGenerator = new BuildingGenerator(grammar.getCompiledGrammar(), cache);
+        Matrix4i matrix = new Matrix4i().rotY((float) (Math.PI / 2));
+        matrix.translate(3, 0, -2);
+        Map<Vector3i, Block> full = generator.generate(size.x, size.y, size.z, matrix, 5L).getBlocks();
+        Vector3i min = new Vector3i(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        Vector3i max = new Vector3i(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE);
+        for (Vector3i position : full.keySet()) {
+            min.set(Math.min(min.x, position.x), Math.min(min.y, position.y), Math.min(min.z, position.z));
+            max.set(Math.max(max.x, position.x), Math.max(max.y, position.y), Math.max(max.z, position.z));
+        }
+        Region3i[] clips = {
+                Region3i.createFromMinMax(min, new Vector3i(max.x, max.y, min.z + 2)),
+                Region3i.createFromMinMax(new Vector3i(min.x + 1, min.y + 1, min.z - 5), new Vector3i(max.x - 1, min.y + 2, max.z)),
+                Region3i.createFromMinMax(new Vector3i(min.x - 3, min.y, min.z), new Vector3i(max.x + 3, max.y, max.z))};
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (Region3i clip : clips) {
+                Map<Vector3i, Block> expected = new HashMap<Vector3i, Block>();
+                for (Map.Entry<Vector3i, Block> entry : full.entrySet()) {
+                    if (clip.encompasses(entry.getKey())) {
+                        expected.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                Assert.assertEquals(expected, cachedGenerator.generate(size.x, size.y, size.z, matrix, 5L, clip).getBlocks());
+            }
+            if (pass == 0) {
+                // clipped generations never capture a subtree
+                Assert.assertEquals(0, cache.size());
+                cachedGenerator.generate(size.x, size.y, size.z, matrix, 5L);
+                cachedGenerator.generate(size.x, size.y, size.z, matrix, 5L);
+                Assert.assertTrue(cache.size() > 0);
+            }
+        }
+        Assert.assertTrue(cache.getHits() >= clips.length);
+    }
+
+    @Test
+    public void testCachedRecursiveGeneration() throws Exception {
+        // a strip of single blocks, one level of recursion per block, ending with a small probability at every block
+        ShapeSymbol strip = new ShapeSymbol("strip");
+        SetRule stone = new SetRule(new BlockUri("engine:stone"));
+        Map<String, List<Shape>> rules = new HashMap<String, List<Shape>>();
+        rules.put(strip.getLabel(), Arrays.<Shape>asList(new DivideRule(Arrays.asList(new DivideArg(new Size(1f, true), stone),
+                new DivideArg(new Size(1f, false), strip)), DivideRule.Direction.X, .9995f),
+                new SetRule(new BlockUri("engine:plank"), .0005f)));
+        Grammar stripGrammar = new Grammar(new ProductionSystem(rules, strip));
+        DerivationCache cache = new DerivationCache(1 << 17);
+        BuildingGenerator cachedGenerator = new BuildingGenerator(stripGrammar.getCompiledGrammar(), cache);
+
+        BlockCollection expected = new BlockCollection();
+        DerivationStats stats = new DerivationStats(stripGrammar.getCompiledGrammar());
+        new BuildingGenerator(stripGrammar).generate(1 << 16, 1, 1, Matrix4i.id(), 2L, expected, stats);
+        Assert.assertTrue(stats.getNodes() > 4000);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(expected, cachedGenerator.generate(1 << 16, 1, 1, Matrix4i.id(), 2L));
+        }
+        // the first strip below the root repeats from the second generation on, the nested strips are part of its fragment
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.size());
+
+        // a strip that never ends is captured until the capture exceeds the cache
+        cache = new DerivationCache(1000);
+        rules.put(strip.getLabel(), shapeToList(new DivideRule(Arrays.asList(new DivideArg(new Size(1f, true), stone),
+                new DivideArg(new Size(1f, false), strip)), DivideRule.Direction.X)));
+        BuildingGenerator endlessGenerator = new BuildingGenerator(new Grammar(new ProductionSystem(rules, strip)).getCompiledGrammar(),
+                cache);
+        for (int i = 0; i < 2; i++) {
+            GenerationJob job = endlessGenerator.createJob(1 << 30, 1, 1, Matrix4i.id(), 0L);
+            Assert.assertFalse(job.advance(1 << 13));
+            Assert.assertTrue(job.getPendingNodes() < 4);
+        }
+        Assert.assertEquals(0, cache.size());
+        Assert.assertTrue(cache.getMisses() > 1000);
+    }
+
+    /**
+     * A sink that only counts the blocks and box fills written to it.
+     */
+    private static final class CountingSink implements BlockSink {
+        private int blocks;
+        private int fills;
+
+        @Override
+        public void setBlock(int x, int y, int z, Block block) {
+            blocks++;
+        }
+
+        @Override
+        public void fill(BoxFill box) {
+            fills++;
+        }
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.terasology.grammar.logic.grammar.CompiledGrammar;
+import org.terasology.grammar.logic.grammar.ProductionSystem;
+import org.terasology.grammar.logic.grammar.shapes.Shape;
+import org.terasology.grammar.logic.grammar.shapes.ShapeSymbol;
+import org.terasology.grammar.logic.grammar.shapes.TerminalShape;
+import org.terasology.grammar.logic.grammar.shapes.complex.DivideArg;
+import org.terasology.grammar.logic.grammar.shapes.complex.DivideRule;
+import org.terasology.grammar.logic.grammar.shapes.complex.SetRule;
+import org.terasology.grammar.logic.grammar.shapes.complex.Size;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.registry.CoreRegistry;
+import org.terasology.world.block.BlockManager;
+import org.terasology.world.block.BlockUri;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class CompiledGrammarTest {
+
+    private Map<String, List<Shape>> rules;
+    private ShapeSymbol house;
+
+    @Before
+    public void setUp() throws Exception {
+        house = new ShapeSymbol("house");
+        ShapeSymbol floor = new ShapeSymbol("floor");
+        ShapeSymbol roof = new ShapeSymbol("roof");
+
+        DivideRule divHouse = new DivideRule(Arrays.asList(
+                new DivideArg(new Size(1f, false), floor),
+                new DivideArg(new Size(1f, true), roof)), DivideRule.Direction.Y);
+
+        rules = new HashMap<String, List<Shape>>();
+        rules.put(house.getLabel(), Arrays.<Shape>asList(divHouse));
+        rules.put(floor.getLabel(), Arrays.<Shape>asList(new ShapeSymbol("roof")));
+        rules.put(roof.getLabel(), Arrays.<Shape>asList(new ShapeSymbol("floor"), new ShapeSymbol("roof")));
+    }
+
+    @Test
+    public void testSymbolsAreBound() throws Exception {
+        CompiledGrammar grammar = CompiledGrammar.compile(new ProductionSystem(rules, house));
+
+        assertEquals(3, grammar.getSymbolCount());
+        int houseId = grammar.getSymbolId("house");
+        assertEquals(houseId, grammar.getInitialAxiom().getId());
+        assertEquals("house", grammar.getLabel(houseId));
+        assertEquals(-1, grammar.getSymbolId("cellar"));
+
+        int roofId = grammar.getSymbolId("roof");
+        assertEquals(2, grammar.getAlternativeCount(roofId));
+        ShapeSymbol floor = (ShapeSymbol) grammar.instantiate(roofId, 0);
+        assertEquals(grammar.getSymbolId("floor"), floor.getId());
+
+        DivideRule divide = (DivideRule) grammar.instantiate(houseId, 0);
+        ShapeSymbol nested = (ShapeSymbol) divide.getArgs().get(1).getShape();
+        assertEquals(roofId, nested.getId());
+    }
+
+    @Test
+    public void testUnknownSymbol() throws Exception {
+        rules.put("floor", Arrays.<Shape>asList(new ShapeSymbol("cellar")));
+        try {
+            CompiledGrammar.compile(new ProductionSystem(rules, house));
+            fail("Compiling a grammar with an unknown symbol must fail!");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("cellar"));
+        }
+    }
+
+    @Test
+    public void testSubtreeAnalysis() throws Exception {
+        rules.put("wall", Arrays.<Shape>asList(new SetRule(new BlockUri("engine:stone"))));
+        rules.put("door", Arrays.<Shape>asList(new TerminalShape(new BlockCollection())));
+        CompiledGrammar grammar = CompiledGrammar.compile(new ProductionSystem(rules, house));
+
+        int wallId = grammar.getSymbolId("wall");
+        assertTrue(grammar.isRelocatable(wallId));
+        assertTrue(grammar.isDeterministic(wallId));
+
+        // roof has two alternatives, and floor and house reach roof
+        for (String label : new String[]{"house", "floor", "roof"}) {
+            assertTrue(grammar.isRelocatable(grammar.getSymbolId(label)));
+            assertFalse(grammar.isDeterministic(grammar.getSymbolId(label)));
+        }
+
+        // terminal shapes are stamped at the scope's transform
+        assertTrue(grammar.isRelocatable(grammar.getSymbolId("door")));
+    }
+
+    @Test
+    public void testBlocksAreResolvedOnce() throws Exception {
+        final BlockManager blockManager = CoreRegistry.get(BlockManager.class);
+        final List<BlockUri> resolved = new ArrayList<BlockUri>();
+        rules.put("floor", Arrays.<Shape>asList(new DivideRule(Arrays.asList(
+                new DivideArg(new Size(1f, true), new SetRule(new BlockUri("engine:stone"))),
+                new DivideArg(new Size(1f, true), new SetRule(new BlockUri("engine:plank")))), DivideRule.Direction.X)));
+        rules.put("roof", Arrays.<Shape>asList(new SetRule(new BlockUri("engine:stone")), new SetRule(new BlockUri("engine:plank"))));
+
+        CompiledGrammar grammar = CompiledGrammar.compile(new ProductionSystem(rules, house), uri -> {
+            resolved.add(uri);
+            return blockManager.getBlock(uri);
+        });
+
+        assertEquals(Arrays.asList(new BlockUri("engine:stone"), new BlockUri("engine:plank")), resolved);
+        assertEquals(2, grammar.getPalette().size());
+        int roofId = grammar.getSymbolId("roof");
+        for (int i = 0; i < grammar.getAlternativeCount(roofId); i++) {
+            SetRule rule = (SetRule) grammar.instantiate(roofId, i);
+            assertEquals(blockManager.getBlock(rule.getUri()), rule.getBlock());
+        }
+    }
+
+    @Test
+    public void testUnknownBlock() throws Exception {
+        rules.put("roof", Arrays.<Shape>asList(new SetRule(new BlockUri("engine:missing"))));
+        try {
+            CompiledGrammar.compile(new ProductionSystem(rules, house), uri -> null);
+            fail("compiling a grammar with an unknown block should fail");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.block.BlockSink;
+import org.terasology.grammar.world.block.BoxFill;
+import org.terasology.grammar.world.building.BuildingCommands;
+import org.terasology.grammar.world.building.BuildingGenerator;
+import org.terasology.grammar.world.building.BuildingStatsSystem;
+import org.terasology.grammar.world.building.DerivationStats;
+import org.terasology.math.geom.Matrix4i;
+import org.terasology.world.block.Block;
+
+public class DerivationStatsTest {
+
+    private BuildingGenerator generator;
+
+    @Before
+    public void setUp() throws Exception {
+        generator = BuildingCommands.complexBuildingGenerator();
+    }
+
+    @Test
+    public void testDerivationStats() throws Exception {
+        final long[] writes = new long[1];
+        final BlockCollection building = new BlockCollection();
+        BlockSink countingSink = new BlockSink() {
+            @Override
+            public void setBlock(int x, int y, int z, Block block) {
+                writes[0]++;
+                building.setBlock(x, y, z, block);
+            }
+
+            @Override
+            public void fill(BoxFill box) {
+                writes[0] += box.volume();
+                building.fill(box);
+            }
+        };
+        DerivationStats stats = new DerivationStats(generator.getCompiledGrammar());
+        generator.generate(30, 20, 40, Matrix4i.id(), 23L, countingSink, stats);
+
+        // collecting stats does not change the building
+        Assert.assertEquals(generator.generate(30, 20, 40, Matrix4i.id(), 23L).getBlocks(), building.getBlocks());
+
+        Assert.assertEquals(writes[0], stats.getBlocks());
+        Assert.assertTrue(stats.getNodes() > 0);
+        Assert.assertTrue(stats.getPeakPending() > 0);
+        long symbolBlocks = 0;
+        long typeBlocks = 0;
+        boolean houseExpanded = false;
+        for (DerivationStats.RuleStats symbol : stats.getSymbolStats()) {
+            symbolBlocks += symbol.getBlocks();
+            houseExpanded |= symbol.getName().equals("house") && symbol.getExpansions() == 1;
+        }
+        for (DerivationStats.RuleStats type : stats.getRuleTypeStats()) {
+            typeBlocks += type.getBlocks();
+        }
+        Assert.assertTrue(houseExpanded);
+        Assert.assertEquals(stats.getBlocks(), symbolBlocks);
+        Assert.assertEquals(stats.getBlocks(), typeBlocks);
+
+        BuildingStatsSystem statsSystem = new BuildingStatsSystem();
+        Assert.assertEquals("No building stats recorded yet.", statsSystem.buildStats(5));
+        for (int i = 0; i < BuildingStatsSystem.HISTORY_SIZE + 1; i++) {
+            statsSystem.record(stats);
+        }
+        Assert.assertEquals(BuildingStatsSystem.HISTORY_SIZE, statsSystem.getRecent(100).size());
+        String summary = statsSystem.buildStats(2);
+        Assert.assertTrue(summary.startsWith("Last 2 build(s):"));
+        Assert.assertTrue(summary.contains("house: 2 expansions"));
+    }
+}
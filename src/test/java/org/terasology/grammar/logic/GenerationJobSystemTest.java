@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.terasology.grammar.logic.grammar.ProductionSystem;
+import org.terasology.grammar.logic.grammar.assets.Grammar;
+import org.terasology.grammar.logic.grammar.shapes.Shape;
+import org.terasology.grammar.logic.grammar.shapes.ShapeSymbol;
+import org.terasology.grammar.logic.grammar.shapes.complex.ComplexRule;
+import org.terasology.grammar.logic.grammar.shapes.complex.SetRule;
+import org.terasology.grammar.world.block.BlockCollection;
+import org.terasology.grammar.world.building.BuildingGenerator;
+import org.terasology.grammar.world.building.GenerationJob;
+import org.terasology.grammar.world.building.GenerationJobSystem;
+import org.terasology.math.geom.Matrix4i;
+import org.terasology.world.block.BlockUri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class GenerationJobSystemTest {
+
+    @Test
+    public void testFailingJobIsDropped() throws Exception {
+        ShapeSymbol broken = new ShapeSymbol("broken");
+        ShapeSymbol block = new ShapeSymbol("block");
+        Map<String, List<Shape>> rules = new HashMap<String, List<Shape>>();
+        rules.put(broken.getLabel(), Collections.<Shape>singletonList(new FailingRule()));
+        rules.put(block.getLabel(), Collections.<Shape>singletonList(new SetRule(new BlockUri("engine:stone"))));
+        BuildingGenerator brokenGenerator = new BuildingGenerator(new Grammar(new ProductionSystem(rules, broken)));
+        BuildingGenerator blockGenerator = new BuildingGenerator(new Grammar(new ProductionSystem(rules, block)));
+
+        final List<BlockCollection> failed = new ArrayList<BlockCollection>();
+        final List<BlockCollection> results = new ArrayList<BlockCollection>();
+        GenerationJobSystem jobSystem = new GenerationJobSystem();
+        GenerationJob brokenJob = brokenGenerator.createJob(2, 2, 2, Matrix4i.id(), 0L);
+        jobSystem.submit(brokenJob, failed::add);
+        jobSystem.submit(blockGenerator.createJob(2, 2, 2, Matrix4i.id(), 0L), results::add);
+        while (jobSystem.getJobCount() > 0) {
+            jobSystem.update(0.016f);
+        }
+
+        // the failing job is dropped, and the job behind it is still derived
+        Assert.assertTrue(brokenJob.isCancelled());
+        Assert.assertTrue(failed.isEmpty());
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(8, results.get(0).size());
+    }
+
+    /**
+     * A rule whose expansion always fails.
+     */
+    private static final class FailingRule extends ComplexRule {
+
+        @Override
+        public List<Shape> getElements() {
+            throw new IllegalStateException("broken rule");
+        }
+
+        @Override
+        public Shape clone() {
+            return new FailingRule();
+        }
+    }
+}
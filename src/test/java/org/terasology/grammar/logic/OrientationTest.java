@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.grammar.logic;
+
+import org.junit.Test;
+import org.terasology.grammar.logic.grammar.shapes.Orientation;
+import org.terasology.grammar.logic.grammar.shapes.Transform;
+import org.terasology.math.geom.Matrix4i;
+import org.terasology.math.geom.Vector3i;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
+
+public class OrientationTest {
+
+    @Test
+    public void testRotationYMatchesMatrix() {
+        for (int quarterTurns = 0; quarterTurns < 4; quarterTurns++) {
+            Matrix4i matrix = new Matrix4i().rotY((float) (quarterTurns * Math.PI / 2));
+            assertSame(Orientation.rotationY(quarterTurns), Orientation.fromMatrix(matrix));
+        }
+        assertSame(Orientation.IDENTITY, Orientation.rotationY(4));
+        assertSame(Orientation.rotationY(3), Orientation.rotationY(-1));
+    }
+
+    @Test
+    public void testCompositionMatchesMatrices() {
+        Set<String> distinct = new HashSet<String>();
+        for (int a = 0; a < Orientation.COUNT; a++) {
+            Orientation first = Orientation.get(a);
+            distinct.add(first.toString());
+            assertSame(first, Orientation.fromMatrix(new Transform(first, 0, 0, 0).toMatrix()));
+            for (int b = 0; b < Orientation.COUNT; b++) {
+                Orientation second = Orientation.get(b);
+                Matrix4i product = new Transform(first, 0, 0, 0).toMatrix().mul(new Transform(second, 0, 0, 0).toMatrix());
+                assertSame(Orientation.fromMatrix(product), first.compose(second));
+            }
+        }
+        assertEquals(Orientation.COUNT, distinct.size());
+    }
+
+    @Test
+    public void testTransformMatchesMatrix() {
+        Transform transform = new Transform(Orientation.get(17), 3, -4, 5).translate(1, 2, 3).rotate(Orientation.rotationY(1));
+        Matrix4i matrix = new Transform(Orientation.get(17), 3, -4, 5).toMatrix();
+        matrix.translate(1, 2, 3);
+        matrix.mul(new Matrix4i().rotY((float) (Math.PI / 2)));
+
+        assertEquals(transform, Transform.fromMatrix(matrix));
+        Vector3i expected = new Vector3i(7, -2, 9);
+        matrix.transformPoint(expected);
+        Vector3i actual = new Vector3i(7, -2, 9);
+        transform.transformPoint(actual);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testSkewedMatrixIsRejected() {
+        try {
+            Orientation.fromMatrix(new Matrix4i(new int[]{1, 1, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1}));
+            fail("Only axis aligned rotations have an orientation.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -17,12 +17,15 @@ package org.terasology.grammar.logic;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.terasology.grammar.logic.grammar.shapes.Orientation;
 import org.terasology.grammar.logic.grammar.shapes.Shape;
 import org.terasology.grammar.logic.grammar.shapes.TerminalShape;
+import org.terasology.grammar.logic.grammar.shapes.Transform;
 import org.terasology.grammar.logic.grammar.shapes.complex.SetRule;
 import org.terasology.grammar.world.block.BlockCollection;
 import org.terasology.math.geom.Vector3i;
 import org.terasology.registry.CoreRegistry;
+import org.terasology.world.block.Block;
 import org.terasology.world.block.BlockManager;
 import org.terasology.world.block.BlockUri;
 
@@ -106,4 +109,41 @@ public class SetRuleTest {
         assertEquals(24, t.getValue().getBlocks().size());
         assertEquals(negCollection, t.getValue());
     }
+
+    /**
+     * The box fill of a set rule covers the same blocks as walking its scope voxel by voxel: a positive width or height extends along
+     * the local x or y axis, a negative one against it. A positive depth extends against the local z axis, a negative one along it.
+     */
+    @Test
+    public void testBoxFillMatchesScope() throws Exception {
+        Block stone = CoreRegistry.get(BlockManager.class).getBlock(new BlockUri("some:stone"));
+        int[] signs = {1, -1};
+        for (int orientation = 0; orientation < Orientation.COUNT; orientation++) {
+            for (int sx : signs) {
+                for (int sy : signs) {
+                    for (int sz : signs) {
+                        SetRule rule = new SetRule(new BlockUri("some:stone"));
+                        Transform transform = new Transform(Orientation.get(orientation), 5, -2, 7);
+                        rule.setTransform(transform);
+                        rule.setDimension(new Vector3i(2 * sx, 3 * sy, 4 * sz));
+
+                        BlockCollection expected = new BlockCollection();
+                        for (int i = 0; i < 2; i++) {
+                            for (int j = 0; j < 3; j++) {
+                                for (int k = 0; k < 4; k++) {
+                                    Vector3i pos = new Vector3i(i * sx, j * sy, -k * sz);
+                                    transform.transformPoint(pos);
+                                    expected.setBlock(pos, stone);
+                                }
+                            }
+                        }
+
+                        BlockCollection filled = ((TerminalShape) rule.getElements().get(0)).getValue();
+                        assertEquals(24, filled.size());
+                        assertEquals(expected, filled);
+                    }
+                }
+            }
+        }
+    }
 }
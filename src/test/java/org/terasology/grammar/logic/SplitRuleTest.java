@@ -146,8 +146,10 @@ public class SplitRuleTest {
 
         assertEquals("The rule should only result in one successor!", 1, result.size());
         assertEquals(new Vector3i(1, 1, -1), result.get(0).getPosition());
-        assertEquals(shape, result.get(0));
+        assertEquals(shapeName, ((ShapeSymbol) result.get(0)).getLabel());
         assertEquals(new Vector3i(2, 1, 3), result.get(0).getDimension());
+        // the argument shape itself must not be modified
+        assertEquals(Vector3i.zero(), shape.getDimension());
     }
 
     @Test
@@ -156,7 +158,9 @@ public class SplitRuleTest {
 
         assertEquals("The rule should only result in one successor!", 1, result.size());
         assertEquals(new Vector3i(-1, 1, 1), result.get(0).getPosition());
-        assertEquals(shape, result.get(0));
+        assertEquals(shapeName, ((ShapeSymbol) result.get(0)).getLabel());
         assertEquals(new Vector3i(-2, 1, -3), result.get(0).getDimension());
+        // the argument shape itself must not be modified
+        assertEquals(Vector3i.zero(), shape.getDimension());
     }
 }